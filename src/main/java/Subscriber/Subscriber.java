@@ -3,6 +3,7 @@ package Subscriber;
 import com.google.gson.Gson;
 import jsonhelper.*;
 import naming.NamingServerInfo;
+import naming.NamingShardRouter;
 import naming.StorageServerInfo;
 import publisher.Content;
 
@@ -11,9 +12,19 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**Authors : Sheng-Hao Wu, Kevin Li */
 /**
@@ -29,6 +40,10 @@ import java.util.Queue;
  *                       ssystem.
  *  */
 public class Subscriber {
+    /**
+     * time (in milliseconds) to wait for the storage server to acknowledge the keywords of the push channel
+     */
+    public static final long PUSH_ACK_TIMEOUT_MILLIS = 10 * 1000L;
     /** 
      * id of subscriber 
      */
@@ -50,9 +65,18 @@ public class Subscriber {
      */
     private StorageServerInfo assignedStorageServer;
     /** 
-     * info about the naming server that the subscriber communicates with
+     * router of the naming server shards that the subscriber communicates with
      */
-    private NamingServerInfo namingServerInfo;
+    private NamingShardRouter router;
+    /**
+     * sequence number of the next message to be read of each keyword, used by readNewMessages() and the push channel
+     */
+    private ConcurrentHashMap<String, Integer> nextSequences;
+    /**
+     * read cursor of each keyword, the byte offset up to which readContent() has read it, null until loaded from the
+     * naming server
+     */
+    private ConcurrentHashMap<String, Long> cursors;
 
     /**
      * Constructor to initialize subscriber
@@ -64,7 +88,8 @@ public class Subscriber {
         this.subscriberID = subID;
         this.client = HttpClient.newHttpClient();
         this.keyWords = new String[0];
-        this.namingServerInfo = namingServerInfo;
+        this.router = new NamingShardRouter(namingServerInfo);
+        this.nextSequences = new ConcurrentHashMap<>();
     }
 
     /**
@@ -78,7 +103,23 @@ public class Subscriber {
         this.subscriberID = subID;
         this.client = HttpClient.newHttpClient();
         this.keyWords = keyWords;
-        this.namingServerInfo = namingServerInfo;
+        this.router = new NamingShardRouter(namingServerInfo);
+        this.nextSequences = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Constructor to initialize subscriber for certain keywords with a sharded naming service
+     *
+     * @param subID id of subscriber
+     * @param keyWords keywords tied to the subscriber
+     * @param router router of the naming server shards
+     */
+    public Subscriber(String subID, String[] keyWords, NamingShardRouter router) {
+        this.subscriberID = subID;
+        this.client = HttpClient.newHttpClient();
+        this.keyWords = keyWords;
+        this.router = router;
+        this.nextSequences = new ConcurrentHashMap<>();
     }
 
     /**
@@ -91,8 +132,32 @@ public class Subscriber {
      * @throws InterruptedException
      */
     public HttpResponse<String> register(String namingServerIP, int namingServerServicePort) throws IOException, InterruptedException {
-        return getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/subscriber_register",
-                                new SubscriberRegisterRequest(this.subscriberID, keyWords));
+        return register(new NamingShardRouter(new NamingServerInfo(namingServerIP, namingServerServicePort, 0)));
+    }
+
+    /**
+     * Function to register a subscriber with a sharded naming service. The shard that owns the subscriber id picks the
+     * storage server, then every other shard is told to assign the same one. Each shard only gets the keywords it owns.
+     *
+     * @param router router of the naming server shards
+     * @return the HTTPResponse of registering with the shard that owns the subscriber, or of the first shard that failed
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public HttpResponse<String> register(NamingShardRouter router) throws IOException, InterruptedException {
+        NamingServerInfo owner = router.route(this.subscriberID);
+        HttpResponse<String> ownerResponse = getHttpResponse("http://" + owner.ip + ":" + owner.servicePort + "/subscriber_register",
+                                new SubscriberRegisterRequest(this.subscriberID, ownedKeyWords(router, owner)));
+        if (ownerResponse.statusCode() != 200) return ownerResponse;
+        StorageServerInfo assigned = new Gson().fromJson(ownerResponse.body(), StorageServerInfo.class);
+        for (NamingServerInfo shard : router.getShards()) {
+            if (shard == owner) continue;
+            response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/subscriber_register",
+                    new SubscriberRegisterRequest(this.subscriberID, ownedKeyWords(router, shard),
+                            assigned.getIP(), assigned.getClientPort(), assigned.getCommandPort()));
+            if (response.statusCode() != 200) return response;
+        }
+        return ownerResponse;
     }
 
     /**
@@ -105,13 +170,27 @@ public class Subscriber {
      * @throws InterruptedException
      */
     public Boolean setReady(String namingServerIP, int namingServerServicePort) throws IOException, InterruptedException {
+        return setReady(new NamingShardRouter(new NamingServerInfo(namingServerIP, namingServerServicePort, 0)));
+    }
+
+    /**
+     * Function to check whether a subscriber is ready with a sharded naming service, every keyword is checked (and
+     * replicated) through the shard that owns the keyword.
+     *
+     * @param router router of the naming server shards
+     * @return boolean to indicate if subscriber is ready
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Boolean setReady(NamingShardRouter router) throws IOException, InterruptedException {
         for (String keyWord : this.keyWords) {
-            response = getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/getstorage", new PathRequest("/" + keyWord));
+            NamingServerInfo shard = router.route(keyWord);
+            response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/getstorage", new PathRequest("/" + keyWord));
             if (new Gson().fromJson(response.body(), ExceptionReturn.class).exceptionType != null) continue;
             ServerInfo existedServer = new Gson().fromJson(response.body(), ServerInfo.class);
             if (assignedStorageServer.getClientPort() != existedServer.server_port) {
                 // replication
-                response = getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/replication",
+                response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/replication",
                                 new ReplicationRequest("/" + keyWord, existedServer.server_ip, existedServer.server_port,
                                         assignedStorageServer.getIP(), assignedStorageServer.getClientPort(), assignedStorageServer.getCommandPort()));
                 if (new Gson().fromJson(response.body(), BooleanReturn.class).success != true) return false;
@@ -122,39 +201,203 @@ public class Subscriber {
 
     /**
      * Function to read the content from storage server connected to subscriber. Relies upon <code>getHttpResponse</code> to perform HTTP POST requests.
+     * Only the content published since the last call is read: every keyword has a read cursor, which is committed to
+     * the naming server shard of the keyword once the content is read, so the next call (or the next run of the same
+     * subscriber) starts from there.
      *
-     * @return hashmap that contains the keyword and text sent by publishers
+     * @return hashmap that contains the keyword and text sent by publishers since the last call, empty text if there
+     *         is nothing new, null if keyword cannot be read
      * @throws IOException 
      * @throws InterruptedException
      */
     public HashMap<String, String> readContent() throws IOException, InterruptedException {
+        if (cursors == null) loadCursors();
         HashMap<String, String> res = new HashMap<>();
         for (String keyWord : keyWords) {
+            NamingServerInfo shard = router.route(keyWord);
             // lock
-            response = getHttpResponse("http://" + namingServerInfo.ip + ":" + namingServerInfo.servicePort + "/lock",
+            response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/lock",
                     new LockRequest("/" + keyWord,  false, subscriberID));
+            long leaseID = getLeaseID(response);
 
             // first get the size
             response = getHttpResponse("http://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_size", new PathRequest("/" + keyWord));
-
-            int size = (int)new Gson().fromJson(response.body(), SizeReturn.class).size;
-            // read the content
-            response = getHttpResponse("http://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_read",
-                    new ReadRequest("/" + keyWord, 0, size));
-            if(new Gson().fromJson(response.body(), ExceptionReturn.class).exceptionType != null) {
-                res.put(keyWord, null);
-                continue;
+            String readTxt = null;
+            if (response.statusCode() == 200) {
+                long size = new Gson().fromJson(response.body(), SizeReturn.class).size;
+                long cursor = cursors.getOrDefault(keyWord, 0L);
+                // file was deleted and published again since the cursor was committed, start it over
+                if (cursor > size) cursor = 0;
+                readTxt = "";
+                if (size > cursor) {
+                    // read the content past the cursor as raw bytes
+                    HttpResponse<byte[]> binaryResponse = getBinaryHttpResponse("http://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_read_binary",
+                            new ReadRequest("/" + keyWord, cursor, (int)(size - cursor)));
+                    if (binaryResponse.statusCode() == 200) {
+                        readTxt = new String(binaryResponse.body());
+                        commitCursor(shard, keyWord, size);
+                    } else {
+                        readTxt = null;
+                    }
+                } else if (size < cursor) {
+                    commitCursor(shard, keyWord, size);
+                }
+            } else {
+                // file is gone, its cursor was dropped by the naming server too
+                cursors.remove(keyWord);
             }
-            String readTxt = new Gson().fromJson(response.body(), DataReturn.class).data;
             res.put(keyWord, readTxt);
 
             // unlock
-            response = getHttpResponse("http://" + namingServerInfo.ip + ":" + namingServerInfo.servicePort + "/unlock",
-                    new LockRequest("/" + keyWord,  false, subscriberID));
+            response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/unlock",
+                    new LockRequest("/" + keyWord,  false, subscriberID, leaseID));
+        }
+        return res;
+    }
+
+    /**
+     * Function to get the read cursor of a keyword, the byte offset up to which <code>readContent</code> has read it.
+     *
+     * @param keyWord keyword of the cursor
+     * @return byte offset of the cursor, 0 if keyword was never read
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public long getCursor(String keyWord) throws IOException, InterruptedException {
+        if (cursors == null) loadCursors();
+        return cursors.getOrDefault(keyWord, 0L);
+    }
+
+    /**
+     * Function to read messages of a keyword by sequence number from storage server connected to subscriber, starting
+     * from the message with the given sequence number. Relies upon <code>getHttpResponse</code> to perform HTTP POST requests.
+     *
+     * @param keyWord keyword to be read
+     * @param sequence sequence number of the first message to be read
+     * @param count maximum number of messages to be read
+     * @return messages read with the sequence number to continue from, null if keyword cannot be read
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public MessagesReturn readMessages(String keyWord, int sequence, int count) throws IOException, InterruptedException {
+        NamingServerInfo shard = router.route(keyWord);
+        // lock
+        response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/lock",
+                new LockRequest("/" + keyWord,  false, subscriberID));
+        long leaseID = getLeaseID(response);
+
+        response = getHttpResponse("http://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_read_messages",
+                new ReadMessagesRequest("/" + keyWord, sequence, count));
+        MessagesReturn messagesReturn = null;
+        if (response.statusCode() == 200) {
+            messagesReturn = new Gson().fromJson(response.body(), MessagesReturn.class);
+        }
+
+        // unlock
+        getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/unlock",
+                new LockRequest("/" + keyWord,  false, subscriberID, leaseID));
+        return messagesReturn;
+    }
+
+    /**
+     * Function to read the messages published since the last call for every keyword of the subscriber. Unlike
+     * <code>readContent</code>, which returns the new content as one text, the new messages are returned one by one.
+     *
+     * @return hashmap that contains the keyword and the new messages, null if keyword cannot be read
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public HashMap<String, List<String>> readNewMessages() throws IOException, InterruptedException {
+        HashMap<String, List<String>> res = new HashMap<>();
+        for (String keyWord : keyWords) {
+            int sequence = nextSequences.getOrDefault(keyWord, 0);
+            MessagesReturn messagesReturn = readMessages(keyWord, sequence, Integer.MAX_VALUE);
+            if (messagesReturn == null) {
+                res.put(keyWord, null);
+                continue;
+            }
+            nextSequences.merge(keyWord, messagesReturn.next_sequence, Math::max);
+            res.put(keyWord, Arrays.asList(messagesReturn.messages));
         }
         return res;
     }
 
+    /**
+     * Function to read everything written to a keyword file on the assigned storage server since an offset, waiting
+     * up to a timeout for new content if there is none yet. The request is answered as soon as new content is
+     * durable, so a subscriber that keeps asking from the returned next_offset gets new content without polling.
+     *
+     * @param keyWord keyword to be read
+     * @param offset offset to read from, usually the next_offset of the previous call
+     * @param timeoutMillis time (in milliseconds) to wait at most for new content, 0 to return at once
+     * @return content read with the offset to continue from (empty on timeout), null if keyword cannot be read
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ReadSinceReturn readSince(String keyWord, long offset, long timeoutMillis) throws IOException, InterruptedException {
+        response = getHttpResponse("http://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_read_since",
+                new ReadSinceRequest("/" + keyWord, offset, 0, timeoutMillis));
+        if (response.statusCode() != 200) return null;
+        return new Gson().fromJson(response.body(), ReadSinceReturn.class);
+    }
+
+    /**
+     * Function to open the push channel to the storage server assigned to the subscriber, see
+     * <code>openPushChannel(listener, closed)</code>. Nobody is told when the channel is closed by the storage server.
+     *
+     * @param listener called with every message pushed, on the thread of the web socket
+     * @return web socket of the push channel, close it to stop the push
+     * @throws IOException if storage server cannot be connected or doesn't acknowledge the keywords
+     * @throws InterruptedException
+     */
+    public WebSocket openPushChannel(Consumer<PushReturn> listener) throws IOException, InterruptedException {
+        return openPushChannel(listener, null);
+    }
+
+    /**
+     * Function to open the push channel to the storage server assigned to the subscriber. Every message appended to
+     * the keyword files of the subscriber on that storage server is pushed as soon as it's durable, instead of being
+     * polled with <code>readContent</code> or <code>readNewMessages</code>. Keywords already read with
+     * <code>readNewMessages</code> or pushed before resume after the last message read, the others only get new
+     * messages. Messages pushed also advance <code>readNewMessages</code>, so nothing is read twice. Returns once the
+     * storage server acknowledged every keyword, so no message appended afterward can be missed.
+     *
+     * If the channel is closed by the storage server or fails, <code>closed</code> is called; opening the channel
+     * again resumes every keyword after the last message pushed, so nothing is missed in between.
+     *
+     * @param listener called with every message pushed, on the thread of the web socket
+     * @param closed called once with the error (null if the storage server closed the channel) when the channel is
+     *               lost after it was opened, not called when the subscriber closes it, null if nobody is told
+     * @return web socket of the push channel, close it to stop the push
+     * @throws IOException if storage server cannot be connected or doesn't acknowledge the keywords
+     * @throws InterruptedException
+     */
+    public WebSocket openPushChannel(Consumer<PushReturn> listener, Consumer<Throwable> closed) throws IOException, InterruptedException {
+        WebSocket webSocket;
+        CountDownLatch acknowledged = new CountDownLatch(keyWords.length);
+        PushListener pushListener = new PushListener(listener, closed, acknowledged);
+        try {
+            webSocket = client.newWebSocketBuilder()
+                    .buildAsync(URI.create("ws://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_subscribe"),
+                            pushListener)
+                    .get();
+        } catch (ExecutionException e) {
+            throw new IOException("Push channel cannot be opened", e.getCause());
+        }
+        String[] paths = new String[keyWords.length];
+        int[] sequences = new int[keyWords.length];
+        for (int i = 0; i < keyWords.length; i++) {
+            paths[i] = "/" + keyWords[i];
+            sequences[i] = nextSequences.getOrDefault(keyWords[i], -1);
+        }
+        webSocket.sendText(new Gson().toJson(new PushSubscribeRequest(paths, sequences)), true);
+        if (!acknowledged.await(PUSH_ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) || pushListener.isLost()) {
+            webSocket.abort();
+            throw new IOException("Push channel is not acknowledged");
+        }
+        return webSocket;
+    }
+
     /**
      * Function to update the storage server assigned to the subscriber.
      *
@@ -164,6 +407,67 @@ public class Subscriber {
         this.assignedStorageServer = storageServerInfo;
     }
 
+    /**
+     * Function to get the keywords of the subscriber that are owned by a naming server shard.
+     *
+     * @param router router of the naming server shards
+     * @param shard shard the keywords are owned by
+     * @return keywords owned by the shard
+     */
+    String[] ownedKeyWords(NamingShardRouter router, NamingServerInfo shard) {
+        List<String> owned = new ArrayList<>();
+        for (String keyWord : keyWords) {
+            if (router.route(keyWord) == shard) owned.add(keyWord);
+        }
+        return owned.toArray(new String[0]);
+    }
+
+    /**
+     * Function to load the read cursors committed by the subscriber from every naming server shard.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void loadCursors() throws IOException, InterruptedException {
+        ConcurrentHashMap<String, Long> loaded = new ConcurrentHashMap<>();
+        for (NamingServerInfo shard : router.getShards()) {
+            response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/get_cursors", new CursorRequest(subscriberID));
+            if (response.statusCode() != 200) continue;
+            CursorsReturn cursorsReturn = new Gson().fromJson(response.body(), CursorsReturn.class);
+            for (int i = 0; i < cursorsReturn.paths.length; i++) {
+                // cursors are committed for the keyword file, which sits right below the root
+                loaded.put(cursorsReturn.paths[i].substring(1), cursorsReturn.offsets[i]);
+            }
+        }
+        cursors = loaded;
+    }
+
+    /**
+     * Function to move the read cursor of a keyword and commit it to the naming server shard of the keyword.
+     *
+     * @param shard shard that owns the keyword
+     * @param keyWord keyword of the cursor
+     * @param offset byte offset up to which the keyword has been read
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void commitCursor(NamingServerInfo shard, String keyWord, long offset) throws IOException, InterruptedException {
+        cursors.put(keyWord, offset);
+        getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/commit_cursor",
+                new CursorRequest(subscriberID, "/" + keyWord, offset));
+    }
+
+    /**
+     * Function to get the id of the lease granted by a /lock request.
+     *
+     * @param lockResponse httpresponse of the /lock request
+     * @return lease id, 0 if no lease was granted
+     */
+    long getLeaseID(HttpResponse<String> lockResponse) {
+        if (lockResponse.statusCode() != 200 || lockResponse.body().isEmpty()) return 0;
+        return new Gson().fromJson(lockResponse.body(), LeaseReturn.class).lease_id;
+    }
+
     /**
      * Function to get HTTP Response from POST request with the provided uri and request object.
      *
@@ -181,4 +485,140 @@ public class Subscriber {
         return client.send(sendReq, HttpResponse.BodyHandlers.ofString());
     }
 
+    /**
+     * Function to get HTTP Response with raw bytes body from POST request with the provided uri and request object.
+     *
+     * @param uriStr the uri of the POST request
+     * @param reqObj the request object being sent by the POST request
+     * @return httpresponse from POST request, body is the raw bytes of the response
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    HttpResponse<byte[]> getBinaryHttpResponse(String uriStr, Object reqObj) throws IOException, InterruptedException {
+        HttpRequest sendReq = HttpRequest.newBuilder()
+                .uri(URI.create(uriStr))
+                .POST(HttpRequest.BodyPublishers.ofString(new Gson().toJson(reqObj)))
+                .build();
+        return client.send(sendReq, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Listener of the push channel, puts the frames of each pushed message back together
+     */
+    private class PushListener implements WebSocket.Listener {
+        /**
+         * called with every message pushed
+         */
+        private final Consumer<PushReturn> listener;
+        /**
+         * called when the channel is lost, null if nobody is told
+         */
+        private final Consumer<Throwable> closed;
+        /**
+         * counted down once for every keyword acknowledged
+         */
+        private final CountDownLatch acknowledged;
+        /**
+         * text of the message received so far
+         */
+        private final StringBuilder text = new StringBuilder();
+        /**
+         * whether the channel was closed by the storage server or failed
+         */
+        private volatile boolean lost;
+
+        /**
+         * Constructor to initialize push listener
+         *
+         * @param listener called with every message pushed
+         * @param closed called when the channel is lost, null if nobody is told
+         * @param acknowledged counted down once for every keyword acknowledged
+         */
+        PushListener(Consumer<PushReturn> listener, Consumer<Throwable> closed, CountDownLatch acknowledged) {
+            this.listener = listener;
+            this.closed = closed;
+            this.acknowledged = acknowledged;
+        }
+
+        /**
+         * Function to check if the channel was closed by the storage server or failed.
+         *
+         * @return boolean true if channel is lost
+         */
+        boolean isLost() {
+            return lost;
+        }
+
+        /**
+         * Function to handle one frame of a pushed message.
+         *
+         * @param webSocket web socket of the push channel
+         * @param data text of the frame
+         * @param last whether this is the last frame of the message
+         * @return null once the frame is handled
+         */
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            text.append(data);
+            if (last) {
+                PushReturn pushReturn = new Gson().fromJson(text.toString(), PushReturn.class);
+                text.setLength(0);
+                String keyWord = pushReturn.path.substring(1);
+                if (pushReturn.message == null) {
+                    // acknowledgement, sequence is the first message that will be pushed
+                    nextSequences.merge(keyWord, pushReturn.sequence, Math::max);
+                    acknowledged.countDown();
+                } else {
+                    nextSequences.merge(keyWord, pushReturn.sequence + 1, Math::max);
+                    listener.accept(pushReturn);
+                }
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        /**
+         * Function to handle the storage server closing the channel.
+         *
+         * @param webSocket web socket of the push channel
+         * @param statusCode close status code
+         * @param reason close reason
+         * @return null, the channel is closed on this side as well
+         */
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            // the subscriber closed the channel itself, this is only the storage server answering
+            if (webSocket.isOutputClosed()) return null;
+            lost(null);
+            return null;
+        }
+
+        /**
+         * Function to handle the channel failing.
+         *
+         * @param webSocket web socket of the push channel
+         * @param error error that failed the channel
+         */
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            lost(error);
+        }
+
+        /**
+         * Function to tell the caller the channel is lost, an open that is still waiting for acknowledgements fails
+         * instead.
+         *
+         * @param error error that failed the channel, null if the storage server closed it
+         */
+        private void lost(Throwable error) {
+            boolean opened = acknowledged.getCount() == 0;
+            lost = true;
+            while (acknowledged.getCount() > 0) {
+                acknowledged.countDown();
+            }
+            if (opened && closed != null) {
+                closed.accept(error);
+            }
+        }
+    }
 }
@@ -0,0 +1,25 @@
+package jsonhelper;
+
+public class CacheStatsReturn {
+    public long hits;
+    public long misses;
+    public long evictions;
+    public int entries;
+    public long bytes;
+    public long capacity_bytes;
+
+    public CacheStatsReturn(long hits, long misses, long evictions, int entries, long bytes, long capacity_bytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.bytes = bytes;
+        this.capacity_bytes = capacity_bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatsReturn: " + "hits = <" + hits + "> misses = <" + misses + "> evictions = <" + evictions
+                + "> entries = <" + entries + "> bytes = <" + bytes + "> capacity_bytes = <" + capacity_bytes + ">";
+    }
+}
@@ -0,0 +1,17 @@
+package jsonhelper;
+
+public class CursorRequest {
+    public String subscriberID;
+    public String path;
+    public long offset;
+
+    public CursorRequest(String subscriberID) {
+        this.subscriberID = subscriberID;
+    }
+
+    public CursorRequest(String subscriberID, String path, long offset) {
+        this.subscriberID = subscriberID;
+        this.path = path;
+        this.offset = offset;
+    }
+}
@@ -0,0 +1,11 @@
+package jsonhelper;
+
+public class CursorsReturn {
+    public String[] paths;
+    public long[] offsets;
+
+    public CursorsReturn(String[] paths, long[] offsets) {
+        this.paths = paths;
+        this.offsets = offsets;
+    }
+}
@@ -0,0 +1,15 @@
+package jsonhelper;
+
+public class IndexReturn {
+    public long start_offset;
+    public long size;
+    public int base_sequence;
+    public long[] offsets;
+
+    public IndexReturn(long start_offset, long size, int base_sequence, long[] offsets) {
+        this.start_offset = start_offset;
+        this.size = size;
+        this.base_sequence = base_sequence;
+        this.offsets = offsets;
+    }
+}
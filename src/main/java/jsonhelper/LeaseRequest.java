@@ -0,0 +1,9 @@
+package jsonhelper;
+
+public class LeaseRequest {
+    public long lease_id;
+
+    public LeaseRequest(long lease_id) {
+        this.lease_id = lease_id;
+    }
+}
@@ -0,0 +1,11 @@
+package jsonhelper;
+
+public class LeaseReturn {
+    public long lease_id;
+    public long expires_in_millis;
+
+    public LeaseReturn(long lease_id, long expires_in_millis) {
+        this.lease_id = lease_id;
+        this.expires_in_millis = expires_in_millis;
+    }
+}
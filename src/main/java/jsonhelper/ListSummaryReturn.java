@@ -0,0 +1,11 @@
+package jsonhelper;
+
+public class ListSummaryReturn {
+    public int file_count;
+    public ServerInfo[] storage_servers;
+
+    public ListSummaryReturn(int file_count, ServerInfo[] storage_servers) {
+        this.file_count = file_count;
+        this.storage_servers = storage_servers;
+    }
+}
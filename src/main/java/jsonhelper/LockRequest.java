@@ -4,6 +4,7 @@ public class LockRequest {
     public String path;
     public boolean exclusive;
     public String subscriberID;
+    public long lease_id;
 
     public LockRequest(String path, boolean exclusive) {
         this.path = path;
@@ -16,4 +17,10 @@ public class LockRequest {
         this.subscriberID = subID;
 
     }
+    public LockRequest(String path, boolean exclusive, String subID, long lease_id) {
+        this.path = path;
+        this.exclusive = exclusive;
+        this.subscriberID = subID;
+        this.lease_id = lease_id;
+    }
 }
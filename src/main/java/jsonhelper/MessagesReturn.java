@@ -0,0 +1,13 @@
+package jsonhelper;
+
+public class MessagesReturn {
+    public int sequence;
+    public int next_sequence;
+    public String[] messages;
+
+    public MessagesReturn(int sequence, int next_sequence, String[] messages) {
+        this.sequence = sequence;
+        this.next_sequence = next_sequence;
+        this.messages = messages;
+    }
+}
@@ -2,11 +2,21 @@ package jsonhelper;
 
 public class PublisherRegisterRequest {
     public String publisherID;
+    public String assigned_ip;
+    public int assigned_client_port;
+    public int assigned_command_port;
 
     public PublisherRegisterRequest(String pubID) {
         this.publisherID = pubID;
     }
 
+    public PublisherRegisterRequest(String pubID, String assigned_ip, int assigned_client_port, int assigned_command_port) {
+        this.publisherID = pubID;
+        this.assigned_ip = assigned_ip;
+        this.assigned_client_port = assigned_client_port;
+        this.assigned_command_port = assigned_command_port;
+    }
+
     @Override
     public String toString() {
         String result = "PublisherRegisterRequest: " + this.publisherID;
@@ -0,0 +1,13 @@
+package jsonhelper;
+
+public class PushReturn {
+    public String path;
+    public int sequence;
+    public String message;
+
+    public PushReturn(String path, int sequence, String message) {
+        this.path = path;
+        this.sequence = sequence;
+        this.message = message;
+    }
+}
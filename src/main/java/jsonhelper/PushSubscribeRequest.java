@@ -0,0 +1,16 @@
+package jsonhelper;
+
+public class PushSubscribeRequest {
+    public String[] paths;
+    public int[] sequences;
+
+    public PushSubscribeRequest(String[] paths, int[] sequences) {
+        this.paths = paths;
+        this.sequences = sequences;
+    }
+
+    @Override
+    public String toString() {
+        return "PushSubscribeRequest: " + "paths = <" + String.join(", ", paths) + ">";
+    }
+}
@@ -0,0 +1,27 @@
+package jsonhelper;
+
+public class ReadMessagesRequest {
+    public String path;
+    public int sequence;
+    public int count;
+
+    public ReadMessagesRequest(String path, int sequence, int count) {
+        this.path = path;
+        this.sequence = sequence;
+        this.count = count;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadMessagesRequest: " + "path = <" + path + "> sequence = <" + sequence + "> count = <" + count + ">";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof ReadMessagesRequest)) return false;
+        ReadMessagesRequest readMessagesRequest = (ReadMessagesRequest) obj;
+        return this.path.equals(readMessagesRequest.path) && this.sequence == readMessagesRequest.sequence
+                && this.count == readMessagesRequest.count;
+    }
+}
@@ -0,0 +1,21 @@
+package jsonhelper;
+
+public class ReadSinceRequest {
+    public String path;
+    public long offset;
+    public int length;
+    public long timeout_millis;
+
+    public ReadSinceRequest(String path, long offset, int length, long timeout_millis) {
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+        this.timeout_millis = timeout_millis;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadSinceRequest: " + "path = <" + path + "> offset = <" + offset + "> length = <" + length
+                + "> timeout_millis = <" + timeout_millis + ">";
+    }
+}
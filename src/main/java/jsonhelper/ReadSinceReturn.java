@@ -0,0 +1,13 @@
+package jsonhelper;
+
+public class ReadSinceReturn {
+    public long offset;
+    public long next_offset;
+    public String data;
+
+    public ReadSinceReturn(long offset, long next_offset, String data) {
+        this.offset = offset;
+        this.next_offset = next_offset;
+        this.data = data;
+    }
+}
@@ -0,0 +1,28 @@
+package jsonhelper;
+
+public class RetentionRequest {
+    public String path;
+    public long max_age_millis;
+    public long max_bytes;
+
+    public RetentionRequest(String path, long max_age_millis, long max_bytes) {
+        this.path = path;
+        this.max_age_millis = max_age_millis;
+        this.max_bytes = max_bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionRequest: " + "path = <" + path + "> max_age_millis = <" + max_age_millis + "> max_bytes = <"
+                + max_bytes + ">";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof RetentionRequest)) return false;
+        RetentionRequest retentionRequest = (RetentionRequest) obj;
+        return this.path.equals(retentionRequest.path) && this.max_age_millis == retentionRequest.max_age_millis
+                && this.max_bytes == retentionRequest.max_bytes;
+    }
+}
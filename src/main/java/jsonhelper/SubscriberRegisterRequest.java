@@ -3,12 +3,23 @@ package jsonhelper;
 public class SubscriberRegisterRequest {
     public String subscriberID;
     public String[] keyWords;
+    public String assigned_ip;
+    public int assigned_client_port;
+    public int assigned_command_port;
 
     public SubscriberRegisterRequest(String subID, String[] keyWords) {
         this.subscriberID = subID;
         this.keyWords = keyWords;
     }
 
+    public SubscriberRegisterRequest(String subID, String[] keyWords, String assigned_ip, int assigned_client_port, int assigned_command_port) {
+        this.subscriberID = subID;
+        this.keyWords = keyWords;
+        this.assigned_ip = assigned_ip;
+        this.assigned_client_port = assigned_client_port;
+        this.assigned_command_port = assigned_command_port;
+    }
+
     @Override
     public String toString() {
         String result = "SubscriberRegisterRequest: " + this.subscriberID;
@@ -0,0 +1,16 @@
+package jsonhelper;
+
+public class WriteBatchRequest {
+    public String[] paths;
+    public String[] data;
+
+    public WriteBatchRequest(String[] paths, String[] data) {
+        this.paths = paths;
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBatchRequest: " + "records = <" + paths.length + ">";
+    }
+}
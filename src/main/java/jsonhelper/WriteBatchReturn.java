@@ -0,0 +1,9 @@
+package jsonhelper;
+
+public class WriteBatchReturn {
+    public long[] offsets;
+
+    public WriteBatchReturn(long[] offsets) {
+        this.offsets = offsets;
+    }
+}
@@ -27,9 +27,10 @@ public class Directory {
      */
     private Directory parentDirectory;
     /**
-     * Map of current directory to all child directories
+     * Map of current directory to all child directories, keyed by the (interned) level name of the child. Concurrent
+     * so that lookups walk the tree without locking while a writer adds or removes children (see FileSystem.java)
      */
-    private HashMap<String, Directory> childDirectories = new HashMap<>();
+    private final ConcurrentHashMap<String, Directory> childDirectories = new ConcurrentHashMap<>();
     /**
      * Boolean of whether current directory is a file or not
      */
@@ -40,35 +41,34 @@ public class Directory {
     private ConcurrentHashMap<String, StorageServerInfo> storageServerMap = new ConcurrentHashMap<>();
 
     /**
-     * HashSet the subscriber that who subscribe this file
+     * Concurrent set the subscriber that who subscribe this file
      */
-    private HashSet<String> subscriberSet = new HashSet<>();
+    private final Set<String> subscriberSet = ConcurrentHashMap.newKeySet();
 
     /**
-     * Interger of shared lock count, served as semaphore for shared locking mechanism, need synchronized protection
-     *
+     * FIFO fair shared/exclusive lock of current directory, details refer to DirectoryLock.java
      */
-    private int sharedLockCnt;
+    private final DirectoryLock lock = new DirectoryLock();
     /**
-     * Boolean of exclusive write, served as mutex for exclusive locking mechanism, need synchronized protection
+     * Integer value of how many read times that file need to be replicated
      */
-    private boolean exclusiveWrite;
+    private final int replicateScale = 20;
     /**
-     * Serving queue for load balancing, need synchronized protection
+     * integer value of counting how many file reads
      */
-    private Queue<Integer> queue;
+    private int fileReadCnt;
     /**
-     * Integer for miliseconds delay during thread sleep
+     * Number of files in the subtree of current directory (itself included if it's a file), guarded by this
      */
-    private final int delayMiliSec = 1;
+    private int subtreeFileCount;
     /**
-     * Integer value of how many read times that file need to be replicated
+     * Map of server key to number of files in the subtree of current directory stored on that server, guarded by this
      */
-    private final int replicateScale = 20;
+    private final HashMap<String, Integer> subtreeServerCounts = new HashMap<>();
     /**
-     * integer value of counting how many file reads
+     * Map of server key to storage server that stores files in the subtree of current directory, guarded by this
      */
-    private int fileReadCnt;
+    private final HashMap<String, StorageServerInfo> subtreeServers = new HashMap<>();
 
     /**
      * Constructor for Directory
@@ -81,12 +81,10 @@ public class Directory {
      */
     public Directory(String pathName, String name, Directory parentDirectory, boolean isFile, StorageServerInfo storageServerInfo) {
         this.pathName = pathName;
-        this.name = name;
+        // level names repeat across the tree (e.g. the same keyword under many topics), keep one copy of each
+        this.name = name.intern();
         this.isFile = isFile;
         this.parentDirectory = parentDirectory;
-        this.sharedLockCnt = 0;
-        this.exclusiveWrite = false;
-        this.queue = new LinkedList<>();
         this.fileReadCnt = 0;
         if (storageServerInfo != null) {
             this.storageServerMap.put(storageServerInfo.getClientPort() + "/" + storageServerInfo.getCommandPort(), storageServerInfo);
@@ -121,9 +119,9 @@ public class Directory {
     /**
      * Get child directories of current director
      *
-     * @return hash map of directories of child directory
+     * @return concurrent map of directories of child directory
      */
-    public HashMap<String, Directory> getChildDirectories() {
+    public ConcurrentHashMap<String, Directory> getChildDirectories() {
         return this.childDirectories;
     }
 
@@ -141,7 +139,7 @@ public class Directory {
      * @return integer of shared lock count
      */
     public int getsharedLockCnt() {
-        return sharedLockCnt;
+        return lock.getSharedCount();
     }
 
     /**
@@ -158,7 +156,7 @@ public class Directory {
      *
      * @return hash mapping table of storage server that contains current directory
      */
-    public HashSet<String> getSubscriberSet() {
+    public Set<String> getSubscriberSet() {
         return this.subscriberSet;
     }
 
@@ -166,6 +164,7 @@ public class Directory {
      * Add subscriber mapping table
      */
     public void addSubscriber(String subscriberID) {
+        if (subscriberID == null) return;
         this.subscriberSet.add(subscriberID);
     }
 
@@ -173,6 +172,7 @@ public class Directory {
      * Remove subscriber mapping table
      */
     public void removeSubscriber(String subscriberID) {
+        if (subscriberID == null) return;
         this.subscriberSet.remove(subscriberID);
     }
 
@@ -182,19 +182,27 @@ public class Directory {
      * @param directory directory to be added
      */
     public void addChildDirectory(Directory directory) {
-        if (!hasChildDirectory(directory.pathName)) {
-            this.childDirectories.put(directory.pathName, directory);
-        }
+        this.childDirectories.putIfAbsent(directory.name, directory);
     }
 
     /**
      * Justify if has child directories
      *
-     * @param directoryPathName directory path name
+     * @param name level name of the child directory
      * @return boolean of whether has child directory or not
      */
-    public boolean hasChildDirectory(String directoryPathName) {
-        return this.childDirectories.containsKey(directoryPathName);
+    public boolean hasChildDirectory(String name) {
+        return this.childDirectories.containsKey(name);
+    }
+
+    /**
+     * Get child directory by its level name
+     *
+     * @param name level name of the child directory
+     * @return Directory of the child, null if there is no such child
+     */
+    public Directory getChildDirectory(String name) {
+        return this.childDirectories.get(name);
     }
 
     /**
@@ -215,7 +223,11 @@ public class Directory {
      * @param storageServerInfo   storage server information
      */
     void addStorageServerInfo(String serverKey, StorageServerInfo storageServerInfo) {
-        this.storageServerMap.put(serverKey, storageServerInfo);
+        if (this.storageServerMap.put(serverKey, storageServerInfo) == null && this.isFile) {
+            for (Directory directory = this; directory != null; directory = directory.parentDirectory) {
+                directory.adjustSubtreeServer(serverKey, storageServerInfo, 1);
+            }
+        }
     }
 
     /**
@@ -224,61 +236,153 @@ public class Directory {
      * @param serverKey           key (client port + "/" + command port)
      */
     void removeStorageServerInfo(String serverKey) {
-        this.storageServerMap.remove(serverKey);
+        StorageServerInfo storageServerInfo = this.storageServerMap.remove(serverKey);
+        if (storageServerInfo != null && this.isFile) {
+            for (Directory directory = this; directory != null; directory = directory.parentDirectory) {
+                directory.adjustSubtreeServer(serverKey, storageServerInfo, -1);
+            }
+        }
     }
 
+    /**
+     * Add a newly created file to the subtree aggregates of itself and every ancestor, must be called once the file
+     * is attached to its parent
+     */
+    void attachAggregates() {
+        if (!this.isFile) return;
+        for (Directory directory = this; directory != null; directory = directory.parentDirectory) {
+            directory.adjustSubtree(1, this.storageServerMap, 1);
+        }
+    }
 
     /**
-     * Execute exclusive lock procedure, if either follwing three condition is true, thread has to wait
-     *  1. Current thread is in queue
-     *  2. Directory already exclusive lock by others
-     *  3. Shared lock by others
-     *  After that, thread can modified exclusive write mutex to true, preventing others access current directory
-     *
-     * @param threadIndex      unique integer index for thread
+     * Remove the whole subtree of current directory from the subtree aggregates of every ancestor, must be called
+     * before current directory is detached from its parent
      */
-    void exclusiveLock(int threadIndex) throws InterruptedException {
+    void detachAggregates() {
+        int fileCount;
+        HashMap<String, Integer> serverCounts;
+        HashMap<String, StorageServerInfo> servers;
         synchronized (this) {
-            this.queue.add(threadIndex);
+            fileCount = this.subtreeFileCount;
+            serverCounts = new HashMap<>(this.subtreeServerCounts);
+            servers = new HashMap<>(this.subtreeServers);
         }
-        while (queue.peek() != threadIndex || this.exclusiveWrite || this.sharedLockCnt > 0) {
-            Thread.sleep(this.delayMiliSec);
+        for (Directory directory = this.parentDirectory; directory != null; directory = directory.parentDirectory) {
+            synchronized (directory) {
+                directory.subtreeFileCount -= fileCount;
+                for (Map.Entry<String, Integer> entry : serverCounts.entrySet()) {
+                    directory.adjustSubtreeServer(entry.getKey(), servers.get(entry.getKey()), -entry.getValue());
+                }
+            }
         }
-        synchronized (this) {
-            this.exclusiveWrite = true;
-            queue.remove();
+    }
+
+    /**
+     * Apply a change of files to the subtree aggregates of current directory
+     *
+     * @param fileDelta   change of the file count
+     * @param servers     storage servers of the files
+     * @param serverDelta change of the file count of each storage server
+     */
+    private synchronized void adjustSubtree(int fileDelta, Map<String, StorageServerInfo> servers, int serverDelta) {
+        this.subtreeFileCount += fileDelta;
+        for (Map.Entry<String, StorageServerInfo> entry : servers.entrySet()) {
+            adjustSubtreeServer(entry.getKey(), entry.getValue(), serverDelta);
         }
     }
 
+    /**
+     * Apply a change of the file count of one storage server to the subtree aggregates of current directory
+     *
+     * @param serverKey         key (client port + "/" + command port)
+     * @param storageServerInfo storage server information
+     * @param delta             change of the file count of the server
+     */
+    private synchronized void adjustSubtreeServer(String serverKey, StorageServerInfo storageServerInfo, int delta) {
+        int count = this.subtreeServerCounts.getOrDefault(serverKey, 0) + delta;
+        if (count <= 0) {
+            this.subtreeServerCounts.remove(serverKey);
+            this.subtreeServers.remove(serverKey);
+        } else {
+            this.subtreeServerCounts.put(serverKey, count);
+            this.subtreeServers.put(serverKey, storageServerInfo);
+        }
+    }
+
+    /**
+     * Get number of files in the subtree of current directory
+     *
+     * @return file count, 1 for a file
+     */
+    public synchronized int getSubtreeFileCount() {
+        return this.subtreeFileCount;
+    }
+
+    /**
+     * Get the storage servers that store any file in the subtree of current directory
+     *
+     * @return List of storage servers, a snapshot
+     */
+    public synchronized List<StorageServerInfo> getSubtreeStorageServers() {
+        return new ArrayList<>(this.subtreeServers.values());
+    }
+
+
+    /**
+     * Execute lock procedure in any mode, thread has to wait while either of the following is true
+     *  1. Earlier lock requests are still in queue
+     *  2. Directory is held by others in a mode that is not compatible, details refer to LockMode.java
+     *
+     * @param mode             mode to lock in
+     * @param owner            owner token of the request, details refer to LeaseManager.java
+     */
+    void lock(LockMode mode, long owner) throws InterruptedException {
+        lock.lock(mode, owner);
+    }
+
+    /**
+     * Execute unlock procedure in any mode, release one hold and wake up the next waiting thread
+     *
+     * @param mode             mode the directory was locked in
+     */
+    void unlock(LockMode mode) {
+        lock.unlock(mode);
+    }
+
+    /**
+     * Execute exclusive lock procedure, thread has to wait while either of the following is true
+     *  1. Earlier lock requests are still in queue
+     *  2. Directory already exclusive lock by others
+     *  3. Shared lock by others
+     *  The waiting thread is parked and woken up when the lock is released, details refer to DirectoryLock.java
+     *
+     * @param owner            owner token of the request, details refer to LeaseManager.java
+     */
+    void exclusiveLock(long owner) throws InterruptedException {
+        lock.lockExclusive(owner);
+    }
+
     /**
      * Check if exclusive lock invalid, if true then it's invalid
      *
      * @return boolean true if invalid otherwise false
      */
     boolean isExclusiveLockInvalid() {
-        return this.exclusiveWrite == true;
+        return lock.isExclusive();
     }
 
     /**
-     * Execute shared lock procedure, if either follwing three condition is true, thread has to wait
-     *  1. Current thread is in queue
+     * Execute shared lock procedure, thread has to wait while either of the following is true
+     *  1. Earlier lock requests are still in queue
      *  2. Directory already exclusive lock by others
      *  After that, thread can add shared lock count, and for those want to shared lock, they are allowed as well
      *  However, exclusive lock users have to wait
      *
-     * @param threadIndex      unique integer index for thread
+     * @param owner            owner token of the request, details refer to LeaseManager.java
      */
-    void sharedLock(int threadIndex) throws InterruptedException {
-        synchronized (this) {
-            this.queue.add(threadIndex);
-        }
-        while (queue.peek() != threadIndex || this.exclusiveWrite) {
-            Thread.sleep(this.delayMiliSec);
-        }
-        synchronized (this) {
-            queue.remove();
-            this.sharedLockCnt+=1;
-        }
+    void sharedLock(long owner) throws InterruptedException {
+        lock.lockShared(owner);
     }
 
     /**
@@ -287,17 +391,15 @@ public class Directory {
      * @return boolean true if invalid otherwise false
      */
     boolean isSharedLockInvalid() {
-        return this.sharedLockCnt < 0;
+        return lock.getSharedCount() < 0;
     }
 
     /**
-     * Execute exclusive unlock procedure, just modify exclusive write to false
+     * Execute exclusive unlock procedure, release the exclusive lock and wake up the next waiting thread
      *
      */
     void exclusiveUnlock() {
-        synchronized (this) {
-            this.exclusiveWrite = false;
-        }
+        lock.unlockExclusive();
     }
 
     /**
@@ -306,17 +408,15 @@ public class Directory {
      * @return boolean true if invalid otherwise false
      */
     boolean isExclusiveUnlockInvalid() {
-        return this.exclusiveWrite == false;
+        return !lock.isExclusive();
     }
 
     /**
-     * Execute shared unlock procedure, just minus one on shared lock count
+     * Execute shared unlock procedure, release one shared lock and wake up the next waiting thread
      *
      */
     void sharedUnlock() {
-        synchronized (this) {
-            this.sharedLockCnt-=1;
-        }
+        lock.unlockShared();
     }
 
     /**
@@ -325,7 +425,7 @@ public class Directory {
      * @return boolean true if invalid otherwise false
      */
     boolean isSharedUnlockInvalid() {
-        return this.sharedLockCnt <= 0;
+        return lock.getSharedCount() <= 0;
     }
 
     /**
@@ -334,7 +434,7 @@ public class Directory {
      * @return boolean true if invalid otherwise false
      */
     boolean isReadCountInvalid() {
-        return this.sharedLockCnt < 0;
+        return lock.getSharedCount() < 0;
     }
 
     /**
@@ -363,6 +463,16 @@ public class Directory {
                 this.fileReadCnt+=1;
         }
     }
+    /**
+     * Undo one addFileReadCnt, for a lock request that gave up before it was granted
+     */
+    void removeFileReadCnt() {
+        synchronized (this) {
+            if (this.isFile && this.fileReadCnt > 0)
+                this.fileReadCnt-=1;
+        }
+    }
+
     /**
      * Reset file read count number to zero
      */
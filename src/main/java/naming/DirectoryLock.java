@@ -0,0 +1,255 @@
+package naming;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Directory Lock -- FIFO fair multi-granularity lock of one directory (or file) in the naming server, the modes and
+ * which of them can be held together are described in LockMode.java. Requests are served strictly in arrival order:
+ * only the request at the head of the queue may take the lock, and it takes it once its mode is compatible with every
+ * mode currently held. A request that gets the lock lets the next request in the queue try right away, so a run of
+ * compatible requests (e.g. shared requests, or intention requests passing through an ancestor) is granted together,
+ * while a later request never overtakes an incompatible request that is waiting before it.
+ *
+ * Waiting requests are parked on their own condition and only the head of the queue is woken when the lock state
+ * changes, so a waiting /lock request doesn't burn CPU and a handoff doesn't wait for a polling interval.
+ */
+public class DirectoryLock {
+    /**
+     * Mutex that guards the state and the queue of this lock
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+    /**
+     * Requests waiting for the lock, in arrival order
+     */
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    /**
+     * Number of holders of each mode, indexed by LockMode.ordinal()
+     */
+    private final int[] holdCounts = new int[LockMode.values().length];
+
+    /**
+     * One request waiting for the lock
+     */
+    private static class Waiter {
+        /**
+         * Owner token of the request
+         */
+        final long owner;
+        /**
+         * Mode the request wants the lock in
+         */
+        final LockMode mode;
+        /**
+         * Condition the request is parked on
+         */
+        final Condition ready;
+
+        /**
+         * Constructor for waiter
+         *
+         * @param owner owner token of the request
+         * @param mode  mode the request wants the lock in
+         * @param ready condition the request is parked on
+         */
+        Waiter(long owner, LockMode mode, Condition ready) {
+            this.owner = owner;
+            this.mode = mode;
+            this.ready = ready;
+        }
+    }
+
+    /**
+     * Take the lock in a mode, wait until every earlier request is served and the mode is compatible with every mode
+     * currently held
+     *
+     * @param mode  mode to take the lock in
+     * @param owner owner token of the request
+     * @throws InterruptedException if interrupted while waiting, the request leaves the queue then
+     */
+    public void lock(LockMode mode, long owner) throws InterruptedException {
+        mutex.lock();
+        try {
+            Waiter waiter = enqueue(owner, mode);
+            while (queue.peek() != waiter || !isGrantable(mode)) {
+                await(waiter);
+            }
+            queue.poll();
+            holdCounts[mode.ordinal()]++;
+            // the next request may be compatible with this one as well
+            signalHead();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Release a hold of the lock in a mode
+     *
+     * @param mode mode the lock was taken in
+     */
+    public void unlock(LockMode mode) {
+        mutex.lock();
+        try {
+            holdCounts[mode.ordinal()]--;
+            signalHead();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Take the lock shared, see lock
+     *
+     * @param owner owner token of the request
+     * @throws InterruptedException if interrupted while waiting, the request leaves the queue then
+     */
+    public void lockShared(long owner) throws InterruptedException {
+        lock(LockMode.SHARED, owner);
+    }
+
+    /**
+     * Take the lock exclusively, see lock
+     *
+     * @param owner owner token of the request
+     * @throws InterruptedException if interrupted while waiting, the request leaves the queue then
+     */
+    public void lockExclusive(long owner) throws InterruptedException {
+        lock(LockMode.EXCLUSIVE, owner);
+    }
+
+    /**
+     * Release a shared hold of the lock
+     */
+    public void unlockShared() {
+        unlock(LockMode.SHARED);
+    }
+
+    /**
+     * Release the exclusive hold of the lock
+     */
+    public void unlockExclusive() {
+        unlock(LockMode.EXCLUSIVE);
+    }
+
+    /**
+     * Get number of holders of a mode
+     *
+     * @param mode lock mode
+     * @return hold count of the mode
+     */
+    public int getHoldCount(LockMode mode) {
+        mutex.lock();
+        try {
+            return holdCounts[mode.ordinal()];
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Get number of shared holders
+     *
+     * @return shared hold count
+     */
+    public int getSharedCount() {
+        return getHoldCount(LockMode.SHARED);
+    }
+
+    /**
+     * Check if lock is held exclusively
+     *
+     * @return boolean true if held exclusively
+     */
+    public boolean isExclusive() {
+        return getHoldCount(LockMode.EXCLUSIVE) > 0;
+    }
+
+    /**
+     * Get number of requests waiting for the lock
+     *
+     * @return queue length
+     */
+    public int getQueueLength() {
+        mutex.lock();
+        try {
+            return queue.size();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Check if a mode is compatible with every mode currently held, must hold mutex
+     *
+     * @param mode mode to be taken
+     * @return boolean true if the mode can be taken now
+     */
+    private boolean isGrantable(LockMode mode) {
+        for (LockMode held : LockMode.values()) {
+            if (holdCounts[held.ordinal()] > 0 && !mode.isCompatibleWith(held)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add a request to the end of the queue, must hold mutex
+     *
+     * @param owner owner token of the request
+     * @param mode  mode the request wants the lock in
+     * @return Waiter of the request
+     */
+    private Waiter enqueue(long owner, LockMode mode) {
+        Waiter waiter = new Waiter(owner, mode, mutex.newCondition());
+        queue.add(waiter);
+        return waiter;
+    }
+
+    /**
+     * Park a request until it's woken, must hold mutex. An interrupted request leaves the queue and passes the turn
+     * on to the request after it.
+     *
+     * @param waiter request to be parked
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void await(Waiter waiter) throws InterruptedException {
+        try {
+            waiter.ready.await();
+        } catch (InterruptedException e) {
+            queue.remove(waiter);
+            signalHead();
+            throw e;
+        }
+    }
+
+    /**
+     * Wake the request at the head of the queue so it can check if it may take the lock, must hold mutex
+     */
+    private void signalHead() {
+        Waiter head = queue.peek();
+        if (head != null) {
+            head.ready.signal();
+        }
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public String toString() {
+        mutex.lock();
+        try {
+            Waiter head = queue.peek();
+            return "DirectoryLock: hold_counts = <" + Arrays.toString(holdCounts) + "> queue_length = <"
+                    + queue.size() + "> head = <" + (head == null ? "none" : head.owner + " " + head.mode) + ">";
+        } finally {
+            mutex.unlock();
+        }
+    }
+}
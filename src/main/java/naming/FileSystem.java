@@ -1,6 +1,9 @@
 package naming;
 
+import common.Path;
+
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**Authors : Sheng-Hao Wu, Kevin Li */
 
@@ -10,6 +13,15 @@ import java.util.*;
  * System support create, delete, search, check, list all the directories and filese in this
  * system. Naming server based on this file system properties and know what exactly is going
  * on outward in those storage servers it connects to.
+ *
+ * Every directory keys its children by their level name, and every node is also indexed by its full path name, so
+ * resolving a path is a single hash probe. Every directory also keeps aggregates of its subtree (file count and the
+ * storage servers involved), updated as files are created and deleted, so summaries and recursive deletes don't walk
+ * the subtree. The tree itself is only walked to list the files of a subtree.
+ *
+ * Child maps are concurrent, so lookups (/is_directory, /list, /getstorage, ...) never take a lock. Changes to the
+ * tree (create, delete) are serialized against one another by synchronizing on the file system, so two writers
+ * never see each other half done.
  */
 
 public class FileSystem {
@@ -19,10 +31,20 @@ public class FileSystem {
      */
     Directory rootDirectory = new Directory("/", "", null, false, null);
 
+    /**
+     * Map of normalized full path name to every directory (or file) in the tree, kept in sync by create and delete
+     */
+    private final ConcurrentHashMap<String, Directory> pathIndex = new ConcurrentHashMap<>();
+    /**
+     * Journal every change of the tree is appended to, null if the naming server doesn't keep a journal
+     */
+    private NamingJournal journal;
+
     /**
      * Constructor for FileSystem
      */
     public FileSystem() {
+        pathIndex.put(rootDirectory.getPathName(), rootDirectory);
     }
 
     /**
@@ -31,65 +53,86 @@ public class FileSystem {
      * @param path String of path need to be included for FileSystem
      */
     public FileSystem(String path) {
+        this();
         this.createFile(path, null);
     }
 
+    /**
+     * Set the journal every change of the tree is appended to. Changes are appended while the tree is locked for
+     * writing, so the journal has them in the order they were applied.
+     *
+     * @param journal naming journal, null to stop journaling
+     */
+    synchronized void setJournal(NamingJournal journal) {
+        this.journal = journal;
+    }
+
     /**
      * Create file in file system. Need the path name and which storage server contains current file
-     * Traverse all the directory name like prefix strings, and for each level of directory, need to creat
+     * Walk down the components of the path, and for each level of directory that doesn't exist yet, need to creat
      * that Directory (File) Object
      *
      * @param path String of path need to be included for FileSystem
      * @param storageServerInfo storage server that contains current file
+     * @return Directory of the file, null if a file or directory already existed at the path
      */
-    void createFile(String path, StorageServerInfo storageServerInfo) {
-        String[] directoryList = format(path);
+    synchronized Directory createFile(String path, StorageServerInfo storageServerInfo) {
+        Path components = new Path(path);
+        int last = components.components_size() - 1;
 
         Directory curDirectory = this.rootDirectory;
-        String directoryPathName = "";
-        // traverse all the directory name like prefix strings
-        for (int i = 0; i < directoryList.length; i++) {
-            directoryPathName += "/" + directoryList[i];
-            if (curDirectory.hasChildDirectory(directoryPathName)) {
-                curDirectory = curDirectory.getChildDirectories().get(directoryPathName);
-            } else {
-                Directory newDirectory;
+        boolean created = false;
+        int i = 0;
+        for (String component : components) {
+            Directory childDirectory = curDirectory.getChildDirectory(component);
+            if (childDirectory == null) {
                 // only file that need to consider storage server, since storage server doesn't store directory
-                if (i == directoryList.length - 1) {
-                    newDirectory = new Directory(directoryPathName, directoryList[i], curDirectory, true, storageServerInfo);
+                if (i == last) {
+                    childDirectory = new Directory(childPathName(curDirectory, component), component, curDirectory, true, storageServerInfo);
+                    created = true;
                 } else {
-                    newDirectory = new Directory(directoryPathName, directoryList[i], curDirectory, false, null);
+                    childDirectory = new Directory(childPathName(curDirectory, component), component, curDirectory, false, null);
                 }
-                curDirectory.addChildDirectory(newDirectory);
-                curDirectory = newDirectory;
+                curDirectory.addChildDirectory(childDirectory);
+                pathIndex.put(childDirectory.getPathName(), childDirectory);
+                childDirectory.attachAggregates();
             }
+            curDirectory = childDirectory;
+            i++;
         }
+        if (!created) return null;
+        if (journal != null) {
+            journal.append(new JournalRecord(JournalRecord.Op.CREATE_FILE, curDirectory.getPathName(), null, storageServerInfo));
+        }
+        return curDirectory;
     }
 
     /**
-     * Create directory in file system. Need the path name. Traverse all the directory name like prefix strings,
-     * and for each level of directory, need to creat that Directory (File) Object
+     * Create directory in file system. Need the path name. Walk down the components of the path, and for each level
+     * of directory that doesn't exist yet, need to creat that Directory (File) Object
      *
      * @param path String of path need to be included for FileSystem
      */
-    void createDirectory(String path) {
+    synchronized void createDirectory(String path) {
         if (!parentDirectoryExist(path)) {
             System.out.println("parent directory doesn't exist");
             return;
         }
 
-        String[] directoryList = format(path);
         Directory curDirectory = this.rootDirectory;
-        String directoryPathName = "";
-        for (int i = 0; i < directoryList.length; i++) {
-            directoryPathName += "/" + directoryList[i];
-            if (curDirectory.hasChildDirectory(directoryPathName)) {
-                curDirectory = curDirectory.getChildDirectories().get(directoryPathName);
-            } else {
-                Directory newDirectory = new Directory(directoryPathName, directoryList[i], curDirectory, false, null);
-                curDirectory.addChildDirectory(newDirectory);
-                curDirectory = newDirectory;
+        boolean created = false;
+        for (String component : new Path(path)) {
+            Directory childDirectory = curDirectory.getChildDirectory(component);
+            if (childDirectory == null) {
+                childDirectory = new Directory(childPathName(curDirectory, component), component, curDirectory, false, null);
+                curDirectory.addChildDirectory(childDirectory);
+                pathIndex.put(childDirectory.getPathName(), childDirectory);
+                created = true;
             }
+            curDirectory = childDirectory;
+        }
+        if (created && journal != null) {
+            journal.append(new JournalRecord(JournalRecord.Op.CREATE_DIRECTORY, curDirectory.getPathName(), null, null));
         }
     }
 
@@ -97,29 +140,55 @@ public class FileSystem {
      * Delete file, check if file exists then delete it. After delete the file, check if those parent directory
      * is empty (not including any files), then they should also be deleted. To achieve this, recursively trace up
      * to the parent directory and check if it's child directories is empty, then delete it recursively trace up
-     * until reach the root directory
+     * until reach the root directory. Every removed directory and its whole subtree are dropped from the path index.
      *
      *
      * @param path String of path need to be included for FileSystem
      */
-    void deleteFile(String path) {
-        if (path.equals("/")) return;
-        path = path.substring(1);
-        Directory curDirectory = findFile(path);
-        if (curDirectory == null) {
+    synchronized void deleteFile(String path) {
+        deleteFile(findFile(path));
+    }
+
+    /**
+     * Delete a file (or directory) that was already resolved, see deleteFile(String)
+     *
+     * @param curDirectory directory (or file) to be deleted, nothing is deleted if null
+     */
+    synchronized void deleteFile(Directory curDirectory) {
+        if (curDirectory == null || curDirectory == rootDirectory) {
             return;
         }
+        if (journal != null) {
+            journal.append(new JournalRecord(JournalRecord.Op.DELETE, curDirectory.getPathName(), null, null));
+        }
+        unindex(curDirectory);
+        curDirectory.detachAggregates();
         do {
             if (curDirectory.getParentDirectory() == rootDirectory) {
-                rootDirectory.getChildDirectories().remove(curDirectory.getPathName());
+                rootDirectory.getChildDirectories().remove(curDirectory.getName());
                 break;
             }
             Directory parent = curDirectory.getParentDirectory();
-            parent.getChildDirectories().remove(curDirectory.getPathName());
+            parent.getChildDirectories().remove(curDirectory.getName());
             curDirectory = parent;
+            if (curDirectory.getChildDirectories().size() == 0) {
+                pathIndex.remove(curDirectory.getPathName());
+            }
         } while(curDirectory.getChildDirectories().size() == 0);
     }
 
+    /**
+     * Drop a directory and its whole subtree from the path index
+     *
+     * @param directory root of the subtree to be dropped
+     */
+    private void unindex(Directory directory) {
+        pathIndex.remove(directory.getPathName());
+        for (Directory childDirectory : directory.getChildDirectories().values()) {
+            unindex(childDirectory);
+        }
+    }
+
     /**
      * Check is current path is valid ot not
      *
@@ -163,7 +232,16 @@ public class FileSystem {
      * @return array of string files name that existed under that level of directory
      */
     String[] listFiles(String path) {
-        Directory directory = findFile(path);
+        return listFiles(findFile(path));
+    }
+
+    /**
+     * List all the files that under a directory that was already resolved.
+     *
+     * @param directory directory need to be checked
+     * @return array of string files name that existed under that level of directory
+     */
+    String[] listFiles(Directory directory) {
         List<String> returnedFiles = new ArrayList<String>();
 
         for (Directory childDirectory : directory.getChildDirectories().values()) {
@@ -181,29 +259,42 @@ public class FileSystem {
      *
      */
     String[] listAllFiles(String path) {
-        Directory directory = findFile(path);
-        List<String> returnedFiles = new ArrayList<String>();
+        List<Directory> files = listAllFiles(findFile(path));
+        String[] returnedFiles = new String[files.size()];
+        for (int i = 0; i < returnedFiles.length; i++) {
+            returnedFiles[i] = files.get(i).getPathName();
+        }
+        return returnedFiles;
+    }
+
+    /**
+     * List all the files under a directory that was already resolved, as well as under its child directories
+     *
+     * @param directory directory (or file) need to be checked
+     * @return List of files under that directory, the file itself if it's a file
+     */
+    List<Directory> listAllFiles(Directory directory) {
+        List<Directory> returnedFiles = new ArrayList<>();
         if (directory != null && directory.isFile()) {
-            returnedFiles.add(directory.getPathName());
+            returnedFiles.add(directory);
         } else {
             for (Directory childDirectory : directory.getChildDirectories().values()) {
                 search(childDirectory, returnedFiles);
             }
         }
-        return returnedFiles.toArray(new String[returnedFiles.size()]);
-
+        return returnedFiles;
     }
 
     /**
      * Recursioni search function help to traverse down all the child directory based on current directory
      *
      * @param directory Current directory that waiting to be explored
-     * @param returnedFiles List of string that need to be returned
+     * @param returnedFiles List of files that need to be returned
      *
      */
-    void search(Directory directory, List<String> returnedFiles) {
+    void search(Directory directory, List<Directory> returnedFiles) {
         if (directory.isFile()) {
-            returnedFiles.add(directory.getPathName());
+            returnedFiles.add(directory);
             return;
         }
         for (Directory childDirectory : directory.getChildDirectories().values()) {
@@ -218,56 +309,76 @@ public class FileSystem {
      * @return boolean that if parent directory exist for current path
      */
     boolean parentDirectoryExist(String path) {
-        if (path.equals("/") || path.equals("//")) return true;
-        String[] directoryList = format(path);
-        Directory curDirectory = this.rootDirectory;
-        String directoryPathName = "";
-        for (int i = 0; i < directoryList.length; i++) {
-            directoryPathName = '/' + directoryList[i];
-            if (i < directoryList.length - 1 && !curDirectory.hasChildDirectory(directoryPathName)) {
-                return false;
-            }
-        }
-        return true;
+        if (!isValidPath(path)) return false;
+        String normalized = normalize(path);
+        if (normalized.equals("/")) return true;
+        int last = normalized.lastIndexOf('/');
+        return pathIndex.containsKey(last == 0 ? "/" : normalized.substring(0, last));
     }
 
 
     /**
-     * Find the directory object based on specific path
+     * Find the directory object based on specific path, a single probe of the path index
      *
      * @param path path that need to search for that directory
      * @return Directory that found based on path
      */
     Directory findFile(String path) {
         if (!isValidPath(path)) return null;
-        if (path.equals("/") || path.equals("//")) return rootDirectory;
-
-        String[] directoryList = format(path);
-        String directoryPathName = "";
-        Directory curDirectory = rootDirectory;
-        for (int i = 0; i < directoryList.length; i++) {
-            directoryPathName += "/" + directoryList[i];
-
-            if (curDirectory.hasChildDirectory(directoryPathName)) {
-                curDirectory = curDirectory.getChildDirectories().get(directoryPathName);
-            } else {
-                return null;
-            }
+        return pathIndex.get(normalize(path));
+    }
+
+    /**
+     * Resolve the path of a request once: validate it, normalize it and look it up in the path index
+     *
+     * @param path path of the request, may be null
+     * @return PathResolution of the path
+     */
+    PathResolution resolve(String path) {
+        if (path == null || !isValidPath(path)) {
+            return new PathResolution(PathResolution.Status.INVALID, path, null);
         }
-        return curDirectory;
+        String normalized = normalize(path);
+        Directory directory = pathIndex.get(normalized);
+        return new PathResolution(directory == null ? PathResolution.Status.NOT_FOUND : PathResolution.Status.FOUND,
+                normalized, directory);
+    }
+
+    /**
+     * Find every directory from the root down to a directory, by following its parents
+     *
+     * @param directory directory (or file) of the path
+     * @return List of directories from the root to the directory (both included)
+     */
+    List<Directory> findPathDirectories(Directory directory) {
+        List<Directory> directories = new ArrayList<>();
+        for (Directory curDirectory = directory; curDirectory != null; curDirectory = curDirectory.getParentDirectory()) {
+            directories.add(curDirectory);
+        }
+        Collections.reverse(directories);
+        return directories;
+    }
+
+    /**
+     * Normalize a valid path to the form it's indexed with, i.e: /dir1/dir2/file
+     *
+     * @param path path to be normalized
+     * @return String of normalized path, path itself if it's already normalized
+     */
+    String normalize(String path) {
+        if (path.equals("/") || (path.indexOf("//") < 0 && path.charAt(path.length() - 1) != '/')) return path;
+        return new Path(path).toString();
     }
 
     /**
-     * Format the path string to standardized format, i.e: dir1/dir2/file, then split it based
-     * on diameter "/"
+     * Get the path name of a new child directory
      *
-     * @param path path that need to be formatted and splitted
-     * @return Array of string for each level of directory name
+     * @param parentDirectory parent of the child
+     * @param name level name of the child
+     * @return String of the path name of the child
      */
-    String[] format(String path) {
-        if(path.length() > 1 && path.charAt(1) == '/') return path.substring(2).split("/");
-        if(path.charAt(0) == '/') return path.substring(1).split("/");
-        return path.split("/");
+    private String childPathName(Directory parentDirectory, String name) {
+        return parentDirectory == rootDirectory ? "/" + name : parentDirectory.getPathName() + "/" + name;
     }
 
     /**
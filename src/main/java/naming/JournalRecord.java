@@ -0,0 +1,153 @@
+package naming;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Journal Record -- one mutation of the naming server state, as written to the journal (details refer to
+ * NamingJournal.java). Replaying a record that was already applied leaves the state unchanged, so a record may safely
+ * be replayed on top of a snapshot that already contains it. Fields that don't apply to an operation are null (or 0)
+ * and left out of the journal.
+ */
+public class JournalRecord {
+    /**
+     * Operations that are journaled
+     */
+    public enum Op {
+        /**
+         * File created on a storage server (path, storage server)
+         */
+        CREATE_FILE,
+        /**
+         * Directory created (path)
+         */
+        CREATE_DIRECTORY,
+        /**
+         * File or directory deleted with its subtree (path)
+         */
+        DELETE,
+        /**
+         * File replicated to one more storage server (path, storage server)
+         */
+        ADD_REPLICA,
+        /**
+         * Subscriber added to the subscriber set of a file (path, id)
+         */
+        ADD_FILE_SUBSCRIBER,
+        /**
+         * Subscriber removed from the subscriber set of a file (path, id)
+         */
+        REMOVE_FILE_SUBSCRIBER,
+        /**
+         * Subscriber subscribed to a keyword file that may not exist yet (path, id)
+         */
+        SUBSCRIBE_FILE,
+        /**
+         * Publisher registered and assigned to a storage server (id, storage server)
+         */
+        REGISTER_PUBLISHER,
+        /**
+         * Subscriber registered and assigned to a storage server (id, storage server)
+         */
+        REGISTER_SUBSCRIBER,
+        /**
+         * Read cursor of a subscriber committed for a file (path, id, offset)
+         */
+        COMMIT_CURSOR,
+        /**
+         * Read cursors of every subscriber dropped for a file or directory and its subtree (path)
+         */
+        DROP_CURSORS
+    }
+
+    /**
+     * Operation of the record
+     */
+    public Op op;
+    /**
+     * Path of the file or directory
+     */
+    public String path;
+    /**
+     * Id of the publisher or subscriber
+     */
+    public String id;
+    /**
+     * IP of the storage server
+     */
+    public String ip;
+    /**
+     * Client port of the storage server
+     */
+    public int client_port;
+    /**
+     * Command port of the storage server
+     */
+    public int command_port;
+    /**
+     * Byte offset of the read cursor
+     */
+    public long offset;
+
+    /**
+     * Constructor for journal record
+     *
+     * @param op                operation of the record
+     * @param path              path of the file or directory, null if not applicable
+     * @param id                id of the publisher or subscriber, null if not applicable
+     * @param storageServerInfo storage server, null if not applicable
+     */
+    public JournalRecord(Op op, String path, String id, StorageServerInfo storageServerInfo) {
+        this.op = op;
+        this.path = path;
+        this.id = id;
+        if (storageServerInfo != null) {
+            this.ip = storageServerInfo.getIP();
+            this.client_port = storageServerInfo.getClientPort();
+            this.command_port = storageServerInfo.getCommandPort();
+        }
+    }
+
+    /**
+     * Constructor for journal record of a read cursor
+     *
+     * @param op     operation of the record
+     * @param path   path of the file
+     * @param id     id of the subscriber
+     * @param offset byte offset of the read cursor
+     */
+    public JournalRecord(Op op, String path, String id, long offset) {
+        this.op = op;
+        this.path = path;
+        this.id = id;
+        this.offset = offset;
+    }
+
+    /**
+     * Check if record refers to a storage server
+     *
+     * @return boolean true if it has a storage server
+     */
+    public boolean hasStorageServer() {
+        return this.ip != null;
+    }
+
+    /**
+     * Get the key of the storage server of the record
+     *
+     * @return String of key (client port + "/" + command port)
+     */
+    public String getServerKey() {
+        return this.client_port + "/" + this.command_port;
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public String toString() {
+        return "JournalRecord: op = <" + op + "> path = <" + path + "> id = <" + id + "> server = <" + ip + ":"
+                + client_port + "/" + command_port + "> offset = <" + offset + ">";
+    }
+}
@@ -0,0 +1,177 @@
+package naming;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Lease -- a lock granted by /lock for a limited time. It remembers every directory lock that was taken for the
+ * request (the intention locks of the ancestors and the lock of the path itself) so that all of them can be released
+ * together, either by /unlock or by the lease reaper once the lease expires without being renewed.
+ */
+public class Lease {
+    /**
+     * Unique id of the lease
+     */
+    private final long id;
+    /**
+     * Path that was locked
+     */
+    private final String path;
+    /**
+     * Whether path was locked exclusively
+     */
+    private final boolean exclusive;
+    /**
+     * Id of the subscriber that holds the lease, null if not a subscriber
+     */
+    private final String subscriberID;
+    /**
+     * Ancestors of the path that were locked in the intention mode of the lock, from the root down
+     */
+    private final List<Directory> ancestors;
+    /**
+     * Directory (or file) of the path
+     */
+    private final Directory directory;
+    /**
+     * Time (in milliseconds since epoch) the lease expires at
+     */
+    private volatile long expiresAt;
+    /**
+     * Whether the locks of the lease were released
+     */
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    /**
+     * Constructor for lease, the locks must already be taken
+     *
+     * @param id           unique id of the lease
+     * @param path         path that was locked
+     * @param exclusive    whether path was locked exclusively
+     * @param subscriberID id of the subscriber that holds the lease, null if not a subscriber
+     * @param ancestors    ancestors of the path that were locked in the intention mode, from the root down
+     * @param directory    directory (or file) of the path
+     * @param expiresAt    time (in milliseconds since epoch) the lease expires at
+     */
+    public Lease(long id, String path, boolean exclusive, String subscriberID, List<Directory> ancestors,
+                 Directory directory, long expiresAt) {
+        this.id = id;
+        this.path = path;
+        this.exclusive = exclusive;
+        this.subscriberID = subscriberID;
+        this.ancestors = ancestors;
+        this.directory = directory;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Get the id of the lease
+     *
+     * @return lease id
+     */
+    public long getId() {
+        return this.id;
+    }
+
+    /**
+     * Get the path that was locked
+     *
+     * @return String of path
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Check if path was locked exclusively
+     *
+     * @return boolean true if exclusive
+     */
+    public boolean isExclusive() {
+        return this.exclusive;
+    }
+
+    /**
+     * Get the mode the path was locked in
+     *
+     * @return LockMode of the path, the ancestors were locked in its intention mode
+     */
+    public LockMode getMode() {
+        return exclusive ? LockMode.EXCLUSIVE : LockMode.SHARED;
+    }
+
+    /**
+     * Get the id of the subscriber that holds the lease
+     *
+     * @return subscriber id, null if not a subscriber
+     */
+    public String getSubscriberID() {
+        return this.subscriberID;
+    }
+
+    /**
+     * Get the directory (or file) of the path
+     *
+     * @return Directory of the path
+     */
+    public Directory getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Get the time the lease expires at
+     *
+     * @return time in milliseconds since epoch
+     */
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    /**
+     * Check if lease is expired
+     *
+     * @param now current time in milliseconds since epoch
+     * @return boolean true if expired
+     */
+    public boolean isExpired(long now) {
+        return now >= this.expiresAt;
+    }
+
+    /**
+     * Extend the lease
+     *
+     * @param expiresAt new time (in milliseconds since epoch) the lease expires at
+     */
+    void renew(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Release every lock of the lease, the lock of the path first and then the ancestors from the bottom up. Only the
+     * first call releases anything, so /unlock and the reaper can race safely.
+     *
+     * @return boolean true if this call released the locks
+     */
+    boolean release() {
+        if (!released.compareAndSet(false, true)) return false;
+        LockMode mode = getMode();
+        directory.unlock(mode);
+        for (int i = ancestors.size() - 1; i >= 0; i--) {
+            ancestors.get(i).unlock(mode.intention());
+        }
+        return true;
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public String toString() {
+        return "Lease: id = <" + id + "> path = <" + path + "> exclusive = <" + exclusive + "> subscriber_id = <"
+                + subscriberID + "> expires_at = <" + expiresAt + ">";
+    }
+}
@@ -0,0 +1,227 @@
+package naming;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Lease Manager -- keeps track of every lock granted by the naming server as a lease (details refer to Lease.java).
+ * A client must release its lease with /unlock or renew it before it expires; a reaper task revokes the leases that
+ * expired, which releases their directory locks and wakes the next waiting requests. A client that crashes between
+ * /lock and /unlock therefore only blocks the path until its lease runs out, instead of forever.
+ *
+ * Renewals and revocations both go through the lease map (computeIfPresent), so /renew_lease never reports success
+ * for a lease whose locks were already handed to someone else.
+ */
+public class LeaseManager {
+    /**
+     * Default time (in milliseconds) a lease is valid for
+     */
+    public static final long DEFAULT_LEASE_MILLIS = 30 * 1000L;
+    /**
+     * Default time (in milliseconds) between two runs of the reaper
+     */
+    public static final long DEFAULT_REAP_INTERVAL_MILLIS = 1000L;
+    /**
+     * Map of lease id to the lease that is currently granted
+     */
+    private final ConcurrentHashMap<Long, Lease> leases = new ConcurrentHashMap<>();
+    /**
+     * Id of the next lease
+     */
+    private final AtomicLong nextId = new AtomicLong(1);
+    /**
+     * Time (in milliseconds) a lease is valid for
+     */
+    private volatile long leaseMillis = DEFAULT_LEASE_MILLIS;
+    /**
+     * Time (in milliseconds) between two runs of the reaper
+     */
+    private volatile long reapIntervalMillis = DEFAULT_REAP_INTERVAL_MILLIS;
+    /**
+     * Executor that runs the reaper, null if reaper is not started
+     */
+    private ScheduledExecutorService reaper;
+
+    /**
+     * Set the time a lease is valid for, applies to leases granted or renewed afterward
+     *
+     * @param leaseMillis time in milliseconds
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = Math.max(1, leaseMillis);
+    }
+
+    /**
+     * Get the time a lease is valid for
+     *
+     * @return time in milliseconds
+     */
+    public long getLeaseMillis() {
+        return this.leaseMillis;
+    }
+
+    /**
+     * Set the time between two runs of the reaper, takes effect the next time the reaper is started
+     *
+     * @param reapIntervalMillis time in milliseconds
+     */
+    public void setReapIntervalMillis(long reapIntervalMillis) {
+        this.reapIntervalMillis = Math.max(1, reapIntervalMillis);
+    }
+
+    /**
+     * Draw a new lease id. The id is drawn before the locks are taken and serves as the owner token of the request
+     * while it waits for them, so ids are never reused and there is no bound on the number of concurrent requests.
+     *
+     * @return unique lease id
+     */
+    public long newLeaseId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Grant a lease on locks that were just taken
+     *
+     * @param id           lease id drawn by newLeaseId
+     * @param path         path that was locked
+     * @param exclusive    whether path was locked exclusively
+     * @param subscriberID id of the subscriber that holds the lease, null if not a subscriber
+     * @param ancestors    ancestors of the path that were locked in the intention mode, from the root down
+     * @param directory    directory (or file) of the path
+     * @return Lease granted
+     */
+    public Lease grant(long id, String path, boolean exclusive, String subscriberID, List<Directory> ancestors, Directory directory) {
+        Lease lease = new Lease(id, path, exclusive, subscriberID, ancestors, directory,
+                System.currentTimeMillis() + leaseMillis);
+        leases.put(lease.getId(), lease);
+        return lease;
+    }
+
+    /**
+     * Extend a lease that has not expired yet. The check and the extension run inside one operation on the lease
+     * map, the same one the reaper revokes through, so a lease is either renewed or revoked but never both.
+     *
+     * @param id lease id
+     * @return Lease renewed, null if lease is unknown, released or expired
+     */
+    public Lease renew(long id) {
+        long now = System.currentTimeMillis();
+        Lease[] renewed = new Lease[1];
+        leases.computeIfPresent(id, (key, lease) -> {
+            if (!lease.isExpired(now)) {
+                lease.renew(now + leaseMillis);
+                renewed[0] = lease;
+            }
+            return lease;
+        });
+        return renewed[0];
+    }
+
+    /**
+     * Release a lease and its locks
+     *
+     * @param id lease id
+     * @return Lease released, null if lease is unknown or was already released or revoked
+     */
+    public Lease release(long id) {
+        Lease lease = leases.remove(id);
+        if (lease == null || !lease.release()) return null;
+        return lease;
+    }
+
+    /**
+     * Release the oldest lease on a path, used by clients that unlock without giving their lease id
+     *
+     * @param path         path that was locked
+     * @param exclusive    whether path was locked exclusively
+     * @param subscriberID id of the subscriber that holds the lease, null to match any holder
+     * @return Lease released, null if no such lease is granted
+     */
+    public Lease release(String path, boolean exclusive, String subscriberID) {
+        while (true) {
+            Lease oldest = null;
+            for (Lease lease : leases.values()) {
+                if (!lease.getPath().equals(path) || lease.isExclusive() != exclusive) continue;
+                if (subscriberID != null && !subscriberID.equals(lease.getSubscriberID())) continue;
+                if (oldest == null || lease.getId() < oldest.getId()) {
+                    oldest = lease;
+                }
+            }
+            if (oldest == null) return null;
+            Lease released = release(oldest.getId());
+            if (released != null) return released;
+            // released by someone else in the meantime, look again
+        }
+    }
+
+    /**
+     * Get a lease that is currently granted
+     *
+     * @param id lease id
+     * @return Lease, null if lease is unknown
+     */
+    public Lease getLease(long id) {
+        return leases.get(id);
+    }
+
+    /**
+     * Get number of leases currently granted
+     *
+     * @return number of leases
+     */
+    public int getLeaseCount() {
+        return leases.size();
+    }
+
+    /**
+     * Revoke every expired lease, which releases its locks and wakes the requests waiting for them
+     *
+     * @return number of leases revoked
+     */
+    public int reap() {
+        long now = System.currentTimeMillis();
+        int revoked = 0;
+        for (Lease lease : leases.values()) {
+            if (!lease.isExpired(now)) continue;
+            // expiry is checked again inside the map operation, a renew that got there first keeps the lease
+            boolean[] removed = new boolean[1];
+            leases.computeIfPresent(lease.getId(), (key, current) -> {
+                if (current != lease || !current.isExpired(now)) return current;
+                removed[0] = true;
+                return null;
+            });
+            if (removed[0] && lease.release()) {
+                revoked++;
+            }
+        }
+        return revoked;
+    }
+
+    /**
+     * Start running the reaper every interval
+     */
+    public synchronized void start() {
+        if (reaper != null) return;
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lease-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reap, reapIntervalMillis, reapIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop running the reaper
+     */
+    public synchronized void stop() {
+        if (reaper == null) return;
+        reaper.shutdownNow();
+        reaper = null;
+    }
+}
@@ -0,0 +1,63 @@
+package naming;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Lock Mode -- modes of the multi-granularity lock of a directory (or file) in the naming server. A request locks
+ * the path itself in SHARED or EXCLUSIVE mode and every ancestor in the matching intention mode, which only says that
+ * something below the ancestor is locked. Intention modes are compatible with one another, so requests on different
+ * subtrees don't block each other at the root, while a SHARED or EXCLUSIVE lock on a directory still covers its whole
+ * subtree.
+ *
+ *                      | INTENTION_SHARED | INTENTION_EXCLUSIVE | SHARED | EXCLUSIVE
+ *  INTENTION_SHARED    |       yes        |         yes         |  yes   |    no
+ *  INTENTION_EXCLUSIVE |       yes        |         yes         |  no    |    no
+ *  SHARED              |       yes        |         no          |  yes   |    no
+ *  EXCLUSIVE           |       no         |         no          |  no    |    no
+ */
+public enum LockMode {
+    /**
+     * Something below the directory is locked shared
+     */
+    INTENTION_SHARED,
+    /**
+     * Something below the directory is locked exclusively
+     */
+    INTENTION_EXCLUSIVE,
+    /**
+     * Directory (and its subtree) is read
+     */
+    SHARED,
+    /**
+     * Directory (and its subtree) is modified
+     */
+    EXCLUSIVE;
+
+    /**
+     * Check if this mode can be held together with another mode by different requests
+     *
+     * @param other mode held by another request
+     * @return boolean true if compatible
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        switch (this) {
+            case INTENTION_SHARED:
+                return other != EXCLUSIVE;
+            case INTENTION_EXCLUSIVE:
+                return other == INTENTION_SHARED || other == INTENTION_EXCLUSIVE;
+            case SHARED:
+                return other == INTENTION_SHARED || other == SHARED;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the mode the ancestors of a path are locked in when the path is locked in this mode
+     *
+     * @return LockMode of the ancestors
+     */
+    public LockMode intention() {
+        return this == SHARED || this == INTENTION_SHARED ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+    }
+}
@@ -0,0 +1,222 @@
+package naming;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Naming Journal -- makes the state of the naming server survive a restart. Every mutation of the namespace and of
+ * the publisher / subscriber assignments is appended to a journal file as one JSON line (details refer to
+ * JournalRecord.java) before the request that made it returns. Once enough records piled up, the naming server writes
+ * a snapshot: the shortest list of records that rebuilds its current state, written to a temporary file and renamed
+ * over the previous snapshot, after which the journal starts over empty. A restart replays the snapshot and then the
+ * journal.
+ *
+ * Records are idempotent, so a crash between the rename of a snapshot and the truncation of the journal (or a record
+ * that is both in a snapshot and in the journal) only replays some records twice. A torn last line, left by a crash
+ * in the middle of an append, is ignored.
+ *
+ * By default an append is only flushed to the operating system before the request returns, which survives a crash of
+ * the naming server process but not of the machine. With setSync(true) every append is also forced to the disk before
+ * the request returns, at the cost of one fsync per mutation.
+ */
+public class NamingJournal {
+    /**
+     * Name of the journal file
+     */
+    public static final String JOURNAL_NAME = "journal.log";
+    /**
+     * Name of the snapshot file
+     */
+    public static final String SNAPSHOT_NAME = "snapshot.log";
+    /**
+     * Default number of journal records after which a snapshot is written
+     */
+    public static final int DEFAULT_SNAPSHOT_EVERY = 100000;
+    /**
+     * Gson object
+     */
+    private final Gson gson = new Gson();
+    /**
+     * Directory the journal and the snapshot are kept in
+     */
+    private final File directory;
+    /**
+     * Stream of the journal file
+     */
+    private FileOutputStream journalStream;
+    /**
+     * Writer of the journal file
+     */
+    private BufferedWriter journalWriter;
+    /**
+     * Number of records appended since the last snapshot
+     */
+    private int recordsSinceSnapshot;
+    /**
+     * Number of journal records after which a snapshot is written
+     */
+    private volatile int snapshotEvery = DEFAULT_SNAPSHOT_EVERY;
+    /**
+     * Whether every append is forced to the disk, otherwise appends only survive a crash of the process
+     */
+    private volatile boolean sync;
+
+    /**
+     * Constructor for naming journal, creates the directory if it doesn't exist
+     *
+     * @param directory directory the journal and the snapshot are kept in
+     * @throws IOException if directory or journal cannot be opened
+     */
+    public NamingJournal(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory: " + directory);
+        }
+        openJournal(true);
+    }
+
+    /**
+     * Set the number of journal records after which a snapshot is written
+     *
+     * @param snapshotEvery number of records
+     */
+    public void setSnapshotEvery(int snapshotEvery) {
+        this.snapshotEvery = Math.max(1, snapshotEvery);
+    }
+
+    /**
+     * Set whether every append is forced to the disk before it returns, off by default
+     *
+     * @param sync true to force every append
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Read every record needed to rebuild the state, the snapshot first and then the journal
+     *
+     * @return List of records in the order they should be replayed
+     * @throws IOException if snapshot or journal cannot be read
+     */
+    public synchronized List<JournalRecord> recover() throws IOException {
+        List<JournalRecord> records = new ArrayList<>();
+        read(new File(directory, SNAPSHOT_NAME), records);
+        recordsSinceSnapshot = read(new File(directory, JOURNAL_NAME), records);
+        return records;
+    }
+
+    /**
+     * Append a record to the journal
+     *
+     * @param record record to be appended
+     * @throws UncheckedIOException if record cannot be written
+     */
+    public synchronized void append(JournalRecord record) {
+        try {
+            journalWriter.write(gson.toJson(record));
+            journalWriter.newLine();
+            journalWriter.flush();
+            if (sync) {
+                journalStream.getFD().sync();
+            }
+            recordsSinceSnapshot++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Check if enough records were appended since the last snapshot that a new one should be written
+     *
+     * @return boolean true if a snapshot is due
+     */
+    public synchronized boolean isSnapshotDue() {
+        return recordsSinceSnapshot >= snapshotEvery;
+    }
+
+    /**
+     * Replace the snapshot and empty the journal. Appends wait while the snapshot is written, so the records must be
+     * collected while holding the monitor of this journal.
+     *
+     * @param records records that rebuild the current state
+     * @throws IOException if snapshot cannot be written
+     */
+    public synchronized void snapshot(List<JournalRecord> records) throws IOException {
+        File tmp = new File(directory, SNAPSHOT_NAME + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            for (JournalRecord record : records) {
+                writer.write(gson.toJson(record));
+                writer.newLine();
+            }
+            writer.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(directory, SNAPSHOT_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalWriter.close();
+        openJournal(false);
+        recordsSinceSnapshot = 0;
+    }
+
+    /**
+     * Close the journal
+     */
+    public synchronized void close() {
+        try {
+            journalWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Open the journal file for appending
+     *
+     * @param append false to empty the journal first
+     * @throws IOException if journal cannot be opened
+     */
+    private void openJournal(boolean append) throws IOException {
+        journalStream = new FileOutputStream(new File(directory, JOURNAL_NAME), append);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the records of one file, stops at a torn last line
+     *
+     * @param file    file to be read, nothing is read if it doesn't exist
+     * @param records list the records are added to
+     * @return number of records read
+     * @throws IOException if file cannot be read
+     */
+    private int read(File file, List<JournalRecord> records) throws IOException {
+        if (!file.exists()) return 0;
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                JournalRecord record;
+                try {
+                    record = gson.fromJson(line, JournalRecord.class);
+                } catch (JsonSyntaxException e) {
+                    break;
+                }
+                if (record == null || record.op == null) break;
+                records.add(record);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -12,6 +12,9 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**Authors : Sheng-Hao Wu, Kevin Li */
 
@@ -46,26 +49,30 @@ public class NamingServer {
     /**
      * HashSet the publisher that exist in this system
      */
-    private HashSet<String> publisherSet;
+    private Set<String> publisherSet;
 
     /**
      * HashSet the publisher that exist in this system
      */
-    private HashMap<String, StorageServerInfo> publisherToServer;
+    private ConcurrentHashMap<String, StorageServerInfo> publisherToServer;
     /**
      * HashSet the subscriber that exist in this system
      */
-    private HashSet<String> subscriberSet;
+    private Set<String> subscriberSet;
 
     /**
      * HashSet the subscriber that exist in this system
      */
-    private HashMap<String, StorageServerInfo> subscriberToServer;
+    private ConcurrentHashMap<String, StorageServerInfo> subscriberToServer;
 
     /**
      * HashMap the file that are subscribed
      */
-    private HashMap<String, HashSet<String>> fileToSubscribers;
+    private ConcurrentHashMap<String, Set<String>> fileToSubscribers;
+    /**
+     * Map of subscriber to the read cursor it committed for each file, the byte offset up to which it has read it
+     */
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> subscriberCursors;
     /**
      * File system for this naming server
      */
@@ -80,10 +87,22 @@ public class NamingServer {
      */
     private Service registration;
     /**
-     * HashSet to record which thread is interacting with the naming server when they are waiting
-     * for certain operations
+     * Lease manager that tracks every lock granted by /lock until it's released or expires
+     */
+    private LeaseManager leaseManager;
+    /**
+     * Journal the state of this naming server is kept in, null if state is kept in memory only
+     */
+    private NamingJournal journal;
+    /**
+     * Storage servers known from the journal that have not registered again since the restart, keyed by
+     * client port + "/" + command port
+     */
+    private ConcurrentHashMap<String, StorageServerInfo> knownStorageServers = new ConcurrentHashMap<>();
+    /**
+     * Executor that writes a snapshot once enough journal records piled up, null if there is no journal
      */
-    public HashSet<Integer> threadIndexes;
+    private ScheduledExecutorService snapshotter;
 
     /**
      * Debug object
@@ -100,14 +119,76 @@ public class NamingServer {
         this.servicePort = sp;
         this.registrationPort = rp;
         this.storageServerMap = new ConcurrentHashMap<>();
-        this.publisherSet = new HashSet<>();
-        this.publisherToServer = new HashMap<>();
-        this.subscriberSet = new HashSet<>();
-        this.subscriberToServer = new HashMap<>();
-        this.fileToSubscribers = new HashMap<>();
+        this.publisherSet = ConcurrentHashMap.newKeySet();
+        this.publisherToServer = new ConcurrentHashMap<>();
+        this.subscriberSet = ConcurrentHashMap.newKeySet();
+        this.subscriberToServer = new ConcurrentHashMap<>();
+        this.fileToSubscribers = new ConcurrentHashMap<>();
+        this.subscriberCursors = new ConcurrentHashMap<>();
 
         this.fileSystem = new FileSystem();
-        threadIndexes = new HashSet<>();
+        this.leaseManager = new LeaseManager();
+    }
+
+    /**
+     * Constructor for naming server that keeps its state in a journal (details refer to NamingJournal.java). The state
+     * left by the previous run is rebuilt from the snapshot and the journal in the given directory, then written to a
+     * fresh snapshot. Storage servers must still register again, but their files already known are kept.
+     *
+     * @param sp             service port number
+     * @param rp             registration port number
+     * @param stateDirectory directory the journal and the snapshot are kept in
+     * @throws IOException if state cannot be recovered
+     */
+    public NamingServer(int sp, int rp, File stateDirectory) throws IOException {
+        this(sp, rp);
+        NamingJournal namingJournal = new NamingJournal(stateDirectory);
+        for (JournalRecord record : namingJournal.recover()) {
+            replay(record);
+        }
+        this.journal = namingJournal;
+        fileSystem.setJournal(namingJournal);
+        snapshot();
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "naming-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                if (journal.isSnapshotDue()) snapshot();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the journal the state of this naming server is kept in
+     *
+     * @return NamingJournal of this naming server, null if state is kept in memory only
+     */
+    public NamingJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Set how long a lock granted by /lock is valid for unless it's renewed
+     *
+     * @param leaseMillis time in milliseconds
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        leaseManager.setLeaseMillis(leaseMillis);
+    }
+
+    /**
+     * Get the lease manager of this naming server
+     *
+     * @return LeaseManager of this naming server
+     */
+    public LeaseManager getLeaseManager() {
+        return this.leaseManager;
     }
 
     /**
@@ -129,6 +210,9 @@ public class NamingServer {
         /** handle list */
         listHandler(g);
 
+        /** handle list_summary */
+        listSummaryHandler(g);
+
         /** handle create_directory */
         createDirectoryHandler(g);
 
@@ -144,6 +228,9 @@ public class NamingServer {
         /** handle unlock */
         unlockHandler(g);
 
+        /** handle renew_lease */
+        renewLeaseHandler(g);
+
         /** handle delete */
         deleteHandler(g);
 
@@ -155,6 +242,15 @@ public class NamingServer {
 
         /** handle replication */
         replicationHandler(g);
+
+        /** handle commit_cursor */
+        commitCursorHandler(g);
+
+        /** handle get_cursors */
+        getCursorsHandler(g);
+
+        /** revoke expired leases */
+        leaseManager.start();
     }
 
     /**
@@ -227,14 +323,15 @@ public class NamingServer {
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.isValidPath(req.path)) {
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid()) {
                 ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
                 String ret = g.toJson(excepRet);
                 response.status(404);
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.hasDirectory(req.path)) {
+            if (!resolution.isFound()) {
                 ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -242,7 +339,7 @@ public class NamingServer {
                 return ret;
             }
 
-            BooleanReturn booleanReturn = new BooleanReturn(fileSystem.isDirectory(req.path));
+            BooleanReturn booleanReturn = new BooleanReturn(resolution.isDirectory());
             String ret = g.toJson(booleanReturn);
             response.status(200);
             response.type("application/json");
@@ -272,14 +369,15 @@ public class NamingServer {
                 return ret;
             }
 
-            if (!fileSystem.isValidPath(req.path)) {
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid()) {
                 ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
                 String ret = g.toJson(excepRet);
                 response.status(404);
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.hasDirectory(req.path) || (!fileSystem.isDirectory(req.path))) {
+            if (!resolution.isDirectory()) {
                 ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -287,7 +385,7 @@ public class NamingServer {
                 return ret;
             }
 
-            FilesReturn filesReturn = new FilesReturn(fileSystem.listFiles(req.path));
+            FilesReturn filesReturn = new FilesReturn(fileSystem.listFiles(resolution.getDirectory()));
             String ret = g.toJson(filesReturn);
             response.status(200);
             response.type("application/json");
@@ -295,6 +393,55 @@ public class NamingServer {
         });
     }
 
+    /**
+     *  Handler function to summarize the subtree under current path, i.e. how many files it has and which storage
+     *  servers store them. Served from the aggregates every directory keeps, without walking the subtree.
+     *
+     *  @param g Gson object
+     */
+    public void listSummaryHandler(Gson g) {
+        service.post("/list_summary", (request, response) -> {
+            String content = request.body();
+            PathRequest req;
+            try {
+                req = g.fromJson(content, PathRequest.class);
+            } catch (Exception e) {
+                ExceptionReturn excepRet = new ExceptionReturn("Bad Request", "Bad Request");
+                String ret = g.toJson(excepRet);
+                response.status(400);
+                response.type("application/json");
+                return ret;
+            }
+
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid()) {
+                ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            if (!resolution.isFound()) {
+                ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+
+            Directory directory = resolution.getDirectory();
+            List<StorageServerInfo> storageServers = directory.getSubtreeStorageServers();
+            ServerInfo[] serverInfos = new ServerInfo[storageServers.size()];
+            for (int i = 0; i < serverInfos.length; i++) {
+                serverInfos[i] = new ServerInfo(storageServers.get(i).getIP(), storageServers.get(i).getClientPort());
+            }
+            String ret = g.toJson(new ListSummaryReturn(directory.getSubtreeFileCount(), serverInfos));
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
+
     /**
      *  Handler function to create directory
      *
@@ -317,14 +464,15 @@ public class NamingServer {
                 return ret;
             }
             // handle invalid cases
-            if (!fileSystem.isValidPath(req.path)) {
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid()) {
                 ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
                 String ret = g.toJson(excepRet);
                 response.status(404);
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.parentDirectoryExist(req.path)) {
+            if (!fileSystem.parentDirectoryExist(resolution.getPath())) {
                 ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -334,9 +482,9 @@ public class NamingServer {
 
             // handle cases
             BooleanReturn booleanReturn;
-            if (!fileSystem.hasDirectory(req.path)) {
+            if (!resolution.isFound()) {
                 booleanReturn = new BooleanReturn(true);
-                fileSystem.createDirectory(req.path);
+                fileSystem.createDirectory(resolution.getPath());
             } else {
                 booleanReturn = new BooleanReturn(false);
             }
@@ -371,14 +519,15 @@ public class NamingServer {
                 return ret;
             }
 
-            if (!fileSystem.isValidPath(req.path)) {
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid()) {
                 ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
                 String ret = g.toJson(excepRet);
                 response.status(404);
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.parentDirectoryExist(req.path)) {
+            if (!fileSystem.parentDirectoryExist(resolution.getPath())) {
                 ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -394,9 +543,8 @@ public class NamingServer {
             }
 
             // handle cases
-            BooleanReturn booleanReturn;
-            if (!fileSystem.hasDirectory(req.path)) {
-                booleanReturn = new BooleanReturn(true);
+            BooleanReturn booleanReturn = new BooleanReturn(false);
+            if (!resolution.isFound()) {
                 StorageServerInfo storageServerInfo;
                 if (req.publisherID == null) {
                     storageServerInfo = genRandomStorageServerInfo();
@@ -404,17 +552,23 @@ public class NamingServer {
                 } else {
                     storageServerInfo = publisherToServer.get(req.publisherID);
                 }
-                fileSystem.createFile(req.path, storageServerInfo);
-                if (fileToSubscribers.containsKey(req.path)) {
-                    for (String subscriberID : fileToSubscribers.get(req.path)) {
-                        Directory directory = fileSystem.findFile(req.path);
-                        directory.addSubscriber(subscriberID);
+                // the path may have been created since it was resolved, only the request whose createFile made the
+                // node goes on to create it on the storage server
+                Directory directory;
+                synchronized (fileSystem) {
+                    directory = fileSystem.createFile(req.path, storageServerInfo);
+                    if (directory != null && fileToSubscribers.containsKey(req.path)) {
+                        for (String subscriberID : fileToSubscribers.get(req.path)) {
+                            directory.addSubscriber(subscriberID);
+                            journal(new JournalRecord(JournalRecord.Op.ADD_FILE_SUBSCRIBER, directory.getPathName(), subscriberID, null));
+                        }
                     }
                 }
 
-                getHttpResponse("http://" + storageServerInfo.getIP() + ":" + storageServerInfo.getCommandPort() + "/storage_create", new PathRequest(req.path), g);
-            } else {
-                booleanReturn = new BooleanReturn(false);
+                if (directory != null) {
+                    booleanReturn = new BooleanReturn(true);
+                    getHttpResponse("http://" + storageServerInfo.getIP() + ":" + storageServerInfo.getCommandPort() + "/storage_create", new PathRequest(req.path), g);
+                }
             }
             String ret = g.toJson(booleanReturn);
             response.status(200);
@@ -446,14 +600,15 @@ public class NamingServer {
                 return ret;
             }
 
-            if (!fileSystem.isValidPath(req.path)) {
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid()) {
                 ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
                 String ret = g.toJson(excepRet);
                 response.status(404);
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.hasDirectory(req.path) || (fileSystem.isDirectory(req.path))) {
+            if (!resolution.isFile()) {
                 ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -462,7 +617,7 @@ public class NamingServer {
             }
 
 
-            StorageServerInfo storageServerInfo = fileSystem.findFile(req.path).genRandomStorageServerInfo();
+            StorageServerInfo storageServerInfo = resolution.getDirectory().genRandomStorageServerInfo();
             ServerInfo serverInfo = new ServerInfo(storageServerInfo.getIP(), storageServerInfo.getClientPort());
             String ret = g.toJson(serverInfo);
             response.status(200);
@@ -474,7 +629,11 @@ public class NamingServer {
     /**
      *  Handler function for lock. Before access file, client need to do lock beforehand. Details about how lock
      *  is appraoched, please refer to Directory.java. Also, those waiting for locks users will be put in queue
-     *  and later served based on FIFO order.
+     *  and later served based on FIFO order. The ancestors of the path are locked in intention mode (details refer to
+     *  LockMode.java), so locks on different subtrees don't serialize on the root.
+     *
+     *  The locks are granted as a lease (details refer to LeaseManager.java), the lease id is returned and should be
+     *  given to /unlock. A lease that is neither released nor renewed before it expires is revoked.
      *
      *  Another feaeture called replicationi in here, is try to do load balancing when particular file is being read
      *  too many times. So every 20 times read a file will be replicated, and once a write (excluse lock) action,
@@ -499,14 +658,15 @@ public class NamingServer {
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.isValidPath(req.path)) {
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid()) {
                 ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
                 String ret = g.toJson(excepRet);
                 response.status(404);
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.hasDirectory(req.path)) {
+            if (!resolution.isFound()) {
                 ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -514,40 +674,52 @@ public class NamingServer {
                 return ret;
             }
 
-            int threadIndex = genUniqueIndex(100);
-
-            Directory directory = fileSystem.findFile(req.path);
+            // lease id is the owner token of this request in the lock queues
+            long leaseID = leaseManager.newLeaseId();
 
-            // shared lock root
-            if (!req.path.equals("/")) {
-                fileSystem.rootDirectory.addFileReadCnt();
-                fileSystem.rootDirectory.sharedLock(threadIndex);
-            }
+            // find the ancestors of the path by following its parents
+            List<Directory> directories = fileSystem.findPathDirectories(resolution.getDirectory());
+            Directory directory = resolution.getDirectory();
+            List<Directory> ancestors = directories.subList(0, directories.size() - 1);
+            LockMode mode = req.exclusive ? LockMode.EXCLUSIVE : LockMode.SHARED;
 
-            // shared lock parent dir
-            String curDirectory = "";
-            String[] directoryList = fileSystem.format(req.path);
-            for (int i = 0 ; i < directoryList.length - 1 ; i++) {
-                curDirectory += "/" + directoryList[i];
-                fileSystem.findFile(curDirectory).addFileReadCnt();
-                fileSystem.findFile(curDirectory).sharedLock(threadIndex);
-            }
+            // intention lock ancestors from the root down, they only conflict with a whole-subtree lock
+            int counted = 0;
+            int locked = 0;
+            try {
+                for (Directory ancestor : ancestors) {
+                    ancestor.addFileReadCnt();
+                    counted++;
+                    ancestor.lock(mode.intention(), leaseID);
+                    locked++;
+                }
 
-            // lock directory
-            if (req.exclusive) {
-                directory.exclusiveLock(threadIndex);
-            } else {
-                directory.sharedLock(threadIndex);
+                // lock directory
+                directory.lock(mode, leaseID);
+            } catch (InterruptedException e) {
+                // give back what was taken so far from the bottom up, the lock interrupted already left its queue
+                for (int i = counted - 1; i >= 0; i--) {
+                    if (i < locked) {
+                        ancestors.get(i).unlock(mode.intention());
+                    }
+                    ancestors.get(i).removeFileReadCnt();
+                }
+                throw e;
             }
 
-            if (directory.getSubscriberSet().contains(req.subscriberID)) {
-                directory.removeSubscriber(req.subscriberID);
+            if (req.subscriberID != null && directory.getSubscriberSet().contains(req.subscriberID)) {
+                synchronized (fileSystem) {
+                    directory.removeSubscriber(req.subscriberID);
+                    journal(new JournalRecord(JournalRecord.Op.REMOVE_FILE_SUBSCRIBER, directory.getPathName(), req.subscriberID, null));
+                }
             }
 
-            threadIndexes.remove(threadIndex);
+            // the locks are held until the lease is released by /unlock or expires
+            Lease lease = leaseManager.grant(leaseID, resolution.getPath(), req.exclusive, req.subscriberID, ancestors, directory);
+            String ret = g.toJson(new LeaseReturn(lease.getId(), leaseManager.getLeaseMillis()));
             response.status(200);
             response.type("application/json");
-            return "";
+            return ret;
         });
     }
 
@@ -576,7 +748,8 @@ public class NamingServer {
                 return ret;
             }
 
-            if (!fileSystem.isValidPath(req.path) || !fileSystem.hasDirectory(req.path)) {
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (!resolution.isFound()) {
                 ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -584,32 +757,30 @@ public class NamingServer {
                 return ret;
             }
 
-            Directory directory = fileSystem.findFile(req.path);
+            Directory directory = resolution.getDirectory();
 
-            // unlock lock root
-            if (!req.path.equals("/")) {
-                fileSystem.rootDirectory.sharedUnlock();
+            // release the lease given, clients that don't give one release the oldest matching lease
+            Lease lease;
+            if (req.lease_id != 0) {
+                lease = leaseManager.release(req.lease_id);
+            } else {
+                lease = leaseManager.release(resolution.getPath(), req.exclusive, req.subscriberID);
             }
-
-            // shared unlock parent dir
-            String curDirectory = "";
-            String[] directoryList = fileSystem.format(req.path);
-            for (int i = 0 ; i < directoryList.length - 1 ; i++) {
-                curDirectory += "/" + directoryList[i];
-                fileSystem.findFile(curDirectory).sharedUnlock();
+            if (lease == null) {
+                ExceptionReturn excepRet = new ExceptionReturn("IllegalStateException", "Lock is not held or lease has expired");
+                String ret = g.toJson(excepRet);
+                response.status(409);
+                response.type("application/json");
+                return ret;
             }
 
-            // unlock directory
-            if (req.exclusive) {
-                directory.exclusiveUnlock();
-            } else {
-                directory.sharedUnlock();
-            }
             if (directory.getSubscriberSet().size() == 0) {
                 // delete file
                 for (StorageServerInfo storageServerInfo : directory.getStorageServerMap().values()) {
                     getHttpResponse("http://" + storageServerInfo.getIP() + ":" + storageServerInfo.getCommandPort() + "/storage_delete", new PathRequest(req.path), g);
                 }
+                // the content read is gone, a file published again under the same path is read from the start
+                dropCursors(directory.getPathName());
             }
 
             response.status(200);
@@ -618,6 +789,42 @@ public class NamingServer {
         });
     }
 
+    /**
+     *  Handler function for renew lease. A client that holds a lock for longer than the lease time must renew the
+     *  lease before it expires, otherwise the lock is revoked and handed to the next waiting request.
+     *
+     *  @param g Gson object
+     */
+    public void renewLeaseHandler(Gson g) {
+        service.post("/renew_lease", (request, response) -> {
+            String content = request.body();
+            LeaseRequest req;
+            try {
+                req = g.fromJson(content, LeaseRequest.class);
+            } catch (Exception e) {
+                ExceptionReturn excepRet = new ExceptionReturn("Bad Request", "Bad Request");
+                String ret = g.toJson(excepRet);
+                response.status(400);
+                response.type("application/json");
+                return ret;
+            }
+
+            Lease lease = leaseManager.renew(req.lease_id);
+            if (lease == null) {
+                ExceptionReturn excepRet = new ExceptionReturn("IllegalStateException", "Lock is not held or lease has expired");
+                String ret = g.toJson(excepRet);
+                response.status(409);
+                response.type("application/json");
+                return ret;
+            }
+
+            String ret = g.toJson(new LeaseReturn(lease.getId(), lease.getExpiresAt() - System.currentTimeMillis()));
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
+
     /**
      *  Handler function for delete files. If path is directory, delete all files in current and child directory.
      *  If path is a file, then delete that file. If multiple storage server has the same file, then send
@@ -643,14 +850,15 @@ public class NamingServer {
                 return ret;
             }
 
-            if (!fileSystem.isValidPath(req.path)) {
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid()) {
                 ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path is invalid");
                 String ret = g.toJson(excepRet);
                 response.status(404);
                 response.type("application/json");
                 return ret;
             }
-            if (!fileSystem.parentDirectoryExist(req.path) || !fileSystem.hasDirectory(req.path)) {
+            if (!resolution.isFound()) {
                 ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -659,13 +867,14 @@ public class NamingServer {
             }
             // handle cases
             BooleanReturn booleanReturn = new BooleanReturn(true);
-            String[] allChildFiles = fileSystem.listAllFiles(req.path);
-            for (String filePath : allChildFiles) {
-                for (StorageServerInfo storageServerInfo : fileSystem.findFile(filePath).getStorageServerMap().values()) {
-                    getHttpResponse("http://" + storageServerInfo.getIP() + ":" + storageServerInfo.getCommandPort() + "/storage_delete", new PathRequest(req.path), g);
-                }
+            // one request per storage server that stores any file of the subtree
+            for (StorageServerInfo storageServerInfo : resolution.getDirectory().getSubtreeStorageServers()) {
+                getHttpResponse("http://" + storageServerInfo.getIP() + ":" + storageServerInfo.getCommandPort() + "/storage_delete", new PathRequest(req.path), g);
+            }
+            synchronized (fileSystem) {
+                fileSystem.deleteFile(resolution.getDirectory());
+                dropCursors(resolution.getDirectory().getPathName());
             }
-            fileSystem.deleteFile(req.path);
 
             String ret = g.toJson(booleanReturn);
             response.status(200);
@@ -714,18 +923,34 @@ public class NamingServer {
 
             PublisherInfo publisherInfo = new PublisherInfo(req.publisherID);
 
-            // check which connected storage server has the least assigned publisher
-            StorageServerInfo assignedStorageServer = genRandomStorageServerInfo();
-            int storageServerAssignedCnt = Integer.MAX_VALUE;
-            for (StorageServerInfo ssi : storageServerMap.values()) {
-                if (ssi.getPublisherMap().size() < storageServerAssignedCnt) {
-                    assignedStorageServer = ssi;
-                    storageServerAssignedCnt = ssi.getPublisherMap().size();
+            StorageServerInfo assignedStorageServer;
+            if (req.assigned_ip != null) {
+                // assigned by the naming server shard that owns the publisher (details refer to NamingShardRouter.java)
+                assignedStorageServer = storageServerMap.get(req.assigned_client_port + "/" + req.assigned_command_port);
+                if (assignedStorageServer == null) {
+                    ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Assigned storage server is not registered");
+                    String ret = g.toJson(excepRet);
+                    response.status(404);
+                    response.type("application/json");
+                    return ret;
+                }
+            } else {
+                // check which connected storage server has the least assigned publisher
+                assignedStorageServer = genRandomStorageServerInfo();
+                int storageServerAssignedCnt = Integer.MAX_VALUE;
+                for (StorageServerInfo ssi : storageServerMap.values()) {
+                    if (ssi.getPublisherMap().size() < storageServerAssignedCnt) {
+                        assignedStorageServer = ssi;
+                        storageServerAssignedCnt = ssi.getPublisherMap().size();
+                    }
                 }
             }
-            assignedStorageServer.addAssignedPublisher(publisherInfo.getPublisherID(), publisherInfo);
-            publisherSet.add(publisherInfo.getPublisherID());
-            publisherToServer.put(publisherInfo.getPublisherID(), assignedStorageServer);
+            synchronized (fileSystem) {
+                assignedStorageServer.addAssignedPublisher(publisherInfo.getPublisherID(), publisherInfo);
+                publisherSet.add(publisherInfo.getPublisherID());
+                publisherToServer.put(publisherInfo.getPublisherID(), assignedStorageServer);
+                journal(new JournalRecord(JournalRecord.Op.REGISTER_PUBLISHER, null, publisherInfo.getPublisherID(), assignedStorageServer));
+            }
 
             String ret = g.toJson(assignedStorageServer);
             response.status(200);
@@ -771,29 +996,43 @@ public class NamingServer {
                 response.type("application/json");
                 return ret;
             }
-            for (String keyWord : req.keyWords) {
-                String file = "/" + keyWord;
-                if (fileSystem.isValidPath(file)){
-                    if (!fileToSubscribers.containsKey(file)) {
-                        fileToSubscribers.put(file, new HashSet<>());
+            SubscriberInfo subscriberInfo = new SubscriberInfo(req.subscriberID);
+
+            StorageServerInfo assignedStorageServer;
+            if (req.assigned_ip != null) {
+                // assigned by the naming server shard that owns the subscriber (details refer to NamingShardRouter.java)
+                assignedStorageServer = storageServerMap.get(req.assigned_client_port + "/" + req.assigned_command_port);
+                if (assignedStorageServer == null) {
+                    ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Assigned storage server is not registered");
+                    String ret = g.toJson(excepRet);
+                    response.status(404);
+                    response.type("application/json");
+                    return ret;
+                }
+            } else {
+                // check which connected storage server has the least assigned subscriber
+                assignedStorageServer = genRandomStorageServerInfo();
+                int storageServerAssignedCnt = Integer.MAX_VALUE;
+                for (StorageServerInfo ssi : storageServerMap.values()) {
+                    if (ssi.getSubscriberMap().size() < storageServerAssignedCnt) {
+                        assignedStorageServer = ssi;
+                        storageServerAssignedCnt = ssi.getSubscriberMap().size();
                     }
-                    fileToSubscribers.get(file).add(req.subscriberID);
                 }
             }
-            SubscriberInfo subscriberInfo = new SubscriberInfo(req.subscriberID);
-
-            // check which connected storage server has the least assigned publisher
-            StorageServerInfo assignedStorageServer = genRandomStorageServerInfo();
-            int storageServerAssignedCnt = Integer.MAX_VALUE;
-            for (StorageServerInfo ssi : storageServerMap.values()) {
-                if (ssi.getSubscriberMap().size() < storageServerAssignedCnt) {
-                    assignedStorageServer = ssi;
-                    storageServerAssignedCnt = ssi.getSubscriberMap().size();
+            synchronized (fileSystem) {
+                for (String keyWord : req.keyWords) {
+                    String file = "/" + keyWord;
+                    if (fileSystem.isValidPath(file)){
+                        fileToSubscribers.computeIfAbsent(file, k -> ConcurrentHashMap.newKeySet()).add(req.subscriberID);
+                        journal(new JournalRecord(JournalRecord.Op.SUBSCRIBE_FILE, file, req.subscriberID, null));
+                    }
                 }
+                assignedStorageServer.addAssignedSubscriber(subscriberInfo.getSubscriberID(), subscriberInfo);
+                subscriberSet.add(subscriberInfo.getSubscriberID());
+                subscriberToServer.put(subscriberInfo.getSubscriberID(), assignedStorageServer);
+                journal(new JournalRecord(JournalRecord.Op.REGISTER_SUBSCRIBER, null, subscriberInfo.getSubscriberID(), assignedStorageServer));
             }
-            assignedStorageServer.addAssignedSubscriber(subscriberInfo.getSubscriberID(), subscriberInfo);
-            subscriberSet.add(subscriberInfo.getSubscriberID());
-            subscriberToServer.put(subscriberInfo.getSubscriberID(), assignedStorageServer);
             String ret = g.toJson(assignedStorageServer);
             response.status(200);
             response.type("application/json");
@@ -805,7 +1044,8 @@ public class NamingServer {
      *  Handler replication when files need to be copied between storage server. Basically the algorithm is simple, we
      *  only replicate file when needed, that's when the file is not existed on the storage server that it's assigned
      *  to a subscriber, but meantime file exists on other server. In this case, we need to copy the file from that
-     *  server to the assigned server.
+     *  server to the assigned server. The assigned server copies it with /storage_copy, which carries the message
+     *  index, so sequence numbers read from the replica are the same as from the original.
      *
      *  @param g Gson object
      */
@@ -842,22 +1082,24 @@ public class NamingServer {
                 return ret;
             }
 
+            // the copy server pulls the file with its message index, so the replica keeps the sequence numbers
+            HttpResponse<String> res = getHttpResponse("http://" + req.copy_ip + ":" + req.copy_command_port + "/storage_copy",
+                    new CopyRequest(req.path, req.existed_ip, req.existed_client_port), g);
+            if (res.statusCode() != 200) {
+                ExceptionReturn excepRet = new ExceptionReturn("IllegalStateException", "File cannot be copied to the storage server");
+                String ret = g.toJson(excepRet);
+                response.status(409);
+                response.type("application/json");
+                return ret;
+            }
+
             StorageServerInfo storageServerInfo = new StorageServerInfo(req.copy_ip, req.copy_client_port, req.copy_command_port);
-            fileSystem.createFile(req.path, storageServerInfo);
-            Directory directory = fileSystem.findFile(req.path);
-            directory.addStorageServerInfo(storageServerInfo.getClientPort() + "/" + storageServerInfo.getCommandPort(), storageServerInfo);
-            // first create file
-            getHttpResponse("http://" + storageServerInfo.getIP() + ":" + storageServerInfo.getCommandPort() + "/storage_create", new PathRequest(req.path), g);
-
-            // read content
-            HttpResponse<String> res = getHttpResponse("http://" + req.existed_ip + ":" + req.existed_client_port + "/storage_size", new PathRequest(req.path), g);
-            int size = (int)g.fromJson(res.body(), SizeReturn.class).size;
-            res = getHttpResponse("http://" + req.existed_ip + ":" + req.existed_client_port + "/storage_read",
-                    new ReadRequest(req.path, 0, size), g);
-            String txt = g.fromJson(res.body(), DataReturn.class).data;
-            // write content
-            getHttpResponse("http://" + req.copy_ip + ":" + req.copy_client_port + "/storage_write",
-                    new WriteRequest(req.path, 0, txt), g);
+            synchronized (fileSystem) {
+                Directory directory = fileSystem.createFile(req.path, storageServerInfo);
+                if (directory == null) directory = fileSystem.findFile(req.path);
+                directory.addStorageServerInfo(storageServerInfo.getClientPort() + "/" + storageServerInfo.getCommandPort(), storageServerInfo);
+                journal(new JournalRecord(JournalRecord.Op.ADD_REPLICA, directory.getPathName(), null, storageServerInfo));
+            }
 
             String ret = g.toJson(new BooleanReturn(true));
             response.status(200);
@@ -896,7 +1138,11 @@ public class NamingServer {
             boolean err = false;
             List<String> deletedFiles = new ArrayList();
             if (!storageServerMap.containsKey(mapKey)) {
-                StorageServerInfo storageServerInfo = new StorageServerInfo(req.storage_ip, req.client_port, req.command_port);
+                // a storage server known from the journal keeps the object its files and clients already refer to
+                StorageServerInfo storageServerInfo = knownStorageServers.remove(mapKey);
+                if (storageServerInfo == null) {
+                    storageServerInfo = new StorageServerInfo(req.storage_ip, req.client_port, req.command_port);
+                }
                 storageServerMap.put(mapKey, storageServerInfo);
                 err = false;
                 for (String file : req.files) {
@@ -904,6 +1150,8 @@ public class NamingServer {
                     Directory directory = fileSystem.findFile(file);
                     if (directory != null) {
                         if (directory.getPathName().equals("/")) continue;
+                        // recovered from the journal as a file of this very server
+                        if (directory.getStorageServerMap().containsKey(mapKey)) continue;
                         deletedFiles.add(directory.getPathName());
                     } else {
                         fileSystem.createFile(file, storageServerInfo);
@@ -932,21 +1180,267 @@ public class NamingServer {
         });
     }
 
+    /**
+     *  Handler function for a subscriber to commit its read cursor of a file, the byte offset up to which it has read
+     *  the file. The cursor is kept (and journaled) here rather than on the subscriber, so a subscriber that restarts
+     *  goes on reading from where it stopped instead of reading every file from the start again. Cursors of a file are
+     *  dropped once the file is deleted.
+     *
+     *  @param g Gson object
+     */
+    public void commitCursorHandler(Gson g) {
+        service.post("/commit_cursor", (request, response) -> {
+            String content = request.body();
+            CursorRequest req;
+            try {
+                req = g.fromJson(content, CursorRequest.class);
+                if (req.subscriberID == null) throw new IllegalArgumentException();
+            } catch (Exception e) {
+                ExceptionReturn excepRet = new ExceptionReturn("Bad Request", "Bad Request");
+                String ret = g.toJson(excepRet);
+                response.status(400);
+                response.type("application/json");
+                return ret;
+            }
+
+            PathResolution resolution = fileSystem.resolve(req.path);
+            if (resolution.isInvalid() || req.offset < 0) {
+                ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "Give path or offset is invalid");
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            if (!resolution.isFile()) {
+                ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+
+            String path = resolution.getDirectory().getPathName();
+            // same monitor as dropCursors, so a cursor is never committed (nor journaled) after the file was dropped
+            synchronized (fileSystem) {
+                if (fileSystem.findFile(path) != resolution.getDirectory()) {
+                    ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found");
+                    String ret = g.toJson(excepRet);
+                    response.status(404);
+                    response.type("application/json");
+                    return ret;
+                }
+                subscriberCursors.computeIfAbsent(req.subscriberID, k -> new ConcurrentHashMap<>()).put(path, req.offset);
+                journal(new JournalRecord(JournalRecord.Op.COMMIT_CURSOR, path, req.subscriberID, req.offset));
+            }
+
+            String ret = g.toJson(new BooleanReturn(true));
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
+
+    /**
+     *  Handler function for a subscriber to get every read cursor it committed on this naming server
+     *
+     *  @param g Gson object
+     */
+    public void getCursorsHandler(Gson g) {
+        service.post("/get_cursors", (request, response) -> {
+            String content = request.body();
+            CursorRequest req;
+            try {
+                req = g.fromJson(content, CursorRequest.class);
+                if (req.subscriberID == null) throw new IllegalArgumentException();
+            } catch (Exception e) {
+                ExceptionReturn excepRet = new ExceptionReturn("Bad Request", "Bad Request");
+                String ret = g.toJson(excepRet);
+                response.status(400);
+                response.type("application/json");
+                return ret;
+            }
+
+            List<String> paths = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            Map<String, Long> cursors = subscriberCursors.get(req.subscriberID);
+            if (cursors != null) {
+                for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+                    paths.add(cursor.getKey());
+                    offsets.add(cursor.getValue());
+                }
+            }
+            long[] offsetArray = new long[offsets.size()];
+            for (int i = 0; i < offsetArray.length; i++) {
+                offsetArray[i] = offsets.get(i);
+            }
+
+            String ret = g.toJson(new CursorsReturn(paths.toArray(new String[0]), offsetArray));
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
+
     /** Some helper functions */
 
     /**
-     * Generate a unique integer index for thead that is interacting with current name server
+     * Append a mutation to the journal, nothing is done if state is kept in memory only. Must be called in the monitor
+     * of the file system, together with the mutation, so records are journaled in the order they are applied.
+     *
+     * @param record record of the mutation
+     */
+    void journal(JournalRecord record) {
+        if (journal != null) {
+            journal.append(record);
+        }
+    }
+
+    /**
+     * Apply one record read from the journal while recovering, see JournalRecord.java
      *
-     * @param upperBnd maximum index numbe for thread
-     * @return Integer of the index value
+     * @param record record to be applied
      */
-    int genUniqueIndex(int upperBnd) {
-        int threadIndex;
-        do {
-            threadIndex = new Random().nextInt(upperBnd);
-        } while (threadIndexes.contains(threadIndex));
-        threadIndexes.add(threadIndex);
-        return threadIndex;
+    void replay(JournalRecord record) {
+        StorageServerInfo storageServerInfo = null;
+        if (record.hasStorageServer()) {
+            storageServerInfo = knownStorageServers.computeIfAbsent(record.getServerKey(),
+                    k -> new StorageServerInfo(record.ip, record.client_port, record.command_port));
+        }
+        Directory directory;
+        switch (record.op) {
+            case CREATE_FILE:
+                fileSystem.createFile(record.path, storageServerInfo);
+                break;
+            case CREATE_DIRECTORY:
+                fileSystem.createDirectory(record.path);
+                break;
+            case DELETE:
+                fileSystem.deleteFile(record.path);
+                dropCursors(record.path);
+                break;
+            case ADD_REPLICA:
+                directory = fileSystem.findFile(record.path);
+                if (directory != null) {
+                    directory.addStorageServerInfo(record.getServerKey(), storageServerInfo);
+                }
+                break;
+            case ADD_FILE_SUBSCRIBER:
+                directory = fileSystem.findFile(record.path);
+                if (directory != null) {
+                    directory.addSubscriber(record.id);
+                }
+                break;
+            case REMOVE_FILE_SUBSCRIBER:
+                directory = fileSystem.findFile(record.path);
+                if (directory != null) {
+                    directory.removeSubscriber(record.id);
+                }
+                break;
+            case SUBSCRIBE_FILE:
+                fileToSubscribers.computeIfAbsent(record.path, k -> ConcurrentHashMap.newKeySet()).add(record.id);
+                break;
+            case REGISTER_PUBLISHER:
+                if (publisherSet.add(record.id)) {
+                    storageServerInfo.addAssignedPublisher(record.id, new PublisherInfo(record.id));
+                    publisherToServer.put(record.id, storageServerInfo);
+                }
+                break;
+            case REGISTER_SUBSCRIBER:
+                if (subscriberSet.add(record.id)) {
+                    storageServerInfo.addAssignedSubscriber(record.id, new SubscriberInfo(record.id));
+                    subscriberToServer.put(record.id, storageServerInfo);
+                }
+                break;
+            case COMMIT_CURSOR:
+                subscriberCursors.computeIfAbsent(record.id, k -> new ConcurrentHashMap<>()).put(record.path, record.offset);
+                break;
+            case DROP_CURSORS:
+                dropCursors(record.path);
+                break;
+        }
+    }
+
+    /**
+     * Drop the read cursors of every subscriber for a file or directory and its subtree, and journal it. Runs in the
+     * monitor of the file system, like /commit_cursor, so cursors are dropped and committed in the order journaled.
+     *
+     * @param path path of the file or directory
+     */
+    void dropCursors(String path) {
+        synchronized (fileSystem) {
+            String prefix = path.endsWith("/") ? path : path + "/";
+            boolean dropped = false;
+            for (Map<String, Long> cursors : subscriberCursors.values()) {
+                dropped |= cursors.keySet().removeIf(file -> file.equals(path) || file.startsWith(prefix));
+            }
+            if (dropped) {
+                journal(new JournalRecord(JournalRecord.Op.DROP_CURSORS, path, null, null));
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of the current state and empty the journal, nothing is done if state is kept in memory only
+     *
+     * @throws IOException if snapshot cannot be written
+     */
+    public void snapshot() throws IOException {
+        if (journal == null) return;
+        // no mutation is applied (nor journaled) while the records are collected
+        synchronized (fileSystem) {
+            synchronized (journal) {
+                List<JournalRecord> records = new ArrayList<>();
+                snapshotTree(fileSystem.rootDirectory, records);
+                for (Map.Entry<String, Set<String>> entry : fileToSubscribers.entrySet()) {
+                    for (String subscriberID : entry.getValue()) {
+                        records.add(new JournalRecord(JournalRecord.Op.SUBSCRIBE_FILE, entry.getKey(), subscriberID, null));
+                    }
+                }
+                for (Map.Entry<String, StorageServerInfo> entry : publisherToServer.entrySet()) {
+                    records.add(new JournalRecord(JournalRecord.Op.REGISTER_PUBLISHER, null, entry.getKey(), entry.getValue()));
+                }
+                for (Map.Entry<String, StorageServerInfo> entry : subscriberToServer.entrySet()) {
+                    records.add(new JournalRecord(JournalRecord.Op.REGISTER_SUBSCRIBER, null, entry.getKey(), entry.getValue()));
+                }
+                for (Map.Entry<String, ConcurrentHashMap<String, Long>> entry : subscriberCursors.entrySet()) {
+                    for (Map.Entry<String, Long> cursor : entry.getValue().entrySet()) {
+                        records.add(new JournalRecord(JournalRecord.Op.COMMIT_CURSOR, cursor.getKey(), entry.getKey(), cursor.getValue()));
+                    }
+                }
+                journal.snapshot(records);
+            }
+        }
+    }
+
+    /**
+     * Add the records that rebuild a subtree of the file system, parents before children
+     *
+     * @param directory root of the subtree
+     * @param records   list the records are added to
+     */
+    private void snapshotTree(Directory directory, List<JournalRecord> records) {
+        for (Directory childDirectory : directory.getChildDirectories().values()) {
+            if (childDirectory.isFile()) {
+                StorageServerInfo first = null;
+                for (StorageServerInfo storageServerInfo : childDirectory.getStorageServerMap().values()) {
+                    if (first == null) {
+                        first = storageServerInfo;
+                        records.add(new JournalRecord(JournalRecord.Op.CREATE_FILE, childDirectory.getPathName(), null, storageServerInfo));
+                    } else {
+                        records.add(new JournalRecord(JournalRecord.Op.ADD_REPLICA, childDirectory.getPathName(), null, storageServerInfo));
+                    }
+                }
+                if (first == null) {
+                    records.add(new JournalRecord(JournalRecord.Op.CREATE_FILE, childDirectory.getPathName(), null, null));
+                }
+                for (String subscriberID : childDirectory.getSubscriberSet()) {
+                    records.add(new JournalRecord(JournalRecord.Op.ADD_FILE_SUBSCRIBER, childDirectory.getPathName(), subscriberID, null));
+                }
+            } else {
+                records.add(new JournalRecord(JournalRecord.Op.CREATE_DIRECTORY, childDirectory.getPathName(), null, null));
+                snapshotTree(childDirectory, records);
+            }
+        }
     }
 
     /**
@@ -978,7 +1472,14 @@ public class NamingServer {
     }
 
     public void stop() {
+        leaseManager.stop();
         service.stop();
         registration.stop();
+        if (snapshotter != null) {
+            snapshotter.shutdownNow();
+        }
+        if (journal != null) {
+            journal.close();
+        }
     }
 }
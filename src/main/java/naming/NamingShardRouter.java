@@ -0,0 +1,108 @@
+package naming;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Naming Shard Router -- splits the keyword namespace across several naming servers (shards) by consistent hashing.
+ * Every shard is placed on a hash ring at a number of virtual points, and a keyword belongs to the first shard at or
+ * after the hash of the keyword on the ring. Each shard is an independent naming server that only ever sees the
+ * /create_file, /getstorage, /replication, /lock and /unlock requests of its own keywords, so metadata throughput grows
+ * with the number of shards, and adding or removing a shard only moves the keywords next to its points.
+ *
+ * Publishers and subscribers register with every shard: the shard their id belongs to picks the storage server, and
+ * the other shards are told to use the same one (details refer to /publisher_register and /subscriber_register).
+ * Storage servers register with every shard as well.
+ */
+public class NamingShardRouter {
+    /**
+     * Default number of points every shard is placed at on the ring
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    /**
+     * Shards of the naming service, in the order they were given
+     */
+    private final List<NamingServerInfo> shards;
+    /**
+     * Hash ring, maps the hash of a point to the shard placed there
+     */
+    private final TreeMap<Long, NamingServerInfo> ring = new TreeMap<>();
+
+    /**
+     * Constructor for naming shard router with the default number of virtual nodes
+     *
+     * @param shards naming servers the namespace is split across, at least one
+     */
+    public NamingShardRouter(NamingServerInfo... shards) {
+        this(DEFAULT_VIRTUAL_NODES, shards);
+    }
+
+    /**
+     * Constructor for naming shard router
+     *
+     * @param virtualNodes number of points every shard is placed at on the ring
+     * @param shards       naming servers the namespace is split across, at least one
+     */
+    public NamingShardRouter(int virtualNodes, NamingServerInfo... shards) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("At least one naming server is required");
+        }
+        this.shards = Collections.unmodifiableList(Arrays.asList(shards.clone()));
+        if (shards.length == 1) return;
+        for (NamingServerInfo shard : shards) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(shard.ip + ":" + shard.servicePort + "#" + i), shard);
+            }
+        }
+    }
+
+    /**
+     * Get the shard a key belongs to
+     *
+     * @param key keyword (or publisher / subscriber id)
+     * @return NamingServerInfo of the shard that owns the key
+     */
+    public NamingServerInfo route(String key) {
+        if (shards.size() == 1) return shards.get(0);
+        Map.Entry<Long, NamingServerInfo> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Get every shard of the naming service
+     *
+     * @return List of shards, in the order they were given
+     */
+    public List<NamingServerInfo> getShards() {
+        return this.shards;
+    }
+
+    /**
+     * Hash a string onto the ring, the first 8 bytes of its MD5 digest
+     *
+     * @param key string to be hashed
+     * @return hash of the string
+     */
+    static long hash(String key) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,127 @@
+package naming;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Path Resolution -- result of resolving the path of one naming request (details refer to FileSystem.resolve). The
+ * path is parsed, validated and looked up once when the request arrives, and the handler works on the result: the
+ * path is either invalid, valid but not in the file system, or found together with its directory (or file).
+ */
+public class PathResolution {
+    /**
+     * Outcome of the resolution
+     */
+    public enum Status {
+        /**
+         * Path is malformed
+         */
+        INVALID,
+        /**
+         * Path is valid but doesn't exist in the file system
+         */
+        NOT_FOUND,
+        /**
+         * Path exists in the file system
+         */
+        FOUND
+    }
+
+    /**
+     * Outcome of the resolution
+     */
+    private final Status status;
+    /**
+     * Path that was resolved, normalized unless it's invalid
+     */
+    private final String path;
+    /**
+     * Directory (or file) of the path, null unless found
+     */
+    private final Directory directory;
+
+    /**
+     * Constructor for path resolution
+     *
+     * @param status    outcome of the resolution
+     * @param path      path that was resolved
+     * @param directory directory (or file) of the path, null unless found
+     */
+    PathResolution(Status status, String path, Directory directory) {
+        this.status = status;
+        this.path = path;
+        this.directory = directory;
+    }
+
+    /**
+     * Get the outcome of the resolution
+     *
+     * @return Status of the resolution
+     */
+    public Status getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Check if path is invalid
+     *
+     * @return boolean true if invalid
+     */
+    public boolean isInvalid() {
+        return this.status == Status.INVALID;
+    }
+
+    /**
+     * Check if path exists in the file system
+     *
+     * @return boolean true if found
+     */
+    public boolean isFound() {
+        return this.status == Status.FOUND;
+    }
+
+    /**
+     * Get the path that was resolved
+     *
+     * @return String of path, normalized unless it's invalid
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Get the directory (or file) of the path
+     *
+     * @return Directory of the path, null unless found
+     */
+    public Directory getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Check if path exists and is a file
+     *
+     * @return boolean true if found as a file
+     */
+    public boolean isFile() {
+        return this.directory != null && this.directory.isFile();
+    }
+
+    /**
+     * Check if path exists and is a directory
+     *
+     * @return boolean true if found as a directory
+     */
+    public boolean isDirectory() {
+        return this.directory != null && !this.directory.isFile();
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public String toString() {
+        return "PathResolution: status = <" + status + "> path = <" + path + ">";
+    }
+}
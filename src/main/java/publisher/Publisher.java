@@ -2,6 +2,8 @@ package publisher;
 
 import com.google.gson.Gson;
 import jsonhelper.*;
+import naming.NamingServerInfo;
+import naming.NamingShardRouter;
 import naming.StorageServerInfo;
 
 import java.io.IOException;
@@ -9,7 +11,9 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 /**Authors : Sheng-Hao Wu, Kevin Li */
@@ -23,6 +27,14 @@ import java.util.Queue;
  */
 
 public class Publisher {
+    /**
+     * maximum number of records (one text for one keyword) sent in one /storage_write_batch request
+     */
+    public static final int PUBLISH_BATCH_MAX_RECORDS = 256;
+    /**
+     * maximum number of text bytes sent in one /storage_write_batch request, a larger record is still sent on its own
+     */
+    public static final int PUBLISH_BATCH_MAX_BYTES = 1024 * 1024;
     /** 
      * id of publisher 
      */
@@ -75,8 +87,31 @@ public class Publisher {
      * @throws InterruptedException
      */
     public HttpResponse<String> register(String namingServerIP, int namingServerServicePort) throws IOException, InterruptedException {
-        return getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/publisher_register",
+        return register(new NamingShardRouter(new NamingServerInfo(namingServerIP, namingServerServicePort, 0)));
+    }
+
+    /**
+     * Function to register a publisher with a sharded naming service. The shard that owns the publisher id picks the
+     * storage server, then every other shard is told to assign the same one.
+     *
+     * @param router router of the naming server shards
+     * @return the HTTPResponse of registering with the shard that owns the publisher, or of the first shard that failed
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public HttpResponse<String> register(NamingShardRouter router) throws IOException, InterruptedException {
+        NamingServerInfo owner = router.route(this.publisherID);
+        HttpResponse<String> ownerResponse = getHttpResponse("http://" + owner.ip + ":" + owner.servicePort + "/publisher_register",
                                 new PublisherRegisterRequest(this.publisherID));
+        if (ownerResponse.statusCode() != 200) return ownerResponse;
+        StorageServerInfo assigned = new Gson().fromJson(ownerResponse.body(), StorageServerInfo.class);
+        for (NamingServerInfo shard : router.getShards()) {
+            if (shard == owner) continue;
+            response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/publisher_register",
+                    new PublisherRegisterRequest(this.publisherID, assigned.getIP(), assigned.getClientPort(), assigned.getCommandPort()));
+            if (response.statusCode() != 200) return response;
+        }
+        return ownerResponse;
     }
 
     /**
@@ -89,12 +124,25 @@ public class Publisher {
      * @throws InterruptedException
      */
     public void setReady(String namingServerIP, int namingServerServicePort) throws IOException, InterruptedException {
+        setReady(new NamingShardRouter(new NamingServerInfo(namingServerIP, namingServerServicePort, 0)));
+    }
+
+    /**
+     * Function to make sure the publisher is ready with a sharded naming service, every keyword file is created through
+     * the shard that owns the keyword.
+     *
+     * @param router router of the naming server shards
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void setReady(NamingShardRouter router) throws IOException, InterruptedException {
         Object[] objArray = this.contentQueue.toArray();
 
         for (Object obj : objArray) {
             Content content= (Content)obj;
             for (String keyWord : content.getKeyWords()) {
-                getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/create_file",
+                NamingServerInfo shard = router.route(keyWord);
+                getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/create_file",
                         new PathRequest("/" + keyWord, getPublisherID()));
             }
         }
@@ -102,6 +150,9 @@ public class Publisher {
 
     /**
      * Function to publish a content file to connected storage server. Relies upon <code>getHttpResponse</code> to perform HTTP POST requests.
+     * The content queue is drained into a few /storage_write_batch requests, each one carrying up to
+     * <code>PUBLISH_BATCH_MAX_RECORDS</code> records (one text for one keyword) that the storage server appends, instead
+     * of asking for the size of and writing to every keyword of every content one by one.
      *
      * @return boolean to indicate whether the publisher was successful in sending content file to assigned storage server.
      * @throws IOException 
@@ -109,18 +160,47 @@ public class Publisher {
      */
     public Boolean publish() throws IOException, InterruptedException {
         if (assignedStorageServer == null) return false;
+        boolean published = true;
+        List<String> paths = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        long bytes = 0;
         while (!contentQueue.isEmpty()) {
             Content content = getContent();
+            int length = content.getText().getBytes().length;
             for (String keyWord : content.getKeyWords()) {
-                // get the size first
-                response = getHttpResponse("http://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_size",
-                        new PathRequest("/" + keyWord));
-                long size = new Gson().fromJson(response.body(), SizeReturn.class).size;
-                // write the content
-                getHttpResponse("http://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_write",
-                        new WriteRequest("/" + keyWord, size, content.getText()));
+                if (!paths.isEmpty() && (paths.size() == PUBLISH_BATCH_MAX_RECORDS || bytes + length > PUBLISH_BATCH_MAX_BYTES)) {
+                    published &= publishBatch(paths, texts);
+                    paths.clear();
+                    texts.clear();
+                    bytes = 0;
+                }
+                paths.add("/" + keyWord);
+                texts.add(content.getText());
+                bytes += length;
             }
         }
+        if (!paths.isEmpty()) {
+            published &= publishBatch(paths, texts);
+        }
+        return published;
+    }
+
+    /**
+     * Function to send one batch of records to connected storage server, in the order they are given.
+     *
+     * @param paths path of the keyword file of each record
+     * @param texts text of each record
+     * @return boolean to indicate whether every record was written
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    boolean publishBatch(List<String> paths, List<String> texts) throws IOException, InterruptedException {
+        response = getHttpResponse("http://" + assignedStorageServer.getIP() + ":" + assignedStorageServer.getClientPort() + "/storage_write_batch",
+                new WriteBatchRequest(paths.toArray(new String[0]), texts.toArray(new String[0])));
+        if (response.statusCode() != 200) return false;
+        for (long offset : new Gson().fromJson(response.body(), WriteBatchReturn.class).offsets) {
+            if (offset < 0) return false;
+        }
         return true;
     }
 
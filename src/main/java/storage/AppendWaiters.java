@@ -0,0 +1,201 @@
+package storage;
+
+import common.Path;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Append Waiters -- parks the /storage_read_since requests that found nothing new to read until their path is appended
+ * to or their timeout passes. A parked request holds no thread: the handler puts its response in asynchronous mode and
+ * leaves a waiter here, and the waiter is woken by the group committer (once an append to its path is durable) or by
+ * the timer. Waking runs the waiter's task on a small pool of threads, which reads the new bytes and completes the
+ * response, so idle subscribers cost nothing and a new message reaches a waiting subscriber right after its commit.
+ */
+public class AppendWaiters {
+    /**
+     * Default number of threads that complete the woken requests
+     */
+    public static final int DEFAULT_THREADS = 4;
+    /**
+     * Map of path to the waiters parked on it
+     */
+    private final ConcurrentHashMap<Path, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+    /**
+     * Number of threads that complete the woken requests
+     */
+    private final int threads;
+    /**
+     * Executor that times out waiters and runs the tasks of the woken ones, null if not started
+     */
+    private volatile ScheduledExecutorService executor;
+
+    /**
+     * One parked request
+     */
+    public class Waiter {
+        /**
+         * Path the request waits for
+         */
+        private final Path path;
+        /**
+         * Task that completes the request, run once when the waiter is woken or times out
+         */
+        private final Runnable task;
+        /**
+         * Whether waiter was already woken
+         */
+        private final AtomicBoolean woken = new AtomicBoolean();
+        /**
+         * Timeout of the waiter, null until it's scheduled
+         */
+        private volatile ScheduledFuture<?> timeout;
+
+        /**
+         * Constructor for waiter
+         *
+         * @param path path the request waits for
+         * @param task task that completes the request
+         */
+        Waiter(Path path, Runnable task) {
+            this.path = path;
+            this.task = task;
+        }
+
+        /**
+         * Wake the waiter and run its task, nothing is done if it was already woken
+         */
+        public void wake() {
+            if (!woken.compareAndSet(false, true)) return;
+            // a path nobody waits for anymore leaves the map
+            waiters.computeIfPresent(path, (k, parked) -> parked.remove(this) && parked.isEmpty() ? null : parked);
+            ScheduledFuture<?> scheduled = timeout;
+            if (scheduled != null) scheduled.cancel(false);
+            execute(task);
+        }
+    }
+
+    /**
+     * Constructor for append waiters
+     *
+     * @param threads number of threads that complete the woken requests
+     */
+    public AppendWaiters(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Start the threads of the waiters
+     */
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newScheduledThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "append-waiters");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stop the threads of the waiters, every parked request is completed first
+     */
+    public void stop() {
+        for (Set<Waiter> parked : waiters.values()) {
+            for (Waiter waiter : parked) {
+                waiter.wake();
+            }
+        }
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            stopped = executor;
+            executor = null;
+        }
+        if (stopped == null) return;
+        stopped.shutdown();
+        try {
+            stopped.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Park a request until its path is appended to or its timeout passes. The caller must check for new bytes once
+     * more after parking and wake the waiter itself if an append landed in the meantime.
+     *
+     * @param path          path the request waits for
+     * @param timeoutMillis time (in milliseconds) to wait at most
+     * @param task          task that completes the request, run exactly once
+     * @return Waiter of the request
+     */
+    public Waiter await(Path path, long timeoutMillis, Runnable task) {
+        Waiter waiter = new Waiter(path, task);
+        // added in the same atomic step that finds the set, so it's never added to a set just removed by wake()
+        waiters.compute(path, (k, parked) -> {
+            if (parked == null) parked = ConcurrentHashMap.newKeySet();
+            parked.add(waiter);
+            return parked;
+        });
+        ScheduledExecutorService scheduler = this.executor;
+        try {
+            if (scheduler == null) throw new RejectedExecutionException();
+            waiter.timeout = scheduler.schedule(waiter::wake, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // not started or stopping, don't wait at all
+            waiter.wake();
+        }
+        return waiter;
+    }
+
+    /**
+     * Called by the group committer once appends to a path are durable, wakes every waiter of the path
+     *
+     * @param path path that was appended to
+     */
+    public void appended(Path path) {
+        Set<Waiter> parked = waiters.get(path);
+        if (parked == null || parked.isEmpty()) return;
+        for (Waiter waiter : parked) {
+            waiter.wake();
+        }
+    }
+
+    /**
+     * Get number of requests currently parked
+     *
+     * @return number of waiters
+     */
+    public int getWaiterCount() {
+        int count = 0;
+        for (Set<Waiter> parked : waiters.values()) {
+            count += parked.size();
+        }
+        return count;
+    }
+
+    /**
+     * Run a task on the threads of the waiters, or on the calling thread if they are stopped
+     *
+     * @param task task to be run
+     */
+    private void execute(Runnable task) {
+        ScheduledExecutorService runner = this.executor;
+        if (runner != null) {
+            try {
+                runner.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                // stopping, run it here
+            }
+        }
+        task.run();
+    }
+}
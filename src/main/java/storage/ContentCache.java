@@ -0,0 +1,348 @@
+package storage;
+
+import common.Path;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Content Cache -- least recently used cache of file ranges in front of the reads of the storage server. A popular
+ * keyword is read by every subscriber assigned to the storage server, so the same range is read again and again; the
+ * cache keeps the bytes of a range (keyed by path, offset and length) in memory, bounded by the total number of bytes
+ * cached instead of the number of entries.
+ *
+ * Keyword files are append-only, so an append never changes bytes that are already cached, it only makes the entries
+ * that were cut short by the old end of the file stale; those are extended with the appended bytes. A write in the
+ * middle of a file drops every entry from that offset on, and delete or copy drop the whole path. Callers must update
+ * the cache while they hold the write lock of the path, and fill it while they hold the read lock, so a stale range
+ * can never be put back after it was invalidated.
+ */
+public class ContentCache {
+    /**
+     * Default maximum number of bytes cached
+     */
+    public static final long DEFAULT_CAPACITY_BYTES = 64L * 1024 * 1024;
+    /**
+     * Cached ranges, ordered from least to most recently used
+     */
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Keys of the cached ranges of every path, used to invalidate a path without scanning every entry
+     */
+    private final HashMap<Path, Set<Key>> keysByPath = new HashMap<>();
+    /**
+     * Maximum number of bytes cached, 0 disables the cache
+     */
+    private long capacityBytes;
+    /**
+     * Number of bytes currently cached
+     */
+    private long bytes;
+    /**
+     * Number of lookups that found their range
+     */
+    private long hits;
+    /**
+     * Number of lookups that missed
+     */
+    private long misses;
+    /**
+     * Number of entries evicted to stay within capacity
+     */
+    private long evictions;
+
+    /**
+     * Key of one cached range
+     */
+    static class Key {
+        /**
+         * Path of the file
+         */
+        final Path path;
+        /**
+         * Offset of the range
+         */
+        final long offset;
+        /**
+         * Requested length of the range, the cached bytes are shorter if the range reached the end of the file
+         */
+        final int length;
+
+        /**
+         * Constructor for key
+         *
+         * @param path   path of the file
+         * @param offset offset of the range
+         * @param length requested length of the range
+         */
+        Key(Path path, long offset, int length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof Key)) return false;
+            Key key = (Key) obj;
+            return this.offset == key.offset && this.length == key.length && this.path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, offset, length);
+        }
+    }
+
+    /**
+     * Constructor for content cache
+     *
+     * @param capacityBytes maximum number of bytes cached, 0 disables the cache
+     */
+    public ContentCache(long capacityBytes) {
+        this.capacityBytes = Math.max(0, capacityBytes);
+    }
+
+    /**
+     * Change the maximum number of bytes cached, evicting entries if the cache shrinks
+     *
+     * @param capacityBytes maximum number of bytes cached, 0 disables the cache
+     */
+    public synchronized void setCapacityBytes(long capacityBytes) {
+        this.capacityBytes = Math.max(0, capacityBytes);
+        evict();
+    }
+
+    /**
+     * Get the maximum number of bytes cached
+     *
+     * @return capacity in bytes
+     */
+    public synchronized long getCapacityBytes() {
+        return this.capacityBytes;
+    }
+
+    /**
+     * Check if a range is small enough to be cached, a single range may use at most an eighth of the cache so that
+     * one big read cannot flush every popular range out
+     *
+     * @param length requested length of the range
+     * @return boolean true if range can be cached
+     */
+    public synchronized boolean isCacheable(long length) {
+        return length >= 0 && length <= capacityBytes / 8;
+    }
+
+    /**
+     * Look up a range
+     *
+     * @param path   path of the file
+     * @param offset offset of the range
+     * @param length requested length of the range
+     * @return cached bytes, null if range is not cached
+     */
+    public synchronized byte[] get(Path path, long offset, int length) {
+        byte[] data = entries.get(new Key(path, offset, length));
+        if (data == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return data;
+    }
+
+    /**
+     * Cache the bytes of a range that was just read
+     *
+     * @param path   path of the file
+     * @param offset offset of the range
+     * @param length requested length of the range
+     * @param data   bytes read, shorter than length if the range reached the end of the file
+     */
+    public synchronized void put(Path path, long offset, int length, byte[] data) {
+        if (!isCacheable(data.length)) return;
+        Key key = new Key(path, offset, length);
+        byte[] old = entries.put(key, data);
+        if (old != null) {
+            bytes -= old.length;
+        }
+        bytes += data.length;
+        keysByPath.computeIfAbsent(path, k -> new HashSet<>()).add(key);
+        evict();
+    }
+
+    /**
+     * Bring the cache up to date after bytes were appended to the end of a file. Entries that were cut short by the old
+     * end of the file are extended with the appended bytes, nothing else can change.
+     *
+     * @param path   path of the file
+     * @param offset offset where data was appended, the old size of the file
+     * @param data   bytes appended
+     */
+    public synchronized void append(Path path, long offset, byte[] data) {
+        Set<Key> keys = keysByPath.get(path);
+        if (keys == null) return;
+        Iterator<Key> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            Key key = iterator.next();
+            byte[] old = entries.get(key);
+            if (old.length >= key.length) continue;
+            if (key.offset + old.length != offset) {
+                // cut short but not at the old end of the file, the entry cannot be trusted
+                remove(iterator, key);
+                continue;
+            }
+            int extra = (int) Math.min(data.length, key.length - old.length);
+            byte[] extended = new byte[old.length + extra];
+            System.arraycopy(old, 0, extended, 0, old.length);
+            System.arraycopy(data, 0, extended, old.length, extra);
+            entries.put(key, extended);
+            bytes += extra;
+        }
+        evict();
+    }
+
+    /**
+     * Drop every entry of a file that reaches the given offset or the end of the file, used when the file is
+     * overwritten from that offset on
+     *
+     * @param path   path of the file
+     * @param offset offset from which the file changed
+     */
+    public synchronized void invalidateFrom(Path path, long offset) {
+        Set<Key> keys = keysByPath.get(path);
+        if (keys == null) return;
+        Iterator<Key> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            Key key = iterator.next();
+            byte[] data = entries.get(key);
+            if (key.offset + data.length > offset || data.length < key.length) {
+                remove(iterator, key);
+            }
+        }
+        if (keys.isEmpty()) {
+            keysByPath.remove(path);
+        }
+    }
+
+    /**
+     * Drop every entry of a path and of every path under it
+     *
+     * @param path path of the file or directory
+     */
+    public synchronized void invalidate(Path path) {
+        Iterator<Map.Entry<Path, Set<Key>>> pathIterator = keysByPath.entrySet().iterator();
+        while (pathIterator.hasNext()) {
+            Map.Entry<Path, Set<Key>> entry = pathIterator.next();
+            if (!entry.getKey().isSubpath(path)) continue;
+            for (Key key : entry.getValue()) {
+                bytes -= entries.remove(key).length;
+            }
+            pathIterator.remove();
+        }
+    }
+
+    /**
+     * Drop every entry
+     */
+    public synchronized void clear() {
+        entries.clear();
+        keysByPath.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Get number of lookups that found their range
+     *
+     * @return number of hits
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Get number of lookups that missed
+     *
+     * @return number of misses
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Get number of entries evicted to stay within capacity
+     *
+     * @return number of evictions
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * Get number of entries cached
+     *
+     * @return number of entries
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Get number of bytes cached
+     *
+     * @return bytes cached
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Remove one entry while iterating the keys of its path
+     *
+     * @param iterator iterator over the keys of the path, positioned at key
+     * @param key      key to be removed
+     */
+    private void remove(Iterator<Key> iterator, Key key) {
+        bytes -= entries.remove(key).length;
+        iterator.remove();
+    }
+
+    /**
+     * Evict least recently used entries until the cache is within capacity
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, byte[]>> iterator = entries.entrySet().iterator();
+        while (bytes > capacityBytes && iterator.hasNext()) {
+            Map.Entry<Key, byte[]> eldest = iterator.next();
+            bytes -= eldest.getValue().length;
+            iterator.remove();
+            Set<Key> keys = keysByPath.get(eldest.getKey().path);
+            if (keys != null) {
+                keys.remove(eldest.getKey());
+                if (keys.isEmpty()) {
+                    keysByPath.remove(eldest.getKey().path);
+                }
+            }
+            evictions++;
+        }
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public synchronized String toString() {
+        return "ContentCache: entries = <" + entries.size() + "> bytes = <" + bytes + "> hits = <" + hits
+                + "> misses = <" + misses + "> evictions = <" + evictions + ">";
+    }
+}
@@ -0,0 +1,21 @@
+package storage;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Fsync Policy -- how hard the storage server tries to make a write durable before /storage_write returns.
+ */
+public enum FsyncPolicy {
+    /**
+     * Never force the written bytes to the disk, leave it to the operating system
+     */
+    NONE,
+    /**
+     * Force every log touched by a batch once, after the whole batch is written
+     */
+    PER_BATCH,
+    /**
+     * Force the log after every single write
+     */
+    PER_WRITE
+}
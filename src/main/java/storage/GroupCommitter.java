@@ -0,0 +1,368 @@
+package storage;
+
+import common.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Group Committer -- write pipeline behind /storage_write and /storage_write_batch. Request threads don't touch the logs themselves, they queue
+ * their write and wait for it to complete. A single committer thread takes everything that is queued (optionally
+ * waiting a short commit window for more writes to arrive), groups the writes by path, coalesces back to back appends
+ * of one path into a single append, and forces each touched log once per batch. A write is completed only after its
+ * batch is durable according to the fsync policy, so publishers get durable writes without paying one fsync each.
+ *
+ * The committer takes the write lock of a path (see PathLockManager) while it writes that path, so writes are still
+ * ordered against the other operations of the storage server. Request threads must not hold any path lock while they
+ * wait for their write.
+ */
+public class GroupCommitter {
+    /**
+     * Default maximum number of writes in one batch
+     */
+    public static final int DEFAULT_MAX_BATCH = 256;
+    /**
+     * Offset of a queued write that is appended at whatever the end of the log is when it's committed
+     */
+    static final long APPEND = -1L;
+    /**
+     * Storage engine the writes are applied to
+     */
+    private final LogStore store;
+    /**
+     * Path locks of the storage server
+     */
+    private final PathLockManager locks;
+    /**
+     * Content cache of the storage server, kept up to date with every write
+     */
+    private final ContentCache cache;
+    /**
+     * Writes waiting for the committer thread
+     */
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    /**
+     * Maximum number of writes in one batch
+     */
+    private final int maxBatch;
+    /**
+     * How written bytes are forced to the disk
+     */
+    private volatile FsyncPolicy fsyncPolicy = FsyncPolicy.PER_BATCH;
+    /**
+     * How long (in microseconds) the committer waits for more writes after the first write of a batch, 0 means a
+     * batch is only what queued up while the previous batch was being written
+     */
+    private volatile long commitWindowMicros;
+    /**
+     * Told about every path once its writes of a batch are durable, null if nobody listens
+     */
+    private volatile Consumer<Path> commitListener;
+    /**
+     * Committer thread, null if committer is not started
+     */
+    private Thread thread;
+    /**
+     * Whether committer thread should keep running
+     */
+    private volatile boolean running;
+
+    /**
+     * One queued write
+     */
+    static class PendingWrite {
+        /**
+         * Path of the file
+         */
+        final Path path;
+        /**
+         * Offset to write at, APPEND to append at the end of the log
+         */
+        final long offset;
+        /**
+         * Bytes to be written
+         */
+        final byte[] data;
+        /**
+         * Completed with the offset where data was written once the write is durable
+         */
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        /**
+         * Constructor for pending write
+         *
+         * @param path   path of the file
+         * @param offset offset to write at, APPEND to append at the end of the log
+         * @param data   bytes to be written
+         */
+        PendingWrite(Path path, long offset, byte[] data) {
+            this.path = path;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Constructor for group committer
+     *
+     * @param store    storage engine the writes are applied to
+     * @param locks    path locks of the storage server
+     * @param cache    content cache of the storage server
+     * @param maxBatch maximum number of writes in one batch
+     */
+    public GroupCommitter(LogStore store, PathLockManager locks, ContentCache cache, int maxBatch) {
+        this.store = store;
+        this.locks = locks;
+        this.cache = cache;
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Set how written bytes are forced to the disk
+     *
+     * @param fsyncPolicy fsync policy
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Get how written bytes are forced to the disk
+     *
+     * @return fsync policy
+     */
+    public FsyncPolicy getFsyncPolicy() {
+        return this.fsyncPolicy;
+    }
+
+    /**
+     * Set how long the committer waits for more writes after the first write of a batch
+     *
+     * @param commitWindowMicros commit window in microseconds, 0 to disable
+     */
+    public void setCommitWindowMicros(long commitWindowMicros) {
+        this.commitWindowMicros = Math.max(0, commitWindowMicros);
+    }
+
+    /**
+     * Set who is told about every path once its writes of a batch are durable, it runs on the committer thread and
+     * must not block
+     *
+     * @param commitListener listener of the commits, null to remove it
+     */
+    public void setCommitListener(Consumer<Path> commitListener) {
+        this.commitListener = commitListener;
+    }
+
+    /**
+     * Start the committer thread
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::run, "group-committer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the committer thread, writes that are still queued fail
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        List<PendingWrite> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (PendingWrite write : left) {
+            write.future.completeExceptionally(new IOException("Storage server is stopped"));
+        }
+    }
+
+    /**
+     * Queue a write, see SegmentedLog.write for how the offset is treated
+     *
+     * @param path   path of the file
+     * @param offset offset to write at
+     * @param data   bytes to be written
+     * @return future completed with the offset where data was written once the write is durable, or completed
+     *         exceptionally with FileNotFoundException if file doesn't exist
+     */
+    public CompletableFuture<Long> submit(Path path, long offset, byte[] data) {
+        return enqueue(new PendingWrite(path, offset, data));
+    }
+
+    /**
+     * Queue an append, the data is written at the end of the log as it is when the write is committed, so appends
+     * queued back to back are coalesced even though the caller never asked for the size of the file
+     *
+     * @param path path of the file
+     * @param data bytes to be appended
+     * @return future completed with the offset where data was written once the write is durable, or completed
+     *         exceptionally with FileNotFoundException if file doesn't exist
+     */
+    public CompletableFuture<Long> submitAppend(Path path, byte[] data) {
+        return enqueue(new PendingWrite(path, APPEND, data));
+    }
+
+    /**
+     * Hand a write to the committer thread
+     *
+     * @param write write to be queued
+     * @return future of the write
+     */
+    private CompletableFuture<Long> enqueue(PendingWrite write) {
+        if (!running) {
+            write.future.completeExceptionally(new IOException("Storage server is stopped"));
+            return write.future;
+        }
+        queue.add(write);
+        // committer may have stopped between the check and the add, nobody would take the write then
+        if (!running && queue.remove(write)) {
+            write.future.completeExceptionally(new IOException("Storage server is stopped"));
+        }
+        return write.future;
+    }
+
+    /**
+     * Main loop of the committer thread
+     */
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(queue.take());
+                long window = commitWindowMicros;
+                if (window > 0) {
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(window);
+                    while (batch.size() < maxBatch) {
+                        PendingWrite write = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (write == null) break;
+                        batch.add(write);
+                    }
+                }
+                queue.drainTo(batch, maxBatch - batch.size());
+                commit(batch);
+            } catch (InterruptedException e) {
+                for (PendingWrite write : batch) {
+                    write.future.completeExceptionally(new IOException("Storage server is stopped"));
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write one batch, path by path, and complete the writes once they are durable
+     *
+     * @param batch writes to be committed, in the order they were queued
+     */
+    void commit(List<PendingWrite> batch) {
+        Map<Path, List<PendingWrite>> byPath = new LinkedHashMap<>();
+        for (PendingWrite write : batch) {
+            byPath.computeIfAbsent(write.path, k -> new ArrayList<>()).add(write);
+        }
+        for (Map.Entry<Path, List<PendingWrite>> entry : byPath.entrySet()) {
+            List<PendingWrite> writes = entry.getValue();
+            long[] written = new long[writes.size()];
+            Lock lock = locks.getLock(entry.getKey()).writeLock();
+            lock.lock();
+            try {
+                if (!store.exists(entry.getKey())) {
+                    throw new FileNotFoundException("File/path cannot be found: " + entry.getKey());
+                }
+                write(entry.getKey(), store.open(entry.getKey()), writes, written);
+            } catch (Exception e) {
+                cache.invalidate(entry.getKey());
+                for (PendingWrite write : writes) {
+                    write.future.completeExceptionally(e);
+                }
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            for (int i = 0; i < writes.size(); i++) {
+                writes.get(i).future.complete(written[i]);
+            }
+            Consumer<Path> listener = commitListener;
+            if (listener != null) {
+                listener.accept(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Apply the writes of one path. Each run of writes that starts at the end of the log and follows one another is
+     * coalesced into a single append (unless every write has to be forced on its own). Appends follow whatever write
+     * comes before them.
+     *
+     * @param path    path of the file
+     * @param log     log of the path
+     * @param writes  writes of the path, in the order they were queued
+     * @param written filled with the offset where each write was written
+     * @throws IOException if a write or a flush fails
+     */
+    private void write(Path path, SegmentedLog log, List<PendingWrite> writes, long[] written) throws IOException {
+        FsyncPolicy policy = this.fsyncPolicy;
+        int i = 0;
+        while (i < writes.size()) {
+            PendingWrite first = writes.get(i);
+            long end = log.size();
+            long start = first.offset == APPEND ? end : first.offset;
+            long next = start + first.data.length;
+            int j = i + 1;
+            if (start == end && policy != FsyncPolicy.PER_WRITE) {
+                while (j < writes.size() && (writes.get(j).offset == next || writes.get(j).offset == APPEND)) {
+                    next += writes.get(j).data.length;
+                    j++;
+                }
+            }
+            if (j - i == 1) {
+                if (start < end) {
+                    cache.invalidateFrom(path, start);
+                }
+                store.write(path, start, first.data);
+                written[i] = Math.min(start, end);
+                cache.append(path, written[i], first.data);
+            } else {
+                byte[] data = new byte[(int) (next - start)];
+                long[] messageOffsets = new long[j - i];
+                int position = 0;
+                for (int k = i; k < j; k++) {
+                    PendingWrite write = writes.get(k);
+                    messageOffsets[k - i] = position;
+                    System.arraycopy(write.data, 0, data, position, write.data.length);
+                    written[k] = start + position;
+                    position += write.data.length;
+                }
+                store.append(path, data, messageOffsets);
+                cache.append(path, start, data);
+            }
+            if (policy == FsyncPolicy.PER_WRITE) {
+                log.flush(false);
+            }
+            i = j;
+        }
+        if (policy == FsyncPolicy.PER_BATCH) {
+            log.flush(false);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Log Segment -- one fixed-size, append-only piece of a keyword file. A segment is stored on disk as a single file
+ * named after the logical offset of its first byte, so the segments of one keyword file can be ordered and located
+ * without any extra metadata. The file channel is opened once and reused for every append and read afterward.
+ *
+ * Reads can also be served from a read-only memory mapping of the segment. The mapping is created on the first mapped
+ * read (so only segments that are actually read get mapped), and unmapped when the segment is truncated, closed or
+ * deleted. Bytes appended after the segment was mapped are read from the channel, the segment is only mapped again
+ * once that tail grew by REMAP_BYTES, so subscribers reading the tail of the active segment don't map it on every
+ * read. The mapping can't simply cover the whole segment capacity up front: mapping past the end of the file extends
+ * the file, and the file length is what the size of a segment is recovered from at startup.
+ *
+ * A sealed segment that went cold can be compressed (gzip, the file is renamed to end with .log.gz). A compressed
+ * segment keeps its logical size and is read by inflating the whole segment into memory, the inflated bytes are kept
+ * softly so a segment being read again is not inflated every time. Compressing and decompressing replace the segment
+ * file, so callers must hold the write lock of the path while they do it.
+ */
+public class LogSegment {
+    /**
+     * Suffix of every segment file name
+     */
+    static final String SUFFIX = ".log";
+    /**
+     * Suffix of every compressed segment file name
+     */
+    static final String COMPRESSED_SUFFIX = SUFFIX + ".gz";
+    /**
+     * Number of bytes appended past the mapped region before the segment is mapped again
+     */
+    static final long REMAP_BYTES = 256 * 1024;
+    /**
+     * File that holds the bytes of this segment, compressed or not
+     */
+    private volatile File file;
+    /**
+     * Logical offset (inside the keyword file) of the first byte of this segment
+     */
+    private final long baseOffset;
+    /**
+     * Channel that is kept open for appends and positional reads, opened on first use
+     */
+    private FileChannel channel;
+    /**
+     * Number of bytes currently stored in this segment
+     */
+    private volatile long size;
+    /**
+     * Read-only mapping of this segment, null if segment is not mapped
+     */
+    private volatile MappedByteBuffer mapped;
+    /**
+     * Whether the segment file is compressed
+     */
+    private volatile boolean compressed;
+    /**
+     * Whether compressing this segment turned out not to save any space
+     */
+    private volatile boolean incompressible;
+    /**
+     * Inflated bytes of a compressed segment, dropped by the garbage collector when memory is short
+     */
+    private volatile SoftReference<byte[]> inflated;
+    /**
+     * Method that releases a mapping right away instead of waiting for garbage collection, null if not available
+     */
+    private static final Method INVOKE_CLEANER;
+    /**
+     * Instance of sun.misc.Unsafe that the cleaner method is invoked on
+     */
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * Constructor for log segment, a compressed segment file is used if there is one, otherwise the segment file is
+     * created if it doesn't exist yet
+     *
+     * @param directory  directory of the keyword file that owns this segment
+     * @param baseOffset logical offset of the first byte of this segment
+     * @throws IOException if segment file cannot be created
+     */
+    public LogSegment(File directory, long baseOffset) throws IOException {
+        this.baseOffset = baseOffset;
+        File raw = new File(directory, fileName(baseOffset));
+        File gz = new File(directory, fileName(baseOffset) + ".gz");
+        if (gz.exists() && raw.exists()) {
+            // (de)compression was interrupted after the new file was in place, both files hold the same bytes
+            gz.delete();
+        }
+        if (gz.exists()) {
+            this.file = gz;
+            this.compressed = true;
+            this.size = inflatedSize(gz);
+        } else {
+            this.file = raw;
+            this.file.createNewFile();
+            this.size = this.file.length();
+        }
+    }
+
+    /**
+     * Get the segment file name for a base offset, zero padded so that names sort in offset order
+     *
+     * @param baseOffset logical offset of the first byte of the segment
+     * @return String of segment file name
+     */
+    static String fileName(long baseOffset) {
+        return String.format("%020d", baseOffset) + SUFFIX;
+    }
+
+    /**
+     * Check if a file name is a segment file name
+     *
+     * @param name file name
+     * @return boolean true if name belongs to a segment file
+     */
+    static boolean isSegmentFile(String name) {
+        boolean suffix = (name.length() == 20 + SUFFIX.length() && name.endsWith(SUFFIX))
+                || (name.length() == 20 + COMPRESSED_SUFFIX.length() && name.endsWith(COMPRESSED_SUFFIX));
+        return suffix && name.substring(0, 20).chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * Parse the base offset out of a segment file name
+     *
+     * @param name segment file name
+     * @return base offset of the segment
+     */
+    static long parseBaseOffset(String name) {
+        return Long.parseLong(name.substring(0, 20));
+    }
+
+    /**
+     * Get the size of a segment from the disk without opening it, used to learn the size of a keyword file at startup
+     *
+     * @param directory  directory of the keyword file that owns the segment
+     * @param baseOffset logical offset of the first byte of the segment
+     * @return segment size in bytes, inflated size if the segment is compressed
+     * @throws IOException if compressed segment cannot be read
+     */
+    static long sizeOnDisk(File directory, long baseOffset) throws IOException {
+        File raw = new File(directory, fileName(baseOffset));
+        if (raw.exists()) return raw.length();
+        File gz = new File(directory, fileName(baseOffset) + ".gz");
+        return gz.exists() ? inflatedSize(gz) : 0;
+    }
+
+    /**
+     * Get logical offset of the first byte of this segment
+     *
+     * @return base offset
+     */
+    public long getBaseOffset() {
+        return this.baseOffset;
+    }
+
+    /**
+     * Get number of bytes stored in this segment
+     *
+     * @return segment size in bytes
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Get the segment file
+     *
+     * @return File of this segment
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Check if segment file is compressed
+     *
+     * @return boolean true if segment is compressed
+     */
+    public boolean isCompressed() {
+        return this.compressed;
+    }
+
+    /**
+     * Get the last time the segment file was written
+     *
+     * @return last modified time in milliseconds
+     */
+    public long lastModified() {
+        return this.file.lastModified();
+    }
+
+    /**
+     * Get the channel of this segment, open it if it's the first access
+     *
+     * @return FileChannel of this segment
+     * @throws IOException if segment file cannot be opened
+     */
+    synchronized FileChannel channel() throws IOException {
+        if (this.channel == null || !this.channel.isOpen()) {
+            this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return this.channel;
+    }
+
+    /**
+     * Append bytes to the end of this segment with a single positional write
+     *
+     * @param data bytes to be appended
+     * @throws IOException if write fails
+     */
+    synchronized void append(ByteBuffer data) throws IOException {
+        if (compressed) {
+            decompress();
+        }
+        FileChannel fileChannel = channel();
+        long position = this.size;
+        while (data.hasRemaining()) {
+            position += fileChannel.write(data, position);
+        }
+        this.size = position;
+    }
+
+    /**
+     * Read bytes starting at a position relative to this segment, stop when buffer is full or segment ends
+     *
+     * @param position position relative to base offset
+     * @param dst      buffer to be filled
+     * @return number of bytes read
+     * @throws IOException if read fails
+     */
+    int read(long position, ByteBuffer dst) throws IOException {
+        if (compressed) {
+            byte[] bytes = inflate();
+            if (position >= bytes.length) return 0;
+            int n = (int) Math.min(dst.remaining(), bytes.length - position);
+            dst.put(bytes, (int) position, n);
+            return n;
+        }
+        FileChannel fileChannel = channel();
+        int total = 0;
+        long end = this.size;
+        while (dst.hasRemaining() && position < end) {
+            int limit = dst.limit();
+            if (end - position < dst.remaining()) {
+                dst.limit(dst.position() + (int) (end - position));
+            }
+            int n = fileChannel.read(dst, position);
+            dst.limit(limit);
+            if (n < 0) break;
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Read bytes starting at a position relative to this segment through the memory mapping, the segment is mapped
+     * when needed. Bytes past the mapped region are read from the channel, see REMAP_BYTES.
+     *
+     * @param position position relative to base offset
+     * @param dst      buffer to be filled
+     * @return number of bytes read
+     * @throws IOException if segment cannot be mapped
+     */
+    int readMapped(long position, ByteBuffer dst) throws IOException {
+        if (compressed) {
+            return read(position, dst);
+        }
+        long end = Math.min(this.size, position + dst.remaining());
+        if (position >= end) return 0;
+        MappedByteBuffer buffer = this.mapped;
+        if (buffer == null || end - buffer.capacity() > REMAP_BYTES) {
+            buffer = map();
+        }
+        int total = 0;
+        if (position < buffer.capacity()) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit((int) Math.min(end, buffer.capacity())).position((int) position);
+            total = view.remaining();
+            dst.put(view);
+            position += total;
+        }
+        if (position < end) {
+            total += read(position, dst);
+        }
+        return total;
+    }
+
+    /**
+     * Map the whole current content of this segment, replacing the previous mapping. The previous mapping may still
+     * be used by concurrent readers, so it's left to the garbage collector instead of being released here, which
+     * happens at most once every REMAP_BYTES appended.
+     *
+     * @return MappedByteBuffer of this segment
+     * @throws IOException if segment cannot be mapped
+     */
+    private synchronized MappedByteBuffer map() throws IOException {
+        MappedByteBuffer buffer = this.mapped;
+        if (buffer != null && this.size - buffer.capacity() <= REMAP_BYTES) return buffer;
+        buffer = channel().map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+        this.mapped = buffer;
+        return buffer;
+    }
+
+    /**
+     * Drop the memory mapping of this segment
+     */
+    synchronized void unmap() {
+        MappedByteBuffer buffer = this.mapped;
+        this.mapped = null;
+        if (buffer != null) {
+            unmap(buffer);
+        }
+    }
+
+    /**
+     * Release a mapping right away, the callers must make sure no reader is still using it (storage server holds
+     * the write lock of the path for truncate and delete). Without the cleaner the mapping is released by the
+     * garbage collector instead.
+     *
+     * @param buffer mapping to be released
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compress the segment file with gzip. The compressed file is written next to the segment file and renamed into
+     * place before the segment file is deleted, so the segment survives a crash at any point. Nothing is done if the
+     * segment is empty, already compressed, or compressing doesn't save space.
+     *
+     * @return boolean true if segment was compressed
+     * @throws IOException if compressed file cannot be written
+     */
+    synchronized boolean compress() throws IOException {
+        if (compressed || incompressible || this.size == 0) return false;
+        File raw = this.file;
+        File gz = new File(raw.getParentFile(), raw.getName() + ".gz");
+        File tmp = new File(raw.getParentFile(), raw.getName() + ".gz.tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            GZIPOutputStream out = new GZIPOutputStream(fileOut, 64 * 1024);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long position = 0;
+            while (position < this.size) {
+                buffer.clear();
+                int n = read(position, buffer);
+                if (n <= 0) break;
+                out.write(buffer.array(), 0, n);
+                position += n;
+            }
+            out.finish();
+            fileOut.getFD().sync();
+        }
+        if (tmp.length() >= this.size) {
+            tmp.delete();
+            incompressible = true;
+            return false;
+        }
+        close();
+        Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        this.file = gz;
+        this.compressed = true;
+        raw.delete();
+        return true;
+    }
+
+    /**
+     * Turn a compressed segment back into a plain segment file, needed before it's truncated or appended to
+     *
+     * @throws IOException if segment file cannot be written
+     */
+    synchronized void decompress() throws IOException {
+        if (!compressed) return;
+        File gz = this.file;
+        File raw = new File(gz.getParentFile(), fileName(baseOffset));
+        File tmp = new File(gz.getParentFile(), fileName(baseOffset) + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(inflate());
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), raw.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        this.file = raw;
+        this.compressed = false;
+        this.incompressible = false;
+        this.inflated = null;
+        gz.delete();
+    }
+
+    /**
+     * Get the inflated bytes of a compressed segment, inflate the segment file if they are not kept in memory
+     *
+     * @return bytes of this segment
+     * @throws IOException if segment file cannot be inflated
+     */
+    private byte[] inflate() throws IOException {
+        SoftReference<byte[]> reference = this.inflated;
+        byte[] bytes = reference == null ? null : reference.get();
+        if (bytes != null) return bytes;
+        bytes = new byte[(int) this.size];
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(this.file)), 64 * 1024)) {
+            int position = 0;
+            while (position < bytes.length) {
+                int n = in.read(bytes, position, bytes.length - position);
+                if (n < 0) throw new IOException("Compressed segment " + this.file + " is shorter than " + this.size + " bytes");
+                position += n;
+            }
+        }
+        this.inflated = new SoftReference<>(bytes);
+        return bytes;
+    }
+
+    /**
+     * Get the size of the inflated bytes of a gzip file from its trailer, which holds the size modulo 2^32 (a segment
+     * is always smaller than that)
+     *
+     * @param gz gzip file
+     * @return inflated size in bytes
+     * @throws IOException if trailer cannot be read
+     */
+    private static long inflatedSize(File gz) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(gz, "r")) {
+            if (in.length() < 4) return 0;
+            in.seek(in.length() - 4);
+            byte[] trailer = new byte[4];
+            in.readFully(trailer);
+            return ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * Truncate this segment to a given size
+     *
+     * @param newSize size relative to base offset
+     * @throws IOException if truncate fails
+     */
+    synchronized void truncate(long newSize) throws IOException {
+        if (newSize >= this.size) return;
+        if (compressed) {
+            decompress();
+        }
+        unmap();
+        channel().truncate(newSize);
+        this.size = newSize;
+    }
+
+    /**
+     * Flush written bytes to the disk
+     *
+     * @param metaData whether file metadata should be flushed as well
+     * @throws IOException if flush fails
+     */
+    synchronized void flush(boolean metaData) throws IOException {
+        if (this.channel != null && this.channel.isOpen()) {
+            this.channel.force(metaData);
+        }
+    }
+
+    /**
+     * Close the channel of this segment, it will be opened again on next access
+     *
+     * @throws IOException if close fails
+     */
+    synchronized void close() throws IOException {
+        unmap();
+        this.inflated = null;
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Close and delete this segment from the disk
+     *
+     * @return boolean true if segment file was deleted
+     * @throws IOException if close fails
+     */
+    synchronized boolean delete() throws IOException {
+        close();
+        return this.file.delete();
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public String toString() {
+        return "LogSegment: base_offset = <" + baseOffset + "> size = <" + size + "> compressed = <" + compressed + ">";
+    }
+}
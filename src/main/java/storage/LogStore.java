@@ -0,0 +1,343 @@
+package storage;
+
+import common.Path;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Log Store -- storage engine behind the client routes of the storage server. Every keyword file is kept as a
+ * segmented log (details refer to SegmentedLog.java) under the root directory, and the store keeps the opened logs
+ * in memory so that segment channels are reused across requests instead of being reopened on every write.
+ *
+ * Keyword files written by an older storage server (a single plain file) are migrated into a one-segment log the
+ * first time they are opened.
+ *
+ * The store also keeps a metadata table with the size of every keyword file, built by scanning the root directory
+ * once at startup and updated by every create, write, append and delete of the store, so that existence and size
+ * queries (the most frequent requests of the storage server) never touch the filesystem.
+ */
+public class LogStore {
+    /**
+     * Default maximum number of bytes of one segment
+     */
+    public static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    /**
+     * The root directory
+     */
+    private final File root;
+    /**
+     * Maximum number of bytes of one segment
+     */
+    private final long segmentBytes;
+    /**
+     * Map of path to the opened log of that keyword file
+     */
+    private final ConcurrentHashMap<Path, SegmentedLog> logs = new ConcurrentHashMap<>();
+    /**
+     * Metadata table, map of path to the logical size of every keyword file, opened or not
+     */
+    private final ConcurrentHashMap<Path, Long> sizes = new ConcurrentHashMap<>();
+    /**
+     * Whether reads are served from memory mappings of the segments, see LogSegment.readMapped
+     */
+    private volatile boolean mmapReads = true;
+    /**
+     * Whether the store is closed, a closed store doesn't open logs again
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor for log store
+     *
+     * @param root         root directory of the storage server
+     * @param segmentBytes maximum number of bytes of one segment
+     */
+    public LogStore(File root, long segmentBytes) {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        for (Path path : list()) {
+            File file = path.toFile(root);
+            try {
+                sizes.put(path, file.isFile() ? file.length() : SegmentedLog.sizeOnDisk(file));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Switch every log between memory mapped reads and channel reads
+     *
+     * @param mmapReads true if reads should be served from memory mappings
+     */
+    public void setMmapReads(boolean mmapReads) {
+        this.mmapReads = mmapReads;
+        for (SegmentedLog log : logs.values()) {
+            log.setMmapReads(mmapReads);
+        }
+    }
+
+    /**
+     * Check if keyword file exists
+     *
+     * @param path path of the file
+     * @return boolean true if file exists
+     */
+    public boolean exists(Path path) {
+        return sizes.containsKey(path);
+    }
+
+    /**
+     * Get the log of a keyword file, open it if it's not opened yet
+     *
+     * @param path path of the file
+     * @return SegmentedLog of the file
+     * @throws FileNotFoundException if file doesn't exist
+     * @throws IOException if log cannot be opened
+     */
+    public SegmentedLog open(Path path) throws IOException {
+        SegmentedLog log = logs.get(path);
+        if (log != null) return log;
+        synchronized (logs) {
+            log = logs.get(path);
+            if (log != null) return log;
+            if (closed) {
+                throw new IOException("Log store is closed");
+            }
+            if (!exists(path)) {
+                throw new FileNotFoundException("File/path cannot be found: " + path);
+            }
+            File file = path.toFile(root);
+            if (file.isFile()) {
+                migrate(file);
+            }
+            log = new SegmentedLog(file, segmentBytes);
+            log.setMmapReads(mmapReads);
+            logs.put(path, log);
+            return log;
+        }
+    }
+
+    /**
+     * Create an empty keyword file, parent directories are created when needed
+     *
+     * @param path path of the file
+     * @return boolean true if file is created, false if it already exists
+     * @throws IOException if file cannot be created
+     */
+    public boolean create(Path path) throws IOException {
+        if (path.isRoot()) return false;
+        synchronized (logs) {
+            if (exists(path) || path.toFile(root).exists()) return false;
+            SegmentedLog log = new SegmentedLog(path.toFile(root), segmentBytes);
+            log.setMmapReads(mmapReads);
+            logs.put(path, log);
+            sizes.put(path, 0L);
+            return true;
+        }
+    }
+
+    /**
+     * Get size of a keyword file from the metadata table
+     *
+     * @param path path of the file
+     * @return size in bytes
+     * @throws FileNotFoundException if file doesn't exist
+     */
+    public long size(Path path) throws FileNotFoundException {
+        Long size = sizes.get(path);
+        if (size == null) {
+            throw new FileNotFoundException("File/path cannot be found: " + path);
+        }
+        return size;
+    }
+
+    /**
+     * Read bytes of a keyword file
+     *
+     * @param path   path of the file
+     * @param offset offset to read from
+     * @param length maximum number of bytes to read
+     * @return bytes read
+     * @throws IOException if file doesn't exist or read fails
+     */
+    public byte[] read(Path path, long offset, int length) throws IOException {
+        return open(path).read(offset, length);
+    }
+
+    /**
+     * Append bytes to a keyword file
+     *
+     * @param path path of the file
+     * @param data bytes to be appended
+     * @return offset where data was written
+     * @throws IOException if file doesn't exist or append fails
+     */
+    public long append(Path path, byte[] data) throws IOException {
+        SegmentedLog log = open(path);
+        long offset = log.append(data);
+        sizes.put(path, log.size());
+        return offset;
+    }
+
+    /**
+     * Append a run of messages to a keyword file, see SegmentedLog.append
+     *
+     * @param path           path of the file
+     * @param data           bytes of all messages
+     * @param messageOffsets start offset of every message relative to the start of data
+     * @return offset where data was written
+     * @throws IOException if file doesn't exist or append fails
+     */
+    public long append(Path path, byte[] data, long[] messageOffsets) throws IOException {
+        SegmentedLog log = open(path);
+        long offset = log.append(data, messageOffsets);
+        sizes.put(path, log.size());
+        return offset;
+    }
+
+    /**
+     * Replace the content of a keyword file with a copy of another log, see SegmentedLog.replace
+     *
+     * @param path           path of the file
+     * @param startOffset    logical offset of the first byte held by the original
+     * @param baseSequence   sequence number of the first index entry of the original
+     * @param data           bytes held by the original, from its start offset to its end
+     * @param messageOffsets logical start offset of every message in the index of the original
+     * @throws IOException if file doesn't exist or replace fails
+     */
+    public void replace(Path path, long startOffset, int baseSequence, byte[] data, long[] messageOffsets) throws IOException {
+        SegmentedLog log = open(path);
+        log.replace(startOffset, baseSequence, data, messageOffsets);
+        sizes.put(path, log.size());
+    }
+
+    /**
+     * Write bytes to a keyword file at an offset, see SegmentedLog.write
+     *
+     * @param path   path of the file
+     * @param offset offset to write at
+     * @param data   bytes to be written
+     * @throws IOException if file doesn't exist or write fails
+     */
+    public void write(Path path, long offset, byte[] data) throws IOException {
+        SegmentedLog log = open(path);
+        log.write(offset, data);
+        sizes.put(path, log.size());
+    }
+
+    /**
+     * Delete a keyword file, or a directory with all the keyword files under it
+     *
+     * @param path path of the file or directory
+     * @return boolean true if something is deleted
+     * @throws IOException if close fails
+     */
+    public boolean delete(Path path) throws IOException {
+        if (path.isRoot()) return false;
+        synchronized (logs) {
+            File file = path.toFile(root);
+            if (!file.exists() && !logs.containsKey(path)) return false;
+            for (Map.Entry<Path, SegmentedLog> entry : logs.entrySet()) {
+                if (entry.getKey().isSubpath(path)) {
+                    entry.getValue().close();
+                    logs.remove(entry.getKey());
+                }
+            }
+            sizes.keySet().removeIf(p -> p.isSubpath(path));
+            return deleteRecursively(file);
+        }
+    }
+
+    /**
+     * List every keyword file under the root directory, opened or not
+     *
+     * @return list of paths of the keyword files
+     */
+    public List<Path> list() {
+        List<Path> paths = new ArrayList<>();
+        list(root, new Path(), paths);
+        return paths;
+    }
+
+    /**
+     * Helper function that recursively collects the keyword files under a directory
+     *
+     * @param directory directory to be listed
+     * @param path      path of the directory
+     * @param paths     list the paths are added to
+     */
+    private void list(File directory, Path path, List<Path> paths) {
+        File[] children = directory.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            Path childPath = new Path(path, child.getName());
+            if (child.isFile()) {
+                if (!child.getName().endsWith(".migrating")) {
+                    paths.add(childPath);
+                }
+            } else if (SegmentedLog.isLogDirectory(child)) {
+                paths.add(childPath);
+            } else {
+                list(child, childPath, paths);
+            }
+        }
+    }
+
+    /**
+     * Close every opened log, logs are not opened again afterward. Closing unmaps the segments, so callers must make
+     * sure no read is still running (storage server holds the write lock of every path).
+     *
+     * @throws IOException if close fails
+     */
+    public void close() throws IOException {
+        synchronized (logs) {
+            closed = true;
+            for (SegmentedLog log : logs.values()) {
+                log.close();
+            }
+            logs.clear();
+        }
+    }
+
+    /**
+     * Turn a plain keyword file into a log directory that holds it as the first segment
+     *
+     * @param file plain keyword file
+     * @throws IOException if migration fails
+     */
+    private void migrate(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".migrating");
+        Files.move(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (!file.mkdirs()) {
+            throw new IOException("Cannot create log directory " + file);
+        }
+        Files.move(tmp.toPath(), new File(file, LogSegment.fileName(0)).toPath());
+    }
+
+    /**
+     * Helper function that recursively delete a file or directory from the disk
+     *
+     * @param file file or directory to be deleted
+     * @return boolean true if file is deleted
+     */
+    static boolean deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete();
+    }
+}
@@ -0,0 +1,360 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Message Index -- maps the sequence number of every message published to a keyword file to the logical offset where
+ * that message starts. The texts inside a keyword file are concatenated without any framing, so the boundaries cannot
+ * be recovered from the bytes themselves and the index has to record one entry per message (a message ends where the
+ * next one starts, the last one ends at the end of the log).
+ *
+ * Entries are kept in memory for lookups and appended to a small file (8 bytes per entry) in the log directory so the
+ * index survives a restart. Since offsets only grow, looking up the first message at or after an offset is a binary
+ * search.
+ *
+ * Once retention reclaimed the oldest messages, their entries are dropped as well (see trim), so the index only grows
+ * with the messages the log still holds. The index then starts at a base sequence number, which is part of the index
+ * file name the same way segment files are named after their base offset; trimming writes the remaining entries to a
+ * new file and renames it into place, so the base and the entries always change together.
+ */
+public class MessageIndex {
+    /**
+     * Name of the index file written before the index had a base sequence number, its base is 0
+     */
+    static final String LEGACY_FILE_NAME = "messages.index";
+    /**
+     * Prefix of every index file name
+     */
+    private static final String PREFIX = "messages.";
+    /**
+     * Suffix of every index file name
+     */
+    private static final String SUFFIX = ".index";
+    /**
+     * Number of bytes of one entry on disk
+     */
+    private static final int ENTRY_BYTES = 8;
+    /**
+     * Directory of the keyword file that owns this index
+     */
+    private final File directory;
+    /**
+     * File that holds the entries of this index
+     */
+    private File file;
+    /**
+     * Channel of the index file, opened on first use
+     */
+    private FileChannel channel;
+    /**
+     * Sequence number of the first entry held
+     */
+    private int base;
+    /**
+     * Start offset of every message held, ordered by sequence number, offsets[0] is message base
+     */
+    private long[] offsets;
+    /**
+     * Number of entries held
+     */
+    private int count;
+
+    /**
+     * Constructor for message index, loads the existing entries or create an empty index file
+     *
+     * @param directory directory of the keyword file that owns this index
+     * @throws IOException if index file cannot be read or created
+     */
+    public MessageIndex(File directory) throws IOException {
+        this.directory = directory;
+        // a trim interrupted after the rename leaves the previous file behind, the highest base is the latest
+        this.base = -1;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                int fileBase = parseBase(name);
+                if (fileBase > this.base) {
+                    if (this.file != null) this.file.delete();
+                    this.base = fileBase;
+                    this.file = new File(directory, name);
+                } else if (fileBase >= 0 || name.endsWith(SUFFIX + ".tmp")) {
+                    new File(directory, name).delete();
+                }
+            }
+        }
+        if (this.file == null) {
+            this.base = 0;
+            this.file = new File(directory, fileName(0));
+            this.file.createNewFile();
+        }
+        int entries = (int) (this.file.length() / ENTRY_BYTES);
+        this.offsets = new long[Math.max(16, entries)];
+        ByteBuffer buffer = ByteBuffer.allocate(entries * ENTRY_BYTES);
+        FileChannel fileChannel = channel();
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        while (buffer.remaining() >= ENTRY_BYTES) {
+            offsets[count++] = buffer.getLong();
+        }
+    }
+
+    /**
+     * Get the index file name for a base sequence number, zero padded like the segment file names
+     *
+     * @param base sequence number of the first entry of the file
+     * @return String of index file name
+     */
+    static String fileName(int base) {
+        return PREFIX + String.format("%020d", base) + SUFFIX;
+    }
+
+    /**
+     * Parse the base sequence number out of an index file name
+     *
+     * @param name file name
+     * @return base sequence number, -1 if name is not an index file name
+     */
+    static int parseBase(String name) {
+        if (name.equals(LEGACY_FILE_NAME)) return 0;
+        if (name.length() != PREFIX.length() + 20 + SUFFIX.length() || !name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        String digits = name.substring(PREFIX.length(), PREFIX.length() + 20);
+        return digits.chars().allMatch(Character::isDigit) ? (int) Long.parseLong(digits) : -1;
+    }
+
+    /**
+     * Get the channel of the index file, open it if it's the first access
+     *
+     * @return FileChannel of the index file
+     * @throws IOException if index file cannot be opened
+     */
+    private FileChannel channel() throws IOException {
+        if (this.channel == null || !this.channel.isOpen()) {
+            this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return this.channel;
+    }
+
+    /**
+     * Make the index agree with the log after a restart: entries past the end of the log are dropped, entries of
+     * messages reclaimed before the restart are trimmed, and a non-empty log without any entry (written before the
+     * index existed) is treated as one message
+     *
+     * @param logStart logical offset of the first byte still held by the log
+     * @param logSize  logical size of the log
+     * @throws IOException if index file cannot be updated
+     */
+    synchronized void recover(long logStart, long logSize) throws IOException {
+        truncate(logSize);
+        trim(search(logStart));
+        if (base == 0 && count == 0 && logSize > logStart) {
+            append(logStart);
+        }
+    }
+
+    /**
+     * Add the start offset of a new message
+     *
+     * @param offset logical offset where the message starts
+     * @throws IOException if entry cannot be written
+     */
+    synchronized void append(long offset) throws IOException {
+        if (count > 0 && offsets[count - 1] >= offset) return;
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES).putLong(0, offset);
+        long position = (long) count * ENTRY_BYTES;
+        FileChannel fileChannel = channel();
+        while (entry.hasRemaining()) {
+            position += fileChannel.write(entry, position);
+        }
+        offsets[count++] = offset;
+    }
+
+    /**
+     * Drop every message that starts at or after a logical offset
+     *
+     * @param offset logical offset the log is truncated to
+     * @throws IOException if index file cannot be truncated
+     */
+    synchronized void truncate(long offset) throws IOException {
+        int keep = search(offset) - base;
+        if (keep == count) return;
+        count = keep;
+        channel().truncate((long) count * ENTRY_BYTES);
+    }
+
+    /**
+     * Drop the entries of every message before a sequence number, used once retention reclaimed those messages. The
+     * remaining entries are written to a new index file named after the new base, which then replaces the old one.
+     *
+     * @param sequence sequence number of the first message to keep
+     * @throws IOException if new index file cannot be written
+     */
+    synchronized void trim(int sequence) throws IOException {
+        int drop = Math.min(sequence, base + count) - base;
+        if (drop <= 0) return;
+        rewrite(base + drop, Arrays.copyOfRange(offsets, drop, count));
+    }
+
+    /**
+     * Drop every entry and start the index over at a base sequence number, used when the log is replaced by a copy
+     *
+     * @param base sequence number of the next message
+     * @throws IOException if new index file cannot be written
+     */
+    synchronized void reset(int base) throws IOException {
+        rewrite(base, new long[0]);
+    }
+
+    /**
+     * Replace the index file with one holding the given entries, written next to it and renamed into place
+     *
+     * @param newBase    sequence number of the first entry
+     * @param newOffsets entries to be held
+     * @throws IOException if new index file cannot be written
+     */
+    private void rewrite(int newBase, long[] newOffsets) throws IOException {
+        File newFile = new File(directory, fileName(newBase));
+        File tmp = new File(directory, fileName(newBase) + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(newOffsets.length * ENTRY_BYTES);
+        for (long offset : newOffsets) {
+            buffer.putLong(offset);
+        }
+        buffer.flip();
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        close();
+        Files.move(tmp.toPath(), newFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (!newFile.equals(this.file)) {
+            this.file.delete();
+        }
+        this.file = newFile;
+        this.base = newBase;
+        this.offsets = Arrays.copyOf(newOffsets, Math.max(16, newOffsets.length));
+        this.count = newOffsets.length;
+    }
+
+    /**
+     * Get number of messages ever published to the log, which is the sequence number of the next message
+     *
+     * @return number of messages
+     */
+    public synchronized int count() {
+        return this.base + this.count;
+    }
+
+    /**
+     * Get sequence number of the first message still in the index
+     *
+     * @return base sequence number
+     */
+    public synchronized int base() {
+        return this.base;
+    }
+
+    /**
+     * Get the start offset of a message
+     *
+     * @param sequence sequence number of the message
+     * @return logical offset where the message starts
+     */
+    public synchronized long offset(int sequence) {
+        if (sequence < base || sequence >= base + count) {
+            throw new IndexOutOfBoundsException("Sequence " + sequence + " is outside of the index of messages "
+                    + base + " to " + (base + count));
+        }
+        return offsets[sequence - base];
+    }
+
+    /**
+     * Get the start offsets of a range of messages
+     *
+     * @param sequence sequence number of the first message, no earlier than the base
+     * @param number   maximum number of messages
+     * @return array of start offsets, shorter than number if the index ends first
+     */
+    public synchronized long[] offsets(int sequence, int number) {
+        if (sequence < base || sequence > base + count) {
+            throw new IndexOutOfBoundsException("Sequence " + sequence + " is outside of the index of messages "
+                    + base + " to " + (base + count));
+        }
+        int from = sequence - base;
+        int end = (int) Math.min(count, (long) from + Math.max(0, number));
+        return Arrays.copyOfRange(offsets, from, end);
+    }
+
+    /**
+     * Find the sequence number of the first message that starts at or after a logical offset
+     *
+     * @param offset logical offset
+     * @return sequence number, equals to count if no message starts there, no earlier than the base
+     */
+    public synchronized int search(long offset) {
+        int i = Arrays.binarySearch(offsets, 0, count, offset);
+        return base + (i >= 0 ? i : -i - 1);
+    }
+
+    /**
+     * Flush the entries to the disk
+     *
+     * @param metaData whether file metadata should be flushed as well
+     * @throws IOException if flush fails
+     */
+    synchronized void flush(boolean metaData) throws IOException {
+        if (this.channel != null && this.channel.isOpen()) {
+            this.channel.force(metaData);
+        }
+    }
+
+    /**
+     * Close the channel of the index file, it will be opened again on next access
+     *
+     * @throws IOException if close fails
+     */
+    synchronized void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Close and delete the index file from the disk
+     *
+     * @return boolean true if index file was deleted
+     * @throws IOException if close fails
+     */
+    synchronized boolean delete() throws IOException {
+        close();
+        return this.file.delete();
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public String toString() {
+        return "MessageIndex: file = <" + file + "> base = <" + base() + "> count = <" + count() + ">";
+    }
+}
@@ -0,0 +1,90 @@
+package storage;
+
+import common.Path;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Path Lock Manager -- per path read/write locking for the storage server. Instead of one monitor for the whole
+ * server, each path is hashed to one of a fixed number of read/write lock stripes. Concurrent reads of one keyword
+ * file share its read lock, a write only excludes the operations that hash to the same stripe, and operations on
+ * different keywords almost never contend.
+ *
+ * Operations that touch a whole directory tree (like deleting a directory) lock every stripe, always in increasing
+ * stripe order so that two of them cannot deadlock each other.
+ */
+public class PathLockManager {
+    /**
+     * Default number of lock stripes
+     */
+    public static final int DEFAULT_STRIPES = 64;
+    /**
+     * Lock stripes, a path always maps to the same stripe
+     */
+    private final ReentrantReadWriteLock[] stripes;
+
+    /**
+     * Constructor for path lock manager
+     *
+     * @param stripeCount number of lock stripes, rounded up to a power of two
+     */
+    public PathLockManager(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Get the read/write lock of a path
+     *
+     * @param path path to be locked
+     * @return ReadWriteLock of the stripe that path maps to
+     */
+    public ReadWriteLock getLock(Path path) {
+        return stripes[stripeIndex(path)];
+    }
+
+    /**
+     * Acquire the write lock of every stripe, in increasing stripe order
+     */
+    public void lockAll() {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+    }
+
+    /**
+     * Release the write lock of every stripe, in decreasing stripe order
+     */
+    public void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get number of lock stripes
+     *
+     * @return number of stripes
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Map a path to its stripe, spread the hash bits first since path hash codes are weak in low bits
+     *
+     * @param path path to be mapped
+     * @return index of the stripe
+     */
+    int stripeIndex(Path path) {
+        int h = path.hashCode();
+        h ^= (h >>> 16);
+        return h & (stripes.length - 1);
+    }
+}
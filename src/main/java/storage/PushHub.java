@@ -0,0 +1,385 @@
+package storage;
+
+import com.google.gson.Gson;
+import common.Path;
+import jsonhelper.PushReturn;
+import jsonhelper.PushSubscribeRequest;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Push Hub -- WebSocket delivery channel of the storage server (/storage_subscribe on the client port). A subscriber
+ * connects once and sends the keyword files it wants (details refer to jsonhelper/PushSubscribeRequest.java); from
+ * then on, every message appended to those files is pushed to it as soon as its batch is durable (see
+ * GroupCommitter.java), instead of the subscriber polling each keyword with /lock, /storage_size, /storage_read and
+ * /unlock.
+ *
+ * Every path subscribed to is acknowledged with a frame that has no message and the sequence number of the first
+ * message that will be pushed, so a subscriber knows when it can no longer miss an append.
+ *
+ * Each subscription keeps the sequence number of the next message to push. The group committer only tells the hub
+ * which paths were appended to; a single push thread then reads the new messages of a path once, from the oldest
+ * cursor of its subscribers, and hands every subscriber the part it hasn't seen. Subscriptions are only touched by the
+ * push thread, so messages of a path reach a subscriber in order and exactly once per connection. Only appends that
+ * land on this storage server are pushed.
+ *
+ * Messages are read in chunks of at most PUSH_CHUNK_MESSAGES messages (and about PUSH_CHUNK_BYTES), so a subscriber
+ * far behind never makes the push thread hold a whole file in memory. Sends are asynchronous and flow controlled: a
+ * subscriber with PUSH_HIGH_WATER_FRAMES frames not yet written to its connection is paused, its cursors stay at the
+ * first message not sent and it's skipped by the pushes, until the write callbacks bring it down to
+ * PUSH_LOW_WATER_FRAMES and it's resumed from its cursors. A slow subscriber therefore only holds a bounded number of
+ * frames in memory, and is caught up from the log instead of being disconnected.
+ */
+@WebSocket
+public class PushHub {
+    /**
+     * Maximum number of messages read from a file at once
+     */
+    public static final int PUSH_CHUNK_MESSAGES = 256;
+    /**
+     * Number of bytes after which no more messages are added to a chunk, a chunk holds at least one message
+     */
+    public static final int PUSH_CHUNK_BYTES = 1 << 20;
+    /**
+     * Number of frames sent to a subscriber and not yet written at which the subscriber is paused
+     */
+    public static final int PUSH_HIGH_WATER_FRAMES = 1024;
+    /**
+     * Number of frames sent to a subscriber and not yet written at which a paused subscriber is resumed
+     */
+    public static final int PUSH_LOW_WATER_FRAMES = 256;
+    /**
+     * Storage engine the messages are read from
+     */
+    private final LogStore store;
+    /**
+     * Path locks of the storage server
+     */
+    private final PathLockManager locks;
+    /**
+     * Gson object
+     */
+    private final Gson g = new Gson();
+    /**
+     * Map of path to its subscribers and the sequence number of the next message to push to each, push thread only
+     */
+    private final Map<Path, Map<Session, Integer>> subscriptions = new HashMap<>();
+    /**
+     * Map of subscriber to the paths it subscribed to, push thread only
+     */
+    private final Map<Session, List<Path>> sessions = new HashMap<>();
+    /**
+     * Map of subscriber to the number of frames sent to it and not yet written, decremented by the write callbacks
+     */
+    private final Map<Session, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+    /**
+     * Subscribers paused because too many frames sent to them are not written yet, see send
+     */
+    private final Set<Session> paused = ConcurrentHashMap.newKeySet();
+    /**
+     * Paths that were appended to and are waiting for the push thread
+     */
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    /**
+     * Executor of the push thread, null if hub is not started
+     */
+    private ExecutorService pusher;
+
+    /**
+     * Constructor for push hub
+     *
+     * @param store storage engine the messages are read from
+     * @param locks path locks of the storage server
+     */
+    public PushHub(LogStore store, PathLockManager locks) {
+        this.store = store;
+        this.locks = locks;
+    }
+
+    /**
+     * Start the push thread
+     */
+    public synchronized void start() {
+        if (pusher != null) return;
+        pusher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "push-hub");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stop the push thread, waits for a running push to finish. Subscribers are disconnected when the client service
+     * stops.
+     */
+    public void stop() {
+        ExecutorService stopped;
+        synchronized (this) {
+            stopped = pusher;
+            pusher = null;
+        }
+        if (stopped == null) return;
+        stopped.shutdownNow();
+        try {
+            stopped.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by the group committer once appends to a path are durable. Appends that arrive while the path is still
+     * waiting for the push thread are pushed together.
+     *
+     * @param path path that was appended to
+     */
+    public void appended(Path path) {
+        if (pending.add(path)) {
+            run(() -> {
+                pending.remove(path);
+                push(path);
+            });
+        }
+    }
+
+    /**
+     * Handle a subscription request sent by a subscriber
+     *
+     * @param session connection of the subscriber
+     * @param message JSON of PushSubscribeRequest
+     */
+    @OnWebSocketMessage
+    public void onMessage(Session session, String message) {
+        PushSubscribeRequest req;
+        List<Path> paths = new ArrayList<>();
+        try {
+            req = g.fromJson(message, PushSubscribeRequest.class);
+            for (String path : req.paths) {
+                paths.add(new Path(path));
+            }
+        } catch (Exception e) {
+            session.close(StatusCode.BAD_DATA, "Bad Request");
+            return;
+        }
+        run(() -> {
+            for (int i = 0; i < paths.size(); i++) {
+                int sequence = req.sequences != null && i < req.sequences.length ? req.sequences[i] : -1;
+                subscribe(session, paths.get(i), sequence);
+            }
+        });
+    }
+
+    /**
+     * Drop every subscription of a subscriber that disconnected
+     *
+     * @param session    connection of the subscriber
+     * @param statusCode close status code
+     * @param reason     close reason
+     */
+    @OnWebSocketClose
+    public void onClose(Session session, int statusCode, String reason) {
+        run(() -> {
+            outstanding.remove(session);
+            paused.remove(session);
+            List<Path> paths = sessions.remove(session);
+            if (paths == null) return;
+            for (Path path : paths) {
+                Map<Session, Integer> subscribers = subscriptions.get(path);
+                if (subscribers == null) continue;
+                subscribers.remove(session);
+                if (subscribers.isEmpty()) subscriptions.remove(path);
+            }
+        });
+    }
+
+    /**
+     * Subscribe a subscriber to a path and push what it missed, push thread only
+     *
+     * @param session  connection of the subscriber
+     * @param path     path of the keyword file
+     * @param sequence sequence number of the first message to push, negative to only push new messages
+     */
+    private void subscribe(Session session, Path path, int sequence) {
+        if (sequence < 0) {
+            sequence = 0;
+            Lock lock = locks.getLock(path).readLock();
+            lock.lock();
+            try {
+                if (store.exists(path)) {
+                    sequence = store.open(path).messageCount();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        }
+        Map<Session, Integer> subscribers = subscriptions.computeIfAbsent(path, k -> new HashMap<>());
+        if (subscribers.put(session, sequence) == null) {
+            sessions.computeIfAbsent(session, k -> new ArrayList<>()).add(path);
+        }
+        // the acknowledgement is sent even to a paused subscriber, it's waiting for it
+        if (session.isOpen()) {
+            write(session, g.toJson(new PushReturn(path.toString(), sequence, null)),
+                    outstanding.computeIfAbsent(session, k -> new AtomicInteger()));
+        }
+        push(path);
+    }
+
+    /**
+     * Push the new messages of every path of a paused subscriber that was resumed, push thread only
+     *
+     * @param session connection of the subscriber
+     */
+    private void resume(Session session) {
+        List<Path> paths = sessions.get(session);
+        if (paths == null) return;
+        for (Path path : new ArrayList<>(paths)) {
+            push(path);
+        }
+    }
+
+    /**
+     * Push the new messages of a path to its subscribers one chunk at a time, push thread only. Paused and closed
+     * subscribers are skipped, so they never hold the others back.
+     *
+     * @param path path of the keyword file
+     */
+    private void push(Path path) {
+        while (true) {
+            Map<Session, Integer> subscribers = subscriptions.get(path);
+            if (subscribers == null || subscribers.isEmpty()) return;
+
+            int from;
+            List<byte[]> messages;
+            Lock lock = locks.getLock(path).readLock();
+            lock.lock();
+            try {
+                if (!store.exists(path)) return;
+                SegmentedLog log = store.open(path);
+                int count = log.messageCount();
+                from = count;
+                for (Map.Entry<Session, Integer> entry : subscribers.entrySet()) {
+                    // file was deleted and created again since the subscriber's last message, start it over
+                    if (entry.getValue() > count) entry.setValue(0);
+                    if (isReady(entry.getKey())) from = Math.min(from, entry.getValue());
+                }
+                if (from == count) return;
+                // messages before the first one still held by the log have been reclaimed by retention
+                from = Math.max(from, log.firstSequence());
+                long[] starts = log.messageOffsets(from, Math.min(count - from, PUSH_CHUNK_MESSAGES));
+                int chunk = 1;
+                while (chunk < starts.length && starts[chunk] - starts[0] < PUSH_CHUNK_BYTES) chunk++;
+                messages = log.readMessages(from, chunk);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            String pathName = path.toString();
+            String[] frames = new String[messages.size()];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = g.toJson(new PushReturn(pathName, from + i, new String(messages.get(i))));
+            }
+            for (Map.Entry<Session, Integer> entry : subscribers.entrySet()) {
+                Session session = entry.getKey();
+                if (!isReady(session)) continue;
+                int i = Math.max(entry.getValue(), from) - from;
+                while (i < frames.length && send(session, frames[i])) i++;
+                // a paused subscriber stays at the first message not sent and gets it once it's resumed
+                entry.setValue(Math.max(entry.getValue(), from + i));
+            }
+        }
+    }
+
+    /**
+     * Check if a subscriber can be pushed to
+     *
+     * @param session connection of the subscriber
+     * @return boolean true if subscriber is open and not paused
+     */
+    private boolean isReady(Session session) {
+        return session.isOpen() && !paused.contains(session);
+    }
+
+    /**
+     * Send a frame to a subscriber without waiting for it to be written, push thread only. A subscriber with
+     * PUSH_HIGH_WATER_FRAMES frames not yet written is paused instead, the write callback that brings it down to
+     * PUSH_LOW_WATER_FRAMES resumes it.
+     *
+     * @param session connection of the subscriber
+     * @param frame   JSON of PushReturn
+     * @return boolean true if frame is sent, false if subscriber is closed or paused
+     */
+    private boolean send(Session session, String frame) {
+        if (!session.isOpen()) return false;
+        AtomicInteger frames = outstanding.computeIfAbsent(session, k -> new AtomicInteger());
+        if (frames.get() >= PUSH_HIGH_WATER_FRAMES) {
+            paused.add(session);
+            // the frames may have been written in the meantime, with no callback left to resume the subscriber
+            if (frames.get() > PUSH_LOW_WATER_FRAMES) return false;
+            paused.remove(session);
+        }
+        write(session, frame, frames);
+        return true;
+    }
+
+    /**
+     * Hand a frame to the connection of a subscriber and count it until it's written, push thread only
+     *
+     * @param session connection of the subscriber
+     * @param frame   JSON of PushReturn
+     * @param frames  number of frames sent to the subscriber and not yet written
+     */
+    private void write(Session session, String frame, AtomicInteger frames) {
+        frames.incrementAndGet();
+        session.getRemote().sendString(frame, new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                frames.decrementAndGet();
+            }
+
+            @Override
+            public void writeSuccess() {
+                if (frames.decrementAndGet() <= PUSH_LOW_WATER_FRAMES && paused.remove(session)) {
+                    run(() -> resume(session));
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a task on the push thread, nothing is run if hub is not started
+     *
+     * @param task task to be run
+     */
+    private synchronized void run(Runnable task) {
+        if (pusher == null) return;
+        try {
+            pusher.execute(task);
+        } catch (RejectedExecutionException e) {
+            // hub is stopping
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package storage;
+
+import common.Path;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Retention Manager -- background task of the storage server that enforces the retention policy of every keyword
+ * file. Without it content is only removed when every subscriber of a keyword has read it, so one slow or dead
+ * subscriber makes the keyword file grow forever. Every interval the manager deletes the oldest segments that fall
+ * out of the policy of their keyword file (details refer to SegmentedLog.retain), so disk usage stays bounded and old
+ * content goes away a segment at a time instead of all at once.
+ *
+ * Every keyword file follows the default policy unless a policy was set for its path. A keyword file is handled while
+ * holding the write lock of its path, one file at a time.
+ */
+public class RetentionManager {
+    /**
+     * Default time (in milliseconds) between two runs of the manager
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 60 * 1000L;
+    /**
+     * Storage engine whose keyword files are trimmed
+     */
+    private final LogStore store;
+    /**
+     * Path locks of the storage server
+     */
+    private final PathLockManager locks;
+    /**
+     * Content cache of the storage server, ranges of deleted segments must not be served any more
+     */
+    private final ContentCache cache;
+    /**
+     * Map of path to the retention policy set for that keyword file
+     */
+    private final ConcurrentHashMap<Path, RetentionPolicy> policies = new ConcurrentHashMap<>();
+    /**
+     * Policy of the keyword files that have no policy of their own
+     */
+    private volatile RetentionPolicy defaultPolicy = RetentionPolicy.UNLIMITED;
+    /**
+     * Time (in milliseconds) between two runs
+     */
+    private volatile long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    /**
+     * Executor that runs the manager, null if manager is not started
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Constructor for retention manager
+     *
+     * @param store storage engine whose keyword files are trimmed
+     * @param locks path locks of the storage server
+     * @param cache content cache of the storage server
+     */
+    public RetentionManager(LogStore store, PathLockManager locks, ContentCache cache) {
+        this.store = store;
+        this.locks = locks;
+        this.cache = cache;
+    }
+
+    /**
+     * Set the retention policy of one keyword file
+     *
+     * @param path   path of the keyword file
+     * @param policy retention policy, null to fall back to the default policy
+     */
+    public void setPolicy(Path path, RetentionPolicy policy) {
+        if (policy == null) {
+            policies.remove(path);
+        } else {
+            policies.put(path, policy);
+        }
+    }
+
+    /**
+     * Drop the retention policies of a deleted keyword file, or of every keyword file under a deleted directory, so a
+     * keyword file created again at the same path starts with the default policy
+     *
+     * @param path path of the file or directory that was deleted
+     */
+    public void removePolicies(Path path) {
+        policies.keySet().removeIf(p -> p.isSubpath(path));
+    }
+
+    /**
+     * Set the policy of the keyword files that have no policy of their own
+     *
+     * @param policy retention policy
+     */
+    public void setDefaultPolicy(RetentionPolicy policy) {
+        this.defaultPolicy = policy == null ? RetentionPolicy.UNLIMITED : policy;
+    }
+
+    /**
+     * Get the retention policy a keyword file follows
+     *
+     * @param path path of the keyword file
+     * @return RetentionPolicy of the file
+     */
+    public RetentionPolicy getPolicy(Path path) {
+        return policies.getOrDefault(path, defaultPolicy);
+    }
+
+    /**
+     * Set the time between two runs, takes effect the next time the manager is started
+     *
+     * @param intervalMillis time in milliseconds
+     */
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = Math.max(1, intervalMillis);
+    }
+
+    /**
+     * Start running the manager every interval
+     */
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "retention-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::runOnce, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop running the manager, waits for a running pass to finish
+     */
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    /**
+     * Enforce the retention policy of every keyword file once
+     *
+     * @return number of bytes reclaimed
+     */
+    public long runOnce() {
+        Iterable<Path> paths = defaultPolicy.isUnlimited() ? policies.keySet() : store.list();
+        long reclaimed = 0;
+        for (Path path : paths) {
+            RetentionPolicy policy = getPolicy(path);
+            if (policy.isUnlimited()) continue;
+            Lock lock = locks.getLock(path).writeLock();
+            lock.lock();
+            try {
+                if (!store.exists(path)) continue;
+                long bytes = store.open(path).retain(policy.getMaxAgeMillis(), policy.getMaxBytes());
+                if (bytes > 0) {
+                    cache.invalidate(path);
+                    reclaimed += bytes;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return reclaimed;
+    }
+}
@@ -0,0 +1,71 @@
+package storage;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Retention Policy -- how much of a keyword file the storage server keeps. Messages are kept until they are older
+ * than the maximum age or until the keyword file holds more than the maximum number of bytes, whichever comes first.
+ * Space is reclaimed a whole segment at a time, so a keyword file may hold up to one segment more than the limit.
+ */
+public class RetentionPolicy {
+    /**
+     * Policy that keeps everything
+     */
+    public static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0);
+    /**
+     * Maximum age (in milliseconds) of a message, 0 or less for no age limit
+     */
+    private final long maxAgeMillis;
+    /**
+     * Maximum number of bytes held by a keyword file, 0 or less for no size limit
+     */
+    private final long maxBytes;
+
+    /**
+     * Constructor for retention policy
+     *
+     * @param maxAgeMillis maximum age (in milliseconds) of a message, 0 or less for no age limit
+     * @param maxBytes     maximum number of bytes held by a keyword file, 0 or less for no size limit
+     */
+    public RetentionPolicy(long maxAgeMillis, long maxBytes) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get maximum age of a message
+     *
+     * @return maximum age in milliseconds, 0 or less for no age limit
+     */
+    public long getMaxAgeMillis() {
+        return this.maxAgeMillis;
+    }
+
+    /**
+     * Get maximum number of bytes held by a keyword file
+     *
+     * @return maximum number of bytes, 0 or less for no size limit
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Check if policy keeps everything
+     *
+     * @return boolean true if there is neither an age nor a size limit
+     */
+    public boolean isUnlimited() {
+        return maxAgeMillis <= 0 && maxBytes <= 0;
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public String toString() {
+        return "RetentionPolicy: max_age_millis = <" + maxAgeMillis + "> max_bytes = <" + maxBytes + ">";
+    }
+}
@@ -0,0 +1,132 @@
+package storage;
+
+import common.Path;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Segment Compactor -- background task of the storage server that compresses the keyword files nobody writes any
+ * more. Text compresses well and the disks of the storage servers fill long before their CPUs are busy, so every
+ * interval the compactor walks every keyword file under the root directory and compresses the segments that have not
+ * been written for the configured time (details refer to SegmentedLog.compact). Reads decompress transparently, the
+ * sizes and offsets reported to clients don't change.
+ *
+ * A keyword file is compacted while holding the write lock of its path, one file at a time, so the compactor never
+ * blocks more than one keyword file at once.
+ */
+public class SegmentCompactor {
+    /**
+     * Default time (in milliseconds) a segment must not have been written to be compressed
+     */
+    public static final long DEFAULT_COLD_MILLIS = 10 * 60 * 1000L;
+    /**
+     * Default time (in milliseconds) between two runs of the compactor
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 60 * 1000L;
+    /**
+     * Storage engine whose keyword files are compacted
+     */
+    private final LogStore store;
+    /**
+     * Path locks of the storage server
+     */
+    private final PathLockManager locks;
+    /**
+     * Time (in milliseconds) a segment must not have been written to be compressed, 0 or less disables compression
+     */
+    private volatile long coldMillis = DEFAULT_COLD_MILLIS;
+    /**
+     * Time (in milliseconds) between two runs
+     */
+    private volatile long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    /**
+     * Executor that runs the compactor, null if compactor is not started
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Constructor for segment compactor
+     *
+     * @param store storage engine whose keyword files are compacted
+     * @param locks path locks of the storage server
+     */
+    public SegmentCompactor(LogStore store, PathLockManager locks) {
+        this.store = store;
+        this.locks = locks;
+    }
+
+    /**
+     * Set how long a segment must not have been written to be compressed
+     *
+     * @param coldMillis time in milliseconds, 0 or less disables compression
+     */
+    public void setColdMillis(long coldMillis) {
+        this.coldMillis = coldMillis;
+    }
+
+    /**
+     * Set the time between two runs, takes effect the next time the compactor is started
+     *
+     * @param intervalMillis time in milliseconds
+     */
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = Math.max(1, intervalMillis);
+    }
+
+    /**
+     * Start running the compactor every interval
+     */
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::runOnce, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop running the compactor, waits for a running compaction to finish
+     */
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    /**
+     * Compact every keyword file once
+     *
+     * @return number of segments compressed
+     */
+    public int runOnce() {
+        long cold = this.coldMillis;
+        if (cold <= 0) return 0;
+        int compressed = 0;
+        for (Path path : store.list()) {
+            Lock lock = locks.getLock(path).writeLock();
+            lock.lock();
+            try {
+                if (store.exists(path)) {
+                    compressed += store.open(path).compact(cold);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return compressed;
+    }
+}
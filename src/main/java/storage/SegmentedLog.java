@@ -0,0 +1,513 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**Authors : Sheng-Hao Wu, Kevin Li */
+
+/**
+ * Segmented Log -- the on-disk form of one keyword file (like /NBA). Instead of one big file that has to be reopened
+ * and rewritten on every publish, the keyword file is split into a series of append-only segments that live under a
+ * directory named after the keyword. Only the last (active) segment accepts appends; once it reaches the segment size
+ * limit a new segment is rolled, so every publish is a single positional append on an already open channel.
+ *
+ * Offsets used by this class are logical offsets inside the keyword file, exactly the same offsets that clients pass
+ * in /storage_read and /storage_write, so the segmentation is invisible from outside of the storage server.
+ *
+ * Every append is one published message, and its start offset is recorded in the message index of the log (details
+ * refer to MessageIndex.java), so messages can also be read by sequence number.
+ *
+ * Retention reclaims space by deleting whole segments from the front of the log, and drops the index entries of the
+ * messages it reclaimed, so both the segments and the index stay bounded. Offsets and sequence numbers don't shift
+ * when that happens; the log just starts at a later offset, and reads that start before it begin at the first byte
+ * still held.
+ */
+public class SegmentedLog {
+    /**
+     * Directory that holds all segments of this keyword file
+     */
+    private final File directory;
+    /**
+     * Maximum number of bytes of a segment before a new segment is rolled
+     */
+    private final long segmentBytes;
+    /**
+     * Segments ordered by base offset
+     */
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    /**
+     * Last segment, the only one that accepts appends
+     */
+    private volatile LogSegment activeSegment;
+    /**
+     * Start offset of every message in this log
+     */
+    private final MessageIndex index;
+    /**
+     * Whether reads are served from memory mappings of the segments instead of channel reads
+     */
+    private volatile boolean mmapReads;
+
+    /**
+     * Constructor for segmented log, loads the existing segments or create the first empty segment
+     *
+     * @param directory    directory of this keyword file
+     * @param segmentBytes maximum number of bytes of a segment
+     * @throws IOException if directory or segment cannot be created
+     */
+    public SegmentedLog(File directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (LogSegment.isSegmentFile(name)) {
+                    long baseOffset = LogSegment.parseBaseOffset(name);
+                    if (!segments.containsKey(baseOffset)) {
+                        segments.put(baseOffset, new LogSegment(directory, baseOffset));
+                    }
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new LogSegment(directory, 0L));
+        }
+        this.activeSegment = segments.lastEntry().getValue();
+        this.index = new MessageIndex(directory);
+        this.index.recover(segments.firstKey(), size());
+    }
+
+    /**
+     * Check if a directory on disk holds a segmented log
+     *
+     * @param directory directory to be checked
+     * @return boolean true if directory has at least one segment file
+     */
+    static boolean isLogDirectory(File directory) {
+        if (!directory.isDirectory()) return false;
+        String[] names = directory.list();
+        if (names == null) return false;
+        for (String name : names) {
+            if (LogSegment.isSegmentFile(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the logical size of a log on the disk without opening it, which is the end of its last segment
+     *
+     * @param directory directory of the log
+     * @return size in bytes
+     * @throws IOException if last segment cannot be read
+     */
+    static long sizeOnDisk(File directory) throws IOException {
+        String[] names = directory.list();
+        long lastBase = -1;
+        if (names != null) {
+            for (String name : names) {
+                if (LogSegment.isSegmentFile(name)) {
+                    lastBase = Math.max(lastBase, LogSegment.parseBaseOffset(name));
+                }
+            }
+        }
+        if (lastBase < 0) return 0;
+        return lastBase + LogSegment.sizeOnDisk(directory, lastBase);
+    }
+
+    /**
+     * Switch between memory mapped reads and channel reads
+     *
+     * @param mmapReads true if reads should be served from memory mappings
+     */
+    void setMmapReads(boolean mmapReads) {
+        this.mmapReads = mmapReads;
+    }
+
+    /**
+     * Get the directory of this log
+     *
+     * @return File of log directory
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Get logical size of the keyword file, which is the offset right after the last byte
+     *
+     * @return size in bytes
+     */
+    public long size() {
+        LogSegment segment = this.activeSegment;
+        return segment.getBaseOffset() + segment.size();
+    }
+
+    /**
+     * Get logical offset of the first byte still held by the log, 0 unless retention deleted old segments
+     *
+     * @return start offset of the log
+     */
+    public long startOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Get sequence number of the first message fully held by the log
+     *
+     * @return first sequence number
+     */
+    public int firstSequence() {
+        return index.search(startOffset());
+    }
+
+    /**
+     * Get sequence number of the first message still in the message index, messages before it were reclaimed
+     *
+     * @return base sequence number of the index
+     */
+    public int baseSequence() {
+        return index.base();
+    }
+
+    /**
+     * Append one message to the end of the keyword file
+     *
+     * @param data bytes to be appended
+     * @return logical offset where data was written
+     * @throws IOException if append fails
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long offset = appendBytes(data);
+        index.append(offset);
+        return offset;
+    }
+
+    /**
+     * Append a run of messages to the end of the keyword file with a single append, used when a keyword file is
+     * copied from another storage server so that the copy keeps the message boundaries of the original
+     *
+     * @param data           bytes of all messages
+     * @param messageOffsets start offset of every message relative to the start of data, null if data is one message
+     * @return logical offset where data was written
+     * @throws IOException if append fails
+     */
+    public synchronized long append(byte[] data, long[] messageOffsets) throws IOException {
+        // nothing to append (an empty file was copied), an index entry would be a phantom empty message
+        if (data.length == 0) return size();
+        long offset = appendBytes(data);
+        index.append(offset);
+        if (messageOffsets != null) {
+            for (long messageOffset : messageOffsets) {
+                if (messageOffset > 0 && messageOffset < data.length) {
+                    index.append(offset + messageOffset);
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Replace the whole content of the keyword file with a copy of another log, used when a keyword file is copied from
+     * another storage server. The copy starts at the same logical offset and the same base sequence number as the
+     * original and gets every index entry the original holds, so byte offsets and sequence numbers are the same on
+     * both. A copy made again replaces the previous one instead of piling up on it.
+     *
+     * @param startOffset    logical offset of the first byte held by the original
+     * @param baseSequence   sequence number of the first index entry of the original
+     * @param data           bytes held by the original, from its start offset to its end
+     * @param messageOffsets logical start offset of every message in the index of the original, ordered by sequence
+     *                       number
+     * @throws IOException if segments cannot be deleted or created, or append fails
+     */
+    public synchronized void replace(long startOffset, int baseSequence, byte[] data, long[] messageOffsets) throws IOException {
+        for (LogSegment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+        index.reset(baseSequence);
+        LogSegment segment = new LogSegment(directory, startOffset);
+        segments.put(startOffset, segment);
+        activeSegment = segment;
+        long end = startOffset + data.length;
+        for (long messageOffset : messageOffsets) {
+            if (messageOffset >= end) break;
+            index.append(messageOffset);
+        }
+        if (data.length > 0) {
+            appendBytes(data);
+        }
+    }
+
+    /**
+     * Append bytes to the end of the active segment, roll a new segment first if active segment would overflow
+     *
+     * @param data bytes to be appended
+     * @return logical offset where data was written
+     * @throws IOException if append fails
+     */
+    private long appendBytes(byte[] data) throws IOException {
+        if (activeSegment.size() > 0 && activeSegment.size() + data.length > segmentBytes) {
+            roll();
+        }
+        long offset = size();
+        activeSegment.append(ByteBuffer.wrap(data));
+        return offset;
+    }
+
+    /**
+     * Write bytes at a logical offset. Anything after the offset is dropped first, so that writes keep the
+     * append-only layout of the segments.
+     *
+     * @param offset logical offset to write at
+     * @param data   bytes to be written
+     * @throws IOException if write fails
+     */
+    public synchronized void write(long offset, byte[] data) throws IOException {
+        if (offset < size()) {
+            truncate(offset);
+        }
+        append(data);
+    }
+
+    /**
+     * Seal active segment and start a new one at the current end of the log
+     *
+     * @throws IOException if new segment cannot be created
+     */
+    synchronized void roll() throws IOException {
+        long baseOffset = size();
+        if (segments.containsKey(baseOffset)) return;
+        LogSegment segment = new LogSegment(directory, baseOffset);
+        segments.put(baseOffset, segment);
+        activeSegment.flush(false);
+        activeSegment = segment;
+    }
+
+    /**
+     * Compress the segments that have not been written for a while. Sealed segments are compressed once they are
+     * cold; if the whole log is cold the active segment is sealed first, so that a keyword nobody publishes to any
+     * more ends up fully compressed. Reads keep working on compressed segments with the same offsets.
+     *
+     * @param coldMillis how long (in milliseconds) a segment must not have been written to be compressed
+     * @return number of segments compressed
+     * @throws IOException if a segment cannot be compressed
+     */
+    public synchronized int compact(long coldMillis) throws IOException {
+        long cutoff = System.currentTimeMillis() - coldMillis;
+        if (activeSegment.size() > 0 && activeSegment.lastModified() < cutoff) {
+            roll();
+        }
+        int compressed = 0;
+        for (LogSegment segment : segments.values()) {
+            if (segment == activeSegment || segment.isCompressed()) continue;
+            if (segment.lastModified() < cutoff && segment.compress()) {
+                compressed++;
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * Delete the oldest segments that fall out of a retention policy. Only whole segments are deleted, and the active
+     * segment is only deleted if the whole log expired (it is sealed first), so a retention pass is cheap: a few file
+     * deletions and no copying of the log. The index entries of the messages reclaimed are dropped afterward.
+     *
+     * @param maxAgeMillis segments not written for longer than this are deleted, 0 or less for no age limit
+     * @param maxBytes     oldest segments are deleted while the log holds more than this, 0 or less for no size limit
+     * @return number of bytes reclaimed
+     * @throws IOException if a segment cannot be deleted
+     */
+    public synchronized long retain(long maxAgeMillis, long maxBytes) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        if (maxAgeMillis > 0 && activeSegment.size() > 0 && activeSegment.lastModified() < cutoff) {
+            roll();
+        }
+        long reclaimed = 0;
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.firstEntry().getValue();
+            boolean expired = maxAgeMillis > 0 && oldest.lastModified() < cutoff;
+            boolean oversized = maxBytes > 0 && size() - oldest.getBaseOffset() > maxBytes;
+            if (!expired && !oversized) break;
+            segments.remove(oldest.getBaseOffset());
+            reclaimed += oldest.size();
+            oldest.delete();
+        }
+        if (reclaimed > 0) {
+            index.trim(firstSequence());
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Drop every byte from a logical offset to the end of the log
+     *
+     * @param offset logical offset to truncate to
+     * @throws IOException if truncate fails
+     */
+    public synchronized void truncate(long offset) throws IOException {
+        Map.Entry<Long, LogSegment> floor = segments.floorEntry(offset);
+        if (floor == null) {
+            floor = segments.firstEntry();
+            offset = floor.getKey();
+        }
+        for (LogSegment segment : segments.tailMap(floor.getKey(), false).values()) {
+            segments.remove(segment.getBaseOffset());
+            segment.delete();
+        }
+        LogSegment segment = floor.getValue();
+        segment.truncate(offset - segment.getBaseOffset());
+        activeSegment = segment;
+        index.truncate(offset);
+    }
+
+    /**
+     * Read bytes from a logical offset, reading stops at the end of the log and starts no earlier than the start of
+     * the log
+     *
+     * @param offset logical offset to read from
+     * @param length maximum number of bytes to read
+     * @return bytes read, may be shorter than length if end of log is reached
+     * @throws IOException if read fails
+     */
+    public byte[] read(long offset, int length) throws IOException {
+        long end = size();
+        if (offset > end) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is beyond end of file " + end);
+        }
+        long start = startOffset();
+        if (offset < start) {
+            length = (int) Math.max(0, length - (start - offset));
+            offset = Math.min(start, end);
+        }
+        ByteBuffer dst = ByteBuffer.allocate((int) Math.min(length, end - offset));
+        read(offset, dst);
+        return dst.array();
+    }
+
+    /**
+     * Read bytes from a logical offset into a buffer, crossing segment boundaries when needed
+     *
+     * @param offset logical offset to read from
+     * @param dst    buffer to be filled
+     * @return number of bytes read
+     * @throws IOException if read fails
+     */
+    public int read(long offset, ByteBuffer dst) throws IOException {
+        int total = 0;
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+        if (entry == null) entry = segments.firstEntry();
+        while (entry != null && dst.hasRemaining()) {
+            LogSegment segment = entry.getValue();
+            long position = Math.max(0, offset - segment.getBaseOffset());
+            int n = mmapReads ? segment.readMapped(position, dst) : segment.read(position, dst);
+            total += n;
+            offset += n;
+            if (position + n < segment.size()) break;
+            entry = segments.higherEntry(entry.getKey());
+        }
+        return total;
+    }
+
+    /**
+     * Get number of messages in the keyword file
+     *
+     * @return number of messages
+     */
+    public int messageCount() {
+        return index.count();
+    }
+
+    /**
+     * Get the start offsets of a range of messages, see MessageIndex.offsets
+     *
+     * @param sequence sequence number of the first message
+     * @param count    maximum number of messages
+     * @return array of logical start offsets
+     */
+    public long[] messageOffsets(int sequence, int count) {
+        return index.offsets(sequence, count);
+    }
+
+    /**
+     * Read messages by sequence number. The whole range is read with one read, then split at the message boundaries,
+     * so the cost only depends on the messages returned and not on the size of the keyword file.
+     *
+     * @param sequence sequence number of the first message, messages reclaimed by retention are skipped
+     * @param count    maximum number of messages to read
+     * @return list of messages, empty if sequence is the next sequence number to be published
+     * @throws IndexOutOfBoundsException if sequence is beyond the next sequence number to be published
+     * @throws IOException if read fails
+     */
+    public List<byte[]> readMessages(int sequence, int count) throws IOException {
+        sequence = Math.max(sequence, firstSequence());
+        long[] starts = index.offsets(sequence, count);
+        List<byte[]> messages = new ArrayList<>(starts.length);
+        if (starts.length == 0) return messages;
+        int next = sequence + starts.length;
+        long end = next < index.count() ? index.offset(next) : size();
+        byte[] bytes = read(starts[0], (int) (end - starts[0]));
+        for (int i = 0; i < starts.length; i++) {
+            int from = (int) (starts[i] - starts[0]);
+            int to = i + 1 < starts.length ? (int) (starts[i + 1] - starts[0]) : bytes.length;
+            messages.add(Arrays.copyOfRange(bytes, from, to));
+        }
+        return messages;
+    }
+
+    /**
+     * Flush the active segment to the disk
+     *
+     * @param metaData whether file metadata should be flushed as well
+     * @throws IOException if flush fails
+     */
+    public void flush(boolean metaData) throws IOException {
+        activeSegment.flush(metaData);
+        index.flush(metaData);
+    }
+
+    /**
+     * Close the channels of all segments
+     *
+     * @throws IOException if close fails
+     */
+    public synchronized void close() throws IOException {
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+        }
+        index.close();
+    }
+
+    /**
+     * Delete all segments and the log directory from the disk
+     *
+     * @return boolean true if log directory is deleted
+     * @throws IOException if close fails
+     */
+    public synchronized boolean delete() throws IOException {
+        for (LogSegment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+        index.delete();
+        return LogStore.deleteRecursively(directory);
+    }
+
+    /**
+     * toString method to present contents
+     *
+     * @return String representation of contents
+     */
+    @Override
+    public String toString() {
+        return "SegmentedLog: directory = <" + directory + "> segments = <" + segments.size() + "> size = <" + size() + ">";
+    }
+}
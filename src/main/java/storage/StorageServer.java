@@ -9,8 +9,17 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
 import spark.Service;
 
+import javax.servlet.AsyncContext;
+
 /**Authors : Sheng-Hao Wu, Kevin Li */
 
 /**
@@ -34,6 +43,18 @@ import spark.Service;
  * fields that depend on the request being made.
  */
 public class StorageServer {
+    /**
+     * Maximum number of bytes returned by one /storage_read_since request
+     */
+    public static final int READ_SINCE_MAX_BYTES = 1024 * 1024;
+    /**
+     * Number of times /storage_copy reads the original again when it changed while being read
+     */
+    public static final int COPY_ATTEMPTS = 3;
+    /**
+     * Maximum number of bytes /storage_read_binary reads under the path lock before writing them to the response
+     */
+    public static final int BINARY_CHUNK_BYTES = 64 * 1024;
     /**
      * Integer of client port number
      */
@@ -63,6 +84,38 @@ public class StorageServer {
      * Gson instance that will be used to stringify and destringify json objects
      */
     private Gson g;
+    /**
+     * Storage engine that keeps every keyword file as a segmented log
+     */
+    private LogStore store;
+    /**
+     * Striped read/write locks keyed by path, guarding the files of the store
+     */
+    private PathLockManager locks;
+    /**
+     * Write pipeline that batches /storage_write requests, see GroupCommitter.java
+     */
+    private GroupCommitter committer;
+    /**
+     * Cache of recently read file ranges, see ContentCache.java
+     */
+    private ContentCache cache;
+    /**
+     * Background task that compresses cold keyword files, see SegmentCompactor.java
+     */
+    private SegmentCompactor compactor;
+    /**
+     * Background task that enforces the retention policies of the keyword files, see RetentionManager.java
+     */
+    private RetentionManager retention;
+    /**
+     * WebSocket channel that pushes new messages to the connected subscribers, see PushHub.java
+     */
+    private PushHub pushHub;
+    /**
+     * Requests of /storage_read_since parked until their file is appended to, see AppendWaiters.java
+     */
+    private AppendWaiters appendWaiters;
 
     /**
      * Constructor for storage server
@@ -74,11 +127,115 @@ public class StorageServer {
      *                        directory
      */
     public StorageServer(int clientPrt, int commandPrt, int registrationPrt, String root) {
+        this(clientPrt, commandPrt, registrationPrt, root, LogStore.DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Constructor for storage server
+     *
+     * @param clientPrt       client port number
+     * @param commandPrt      command port number
+     * @param registrationPrt registration port number
+     * @param root            a string that represents the path to the root
+     *                        directory
+     * @param segmentBytes    maximum number of bytes of one segment of a keyword file
+     */
+    public StorageServer(int clientPrt, int commandPrt, int registrationPrt, String root, long segmentBytes) {
         this.clientPrt = clientPrt;
         this.commandPrt = commandPrt;
         this.g = new Gson();
         this.registrationPrt = registrationPrt;
         this.root = new File(root);
+        this.store = new LogStore(this.root, segmentBytes);
+        this.locks = new PathLockManager(PathLockManager.DEFAULT_STRIPES);
+        this.cache = new ContentCache(ContentCache.DEFAULT_CAPACITY_BYTES);
+        this.committer = new GroupCommitter(this.store, this.locks, this.cache, GroupCommitter.DEFAULT_MAX_BATCH);
+        this.compactor = new SegmentCompactor(this.store, this.locks);
+        this.retention = new RetentionManager(this.store, this.locks, this.cache);
+        this.pushHub = new PushHub(this.store, this.locks);
+        this.appendWaiters = new AppendWaiters(AppendWaiters.DEFAULT_THREADS);
+        this.committer.setCommitListener(path -> {
+            pushHub.appended(path);
+            appendWaiters.appended(path);
+        });
+    }
+
+    /**
+     * Choose how /storage_read gets bytes from the keyword files, either from memory
+     * mappings of the segments (default) or with channel reads
+     *
+     * @param mmapReads true if reads should be served from memory mappings
+     */
+    public void setMmapReads(boolean mmapReads) {
+        store.setMmapReads(mmapReads);
+    }
+
+    /**
+     * Choose how hard /storage_write tries to make a write durable before it returns
+     *
+     * @param fsyncPolicy fsync policy, PER_BATCH by default
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        committer.setFsyncPolicy(fsyncPolicy);
+    }
+
+    /**
+     * Set how long the write pipeline waits for more writes to join a batch
+     *
+     * @param commitWindowMicros commit window in microseconds, 0 (default) to only batch the writes that queue up
+     *                           while the previous batch is written
+     */
+    public void setCommitWindowMicros(long commitWindowMicros) {
+        committer.setCommitWindowMicros(commitWindowMicros);
+    }
+
+    /**
+     * Set the maximum number of bytes kept by the content cache of the reads
+     *
+     * @param capacityBytes maximum number of bytes cached, 0 disables the cache
+     */
+    public void setCacheCapacityBytes(long capacityBytes) {
+        cache.setCapacityBytes(capacityBytes);
+    }
+
+    /**
+     * Get the content cache of the reads, for its hit and miss stats
+     *
+     * @return ContentCache of this storage server
+     */
+    public ContentCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Configure the background compression of cold keyword files, call before the services are started
+     *
+     * @param coldMillis     how long (in milliseconds) a segment must not have been written to be compressed,
+     *                       0 or less disables compression
+     * @param intervalMillis time (in milliseconds) between two runs of the compactor
+     */
+    public void setCompression(long coldMillis, long intervalMillis) {
+        compactor.setColdMillis(coldMillis);
+        compactor.setIntervalMillis(intervalMillis);
+    }
+
+    /**
+     * Set the retention policy of the keyword files that have no policy of their own (no limit by default)
+     *
+     * @param maxAgeMillis maximum age (in milliseconds) of a message, 0 or less for no age limit
+     * @param maxBytes     maximum number of bytes held by a keyword file, 0 or less for no size limit
+     */
+    public void setDefaultRetention(long maxAgeMillis, long maxBytes) {
+        retention.setDefaultPolicy(new RetentionPolicy(maxAgeMillis, maxBytes));
+    }
+
+    /**
+     * Set the time between two runs of the retention task, call before the services are started
+     *
+     * @param intervalMillis time in milliseconds
+     */
+    public void setRetentionInterval(long intervalMillis) {
+        retention.setIntervalMillis(intervalMillis);
     }
 
     /**
@@ -87,11 +244,23 @@ public class StorageServer {
      * the storage server.
      */
     public void startClientService() {
+        committer.start();
+        compactor.start();
+        retention.start();
+        pushHub.start();
+        appendWaiters.start();
         clientService = Service.ignite().port(this.clientPrt).threadPool(20);
+        // web sockets must be mapped before the service is initialized
+        clientService.webSocket("/storage_subscribe", pushHub);
         clientService.init();
         storageSizeHandler();
         storageReadHandler();
+        storageReadBinaryHandler();
+        storageReadMessagesHandler();
+        storageReadSinceHandler();
+        storageIndexHandler();
         storageWriteHandler();
+        storageWriteBatchHandler();
     }
 
     /**
@@ -105,6 +274,8 @@ public class StorageServer {
         storageCreateHandler();
         storageDeleteHandler();
         storageCopyHandler();
+        storageCacheStatsHandler();
+        storageRetentionHandler();
     }
 
 
@@ -115,10 +286,12 @@ public class StorageServer {
         this.clientService.post("/storage_size", (request, response) -> {
             String content = request.body();
             PathRequest req;
+            Path path;
             ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
 
             try {
                 req = g.fromJson(content, PathRequest.class);
+                path = new Path(req.path);
             } catch (Exception e) {
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -131,20 +304,18 @@ public class StorageServer {
                 response.type("application/json");
                 return ret;
             }
-            Integer size = null;
-            synchronized (this) {
-                File fileName = new File(root + req.path);
-                if (fileName != null && fileName.exists() && fileName.isFile()) {
-                    FileInputStream fileRead = new FileInputStream(fileName);
-                    try {
-                        size = fileRead.available();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        size = null;
-                    } finally {
-                        fileRead.close();
-                    }
+            Long size = null;
+            Lock lock = locks.getLock(path).readLock();
+            lock.lock();
+            try {
+                if (store.exists(path)) {
+                    size = store.size(path);
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
+                size = null;
+            } finally {
+                lock.unlock();
             }
 
             if (size == null) {
@@ -153,8 +324,7 @@ public class StorageServer {
                 response.type("application/json");
                 return ret;
             }
-            File fileName = new File(root + req.path);
-            SizeReturn sizeReturn = new SizeReturn(fileName.length());
+            SizeReturn sizeReturn = new SizeReturn(size);
             String ret = g.toJson(sizeReturn);
             response.status(200);
             response.type("application/json");
@@ -169,9 +339,11 @@ public class StorageServer {
         this.clientService.post("/storage_read", (request, response) -> {
             String content = request.body();
             ReadRequest req;
+            Path path;
             ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
             try {
                 req = g.fromJson(content, ReadRequest.class);
+                path = new Path(req.path);
             } catch (Exception e) {
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -185,22 +357,27 @@ public class StorageServer {
                 return ret;
             }
             byte[] fileContent = null;
-            synchronized (this) {
-                File fileName = new File(root + req.path);
-                if (fileName != null && fileName.exists() && fileName.isFile()) {
-                    RandomAccessFile fileRead = new RandomAccessFile(fileName, "r");
-                    try {
-                        fileContent = new byte[req.length];
-                        fileRead.seek(req.offset);
-                        fileRead.read(fileContent, 0, req.length);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        fileContent = null;
-                    } finally {
-                        fileRead.close();
+            Lock lock = locks.getLock(path).readLock();
+            lock.lock();
+            try {
+                if (store.exists(path)) {
+                    fileContent = cache.get(path, req.offset, req.length);
+                    if (fileContent == null) {
+                        fileContent = store.read(path, req.offset, req.length);
+                        cache.put(path, req.offset, req.length, fileContent);
                     }
                 }
-
+            } catch (IndexOutOfBoundsException e) {
+                ExceptionReturn indexRet = new ExceptionReturn("IndexOutOfBoundsException", "Offset is outside the bounds of the file.");
+                String ret = g.toJson(indexRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            } catch (Exception e) {
+                e.printStackTrace();
+                fileContent = null;
+            } finally {
+                lock.unlock();
             }
             if (fileContent == null) {
                 String ret = g.toJson(excepRet);
@@ -217,6 +394,380 @@ public class StorageServer {
     }
 
 
+    /**
+     * Handler function to read the content of a certain file as raw bytes. Unlike /storage_read,
+     * the bytes are not decoded into a string and wrapped into json, the file region is copied to
+     * the response chunk by chunk, and the path lock is only held while a chunk is read, never while
+     * it is written to the network. Errors are still returned as json.
+     */
+    public void storageReadBinaryHandler() {
+        this.clientService.post("/storage_read_binary", (request, response) -> {
+            String content = request.body();
+            ReadRequest req;
+            Path path;
+            ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
+            try {
+                req = g.fromJson(content, ReadRequest.class);
+                path = new Path(req.path);
+            } catch (Exception e) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            if (req.length < 0 || req.offset < 0L) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            Lock lock = locks.getLock(path).readLock();
+            SegmentedLog log;
+            long start;
+            long length;
+            byte[] cached = null;
+            lock.lock();
+            try {
+                if (!store.exists(path)) {
+                    String ret = g.toJson(excepRet);
+                    response.status(404);
+                    response.type("application/json");
+                    return ret;
+                }
+                log = store.open(path);
+                long size = log.size();
+                start = Math.max(req.offset, log.startOffset());
+                if (req.offset > size) {
+                    ExceptionReturn indexRet = new ExceptionReturn("IndexOutOfBoundsException", "Offset is outside the bounds of the file.");
+                    String ret = g.toJson(indexRet);
+                    response.status(404);
+                    response.type("application/json");
+                    return ret;
+                }
+                length = Math.max(0, Math.min(req.offset + req.length, size) - start);
+                // popular ranges are served from the cache, big ranges are read chunk by chunk below
+                if (cache.isCacheable(length)) {
+                    cached = cache.get(path, req.offset, req.length);
+                    if (cached == null) {
+                        cached = log.read(req.offset, req.length);
+                        cache.put(path, req.offset, req.length, cached);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            } finally {
+                lock.unlock();
+            }
+
+            // the path lock is never held while writing to the network, so a slow reader cannot stall the writers
+            try {
+                response.status(200);
+                response.type("application/octet-stream");
+                response.raw().setContentLengthLong(length);
+                OutputStream out = response.raw().getOutputStream();
+                if (cached != null) {
+                    out.write(cached);
+                } else {
+                    ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(length, BINARY_CHUNK_BYTES));
+                    long position = start;
+                    long end = start + length;
+                    while (position < end) {
+                        chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+                        int n;
+                        lock.lock();
+                        try {
+                            // stop if the file was deleted or created again since the response was started
+                            if (!store.exists(path) || store.open(path) != log) break;
+                            n = log.read(position, chunk);
+                        } finally {
+                            lock.unlock();
+                        }
+                        if (n <= 0) break;
+                        out.write(chunk.array(), 0, n);
+                        position += n;
+                    }
+                }
+                out.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (!response.raw().isCommitted()) {
+                    String ret = g.toJson(excepRet);
+                    response.status(404);
+                    response.type("application/json");
+                    return ret;
+                }
+            }
+            return "";
+        });
+    }
+
+
+    /**
+     * Handler function to read messages of a certain file by sequence number, starting from the message with the
+     * given sequence number and returning at most count messages. A subscriber that keeps the returned next_sequence
+     * only reads the messages published since its last read.
+     */
+    public void storageReadMessagesHandler() {
+        this.clientService.post("/storage_read_messages", (request, response) -> {
+            String content = request.body();
+            ReadMessagesRequest req;
+            Path path;
+            ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
+            try {
+                req = g.fromJson(content, ReadMessagesRequest.class);
+                path = new Path(req.path);
+            } catch (Exception e) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            if (req.sequence < 0 || req.count < 0) {
+                ExceptionReturn indexRet = new ExceptionReturn("IndexOutOfBoundsException", "Sequence is outside the bounds of the file.");
+                String ret = g.toJson(indexRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            List<byte[]> messages = null;
+            int sequence = req.sequence;
+            Lock lock = locks.getLock(path).readLock();
+            lock.lock();
+            try {
+                if (store.exists(path)) {
+                    // messages before the first one still held by the log have been reclaimed by retention
+                    SegmentedLog log = store.open(path);
+                    sequence = Math.max(req.sequence, log.firstSequence());
+                    messages = log.readMessages(sequence, req.count);
+                }
+            } catch (IndexOutOfBoundsException e) {
+                ExceptionReturn indexRet = new ExceptionReturn("IndexOutOfBoundsException", "Sequence is outside the bounds of the file.");
+                String ret = g.toJson(indexRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            } catch (Exception e) {
+                e.printStackTrace();
+                messages = null;
+            } finally {
+                lock.unlock();
+            }
+
+            if (messages == null) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            String[] texts = new String[messages.size()];
+            for (int i = 0; i < texts.length; i++) {
+                texts[i] = new String(messages.get(i));
+            }
+            MessagesReturn messagesReturn = new MessagesReturn(sequence, sequence + texts.length, texts);
+            String ret = g.toJson(messagesReturn);
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
+
+    /**
+     * Handler function to read everything written to a certain file since an offset, waiting for new bytes if there
+     * are none yet. If bytes exist past the offset they're returned at once; otherwise the request is parked without
+     * holding a thread (see AppendWaiters.java) until an append to the file is durable or the timeout passes, and then
+     * returns what was appended (nothing on timeout). A subscriber that keeps the returned next_offset and asks again
+     * gets every new byte right after its commit, without polling /storage_size and /storage_read.
+     */
+    public void storageReadSinceHandler() {
+        this.clientService.post("/storage_read_since", (request, response) -> {
+            String content = request.body();
+            ReadSinceRequest req;
+            Path path;
+            ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
+            try {
+                req = g.fromJson(content, ReadSinceRequest.class);
+                path = new Path(req.path);
+            } catch (Exception e) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            if (req.offset < 0L || req.length < 0) {
+                ExceptionReturn indexRet = new ExceptionReturn("IndexOutOfBoundsException", "Offset is outside the bounds of the file.");
+                String ret = g.toJson(indexRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            // a window of 4 bytes holds any UTF-8 character, so a read is never cut back to nothing
+            int length = req.length == 0 ? READ_SINCE_MAX_BYTES : Math.max(4, Math.min(req.length, READ_SINCE_MAX_BYTES));
+            ReadSinceReturn readSinceReturn;
+            try {
+                readSinceReturn = readSince(path, req.offset, length);
+            } catch (IndexOutOfBoundsException e) {
+                ExceptionReturn indexRet = new ExceptionReturn("IndexOutOfBoundsException", "Offset is outside the bounds of the file.");
+                String ret = g.toJson(indexRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            if (readSinceReturn == null) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            if (!readSinceReturn.data.isEmpty() || req.timeout_millis <= 0) {
+                String ret = g.toJson(readSinceReturn);
+                response.status(200);
+                response.type("application/json");
+                return ret;
+            }
+
+            // nothing new yet, park the request, the response is completed by the waiter. Headers are sent now, so
+            // Spark doesn't write (and close) the body when the handler returns.
+            AsyncContext async = request.raw().startAsync();
+            async.setTimeout(0);
+            response.status(200);
+            response.type("application/json");
+            response.raw().flushBuffer();
+            AppendWaiters.Waiter waiter = appendWaiters.await(path, req.timeout_millis, () -> {
+                ReadSinceReturn woken;
+                try {
+                    woken = readSince(path, req.offset, length);
+                } catch (IndexOutOfBoundsException e) {
+                    woken = null;
+                }
+                if (woken == null) {
+                    // file was deleted or truncated while waiting, the next request gets the error
+                    woken = new ReadSinceReturn(req.offset, req.offset, "");
+                }
+                try {
+                    OutputStream out = async.getResponse().getOutputStream();
+                    out.write(g.toJson(woken).getBytes());
+                    out.flush();
+                } catch (IOException e) {
+                    // subscriber went away
+                } finally {
+                    async.complete();
+                }
+            });
+            // an append may have landed between the read and the parking
+            try {
+                ReadSinceReturn again = readSince(path, req.offset, 4);
+                if (again == null || !again.data.isEmpty()) waiter.wake();
+            } catch (IndexOutOfBoundsException e) {
+                waiter.wake();
+            }
+            return "";
+        });
+    }
+
+    /**
+     * Read the bytes of a file past an offset, used by /storage_read_since
+     *
+     * @param path   path of the file
+     * @param offset offset to read from, bytes reclaimed by retention are skipped
+     * @param length maximum number of bytes to read
+     * @return ReadSinceReturn with the bytes read (empty if none), null if file doesn't exist
+     * @throws IndexOutOfBoundsException if offset is beyond the end of the file
+     */
+    ReadSinceReturn readSince(Path path, long offset, int length) {
+        Lock lock = locks.getLock(path).readLock();
+        lock.lock();
+        try {
+            if (!store.exists(path)) return null;
+            SegmentedLog log = store.open(path);
+            long size = log.size();
+            if (offset > size) {
+                throw new IndexOutOfBoundsException("Offset is outside the bounds of the file.");
+            }
+            long start = Math.max(offset, log.startOffset());
+            int count = (int) Math.max(0, Math.min(size - start, length));
+            byte[] data = count == 0 ? new byte[0] : log.read(start, count);
+            // a window cut short by length may end inside a character, the rest of it is read by the next request
+            int end = count < size - start ? utf8Boundary(data) : data.length;
+            return new ReadSinceReturn(start, start + end, new String(data, 0, end, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find where the last complete UTF-8 character of some bytes ends
+     *
+     * @param data bytes to be decoded
+     * @return number of bytes up to the last complete character, 0 if the first character is cut, all of them if no
+     * lead byte is found (malformed bytes are passed on as they are)
+     */
+    static int utf8Boundary(byte[] data) {
+        int lead = data.length - 1;
+        // step back over the continuation bytes (10xxxxxx) of the last character, at most 3
+        while (lead >= 0 && data.length - lead <= 3 && (data[lead] & 0xC0) == 0x80) lead--;
+        if (lead < 0) return data.length;
+        int b = data[lead] & 0xFF;
+        int width = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+        return data.length - lead >= width ? data.length : lead;
+    }
+
+    /**
+     * Handler function to get the message index of a certain file, which is the sequence number of the first message
+     * still in the index and the start offset of every message from there, together with the start offset and the size
+     * of the file taken at the same time. Used by /storage_copy so that a copied file keeps the same messages, sequence numbers and byte
+     * offsets as the original.
+     */
+    public void storageIndexHandler() {
+        this.clientService.post("/storage_index", (request, response) -> {
+            String content = request.body();
+            PathRequest req;
+            Path path;
+            ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
+            try {
+                req = g.fromJson(content, PathRequest.class);
+                path = new Path(req.path);
+            } catch (Exception e) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            IndexReturn indexReturn = null;
+            Lock lock = locks.getLock(path).readLock();
+            lock.lock();
+            try {
+                if (store.exists(path)) {
+                    SegmentedLog log = store.open(path);
+                    indexReturn = new IndexReturn(log.startOffset(), log.size(), log.baseSequence(),
+                            log.messageOffsets(log.baseSequence(), Integer.MAX_VALUE));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                indexReturn = null;
+            } finally {
+                lock.unlock();
+            }
+
+            if (indexReturn == null) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            String ret = g.toJson(indexReturn);
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
+
     /**
      * Handler function to write specific content (in the form of a byte array) to a
      * specific file in this storage server.
@@ -225,9 +776,11 @@ public class StorageServer {
         this.clientService.post("/storage_write", (request, response) -> {
             String content = request.body();
             WriteRequest req;
+            Path path;
             ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
             try {
                 req = g.fromJson(content, WriteRequest.class);
+                path = new Path(req.path);
             } catch (Exception e) {
                 String ret = g.toJson(excepRet);
                 response.status(404);
@@ -240,33 +793,15 @@ public class StorageServer {
                 response.type("application/json");
                 return ret;
             }
+            // queue the write and wait until its batch is durable, no path lock is held while waiting
             boolean err = false;
-            synchronized (this) {
-                File fileName = new File(root + req.path);
-                if (fileName != null && fileName.exists() && fileName.isFile()) {
-                    FileOutputStream fileWrite = null;
-                    FileInputStream fileRead = new FileInputStream(fileName);
-                    try {
-                        int fileSize = fileRead.available();
-                        byte[] byteData = req.data.getBytes();
-                        if (req.offset < fileSize) {
-                            fileWrite = new FileOutputStream(fileName);
-                            fileWrite.write(byteData, (int) req.offset, byteData.length);
-                        } else {
-                            fileWrite = new FileOutputStream(fileName, true);
-                            fileWrite.write(byteData);
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        err = true;
-                    } finally {
-                        if (fileWrite != null)
-                            fileWrite.close();
-                        fileRead.close();
-                    }
-
+            try {
+                committer.submit(path, req.offset, req.data.getBytes()).get();
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof FileNotFoundException)) {
+                    e.printStackTrace();
                 }
-
+                err = true;
             }
 
             if (err) {
@@ -283,6 +818,58 @@ public class StorageServer {
         });
     }
 
+    /**
+     * Handler function to append many records, each one a text for a keyword file, in one request. Every record is
+     * queued to the group committer before any of them is waited for, so the records are written in as few batches
+     * (and fsyncs) as the committer allows, and appends to the same file are coalesced. Records are appended at the
+     * end of their file, so the publisher doesn't need to ask for the size of each file first. A record whose file
+     * doesn't exist doesn't stop the others, its offset is -1.
+     */
+    public void storageWriteBatchHandler() {
+        this.clientService.post("/storage_write_batch", (request, response) -> {
+            String content = request.body();
+            WriteBatchRequest req;
+            Path[] paths;
+            ExceptionReturn excepRet = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
+            try {
+                req = g.fromJson(content, WriteBatchRequest.class);
+                if (req.paths.length != req.data.length) throw new IllegalArgumentException();
+                paths = new Path[req.paths.length];
+                for (int i = 0; i < paths.length; i++) {
+                    if (req.paths[i] == null || req.data[i] == null) throw new IllegalArgumentException();
+                    paths[i] = new Path(req.paths[i]);
+                }
+            } catch (Exception e) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+
+            // queue every record first, then wait, no path lock is held while waiting
+            List<CompletableFuture<Long>> futures = new ArrayList<>(paths.length);
+            for (int i = 0; i < paths.length; i++) {
+                futures.add(committer.submitAppend(paths[i], req.data[i].getBytes()));
+            }
+            long[] offsets = new long[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                try {
+                    offsets[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof FileNotFoundException)) {
+                        e.printStackTrace();
+                    }
+                    offsets[i] = -1;
+                }
+            }
+
+            WriteBatchReturn writeBatchReturn = new WriteBatchReturn(offsets);
+            String ret = g.toJson(writeBatchReturn);
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
 
     /**
      * Handler function to create a file with the given path on this storage server.
@@ -316,19 +903,15 @@ public class StorageServer {
                 return ret;
             }
             boolean res = false;
-            synchronized (this) {
-                File fileName = path.toFile(this.root);
-                if (fileName != null && !fileName.exists()) {
-                    try {
-                        fileName.getParentFile().mkdirs();
-                        fileName.createNewFile();
-                        res = true;
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        res = false;
-                    }
-
-                }
+            Lock lock = locks.getLock(path).writeLock();
+            lock.lock();
+            try {
+                res = store.create(path);
+            } catch (Exception e) {
+                e.printStackTrace();
+                res = false;
+            } finally {
+                lock.unlock();
             }
             BooleanReturn booleanReturn = new BooleanReturn(res);
             String ret = g.toJson(booleanReturn);
@@ -374,40 +957,38 @@ public class StorageServer {
 
     /**
      * Helper function that helps recursivley delete a file or all the files and
-     * directories in a given directory
+     * directories in a given directory. Deleting a single file only takes the
+     * write lock of its own path, deleting a directory locks every path.
      *
      * @param pathString the path to a given file/directory from the root.
      * @return boolean indicating if file was successfully deleted
      * @throws IOException if pathstring is invalid
      */
-    public synchronized boolean deleteFile(String pathString) throws IOException {
+    public boolean deleteFile(String pathString) throws IOException {
         if (pathString == null) {
             throw new IOException("Path does not exist");
         }
         Path path = new Path(pathString);
-        if (!path.isRoot()) {
-            File fileName = path.toFile(this.root);
-            if (fileName != null && fileName.exists()) {
-                try {
-                    if (fileName.isDirectory()) {
-                        String[] directoryFiles = fileName.list();
-                        for (String directoryFile : directoryFiles) {
-                            boolean success = deleteFile(directoryFile);
-                            if (!success)
-                                return false;
-                        }
-                        fileName.delete();
-                    } else
-                        fileName.delete();
-                    return true;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
-                }
-
+        boolean isFile = store.exists(path);
+        if (isFile) {
+            locks.getLock(path).writeLock().lock();
+        } else {
+            locks.lockAll();
+        }
+        try {
+            cache.invalidate(path);
+            retention.removePolicies(path);
+            return store.delete(path);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (isFile) {
+                locks.getLock(path).writeLock().unlock();
+            } else {
+                locks.unlockAll();
             }
         }
-        return false;
     }
 
 
@@ -437,7 +1018,6 @@ public class StorageServer {
             }
 
 
-            FileOutputStream fileWrite = null;
             boolean err = true;
             Path path = new Path(req.path);
             if (path.isRoot()) {
@@ -447,50 +1027,54 @@ public class StorageServer {
                 return ret;
             }
 
-            synchronized (this) {
-                try {
-                    File fileName = path.toFile(this.root);
-                    if (fileName != null && !fileName.exists()) {
-                        fileName.getParentFile().mkdirs();
-                        fileName.createNewFile();
-                    }
-
-                    PathRequest pathRequest = new PathRequest(req.path);
-                    HttpClient clientSize = HttpClient.newHttpClient();
-                    HttpRequest sendSizeReq = HttpRequest.newBuilder()
-                            .uri(URI.create("http://" + req.server_ip + ":" + req.server_port + "/storage_size"))
+            // fetch the content before taking the lock, so the remote calls never block local readers and writers
+            byte[] data = null;
+            IndexReturn index = null;
+            try {
+                PathRequest pathRequest = new PathRequest(req.path);
+                HttpClient clientRead = HttpClient.newHttpClient();
+                for (int attempt = 0; attempt < COPY_ATTEMPTS && data == null; attempt++) {
+                    // message boundaries, start offset and size of the original, so the copy keeps its offsets
+                    HttpRequest sendIndexReq = HttpRequest.newBuilder()
+                            .uri(URI.create("http://" + req.server_ip + ":" + req.server_port + "/storage_index"))
                             .POST(HttpRequest.BodyPublishers.ofString(g.toJson(pathRequest)))
                             .build();
-                    HttpResponse<String> sizeResponse = clientSize.send(sendSizeReq, HttpResponse.BodyHandlers.ofString());
-                    SizeReturn sizeReturn = g.fromJson(sizeResponse.body(), SizeReturn.class);
+                    HttpResponse<String> indexResponse = clientRead.send(sendIndexReq, HttpResponse.BodyHandlers.ofString());
+                    if (indexResponse.statusCode() != 200) break;
+                    index = g.fromJson(indexResponse.body(), IndexReturn.class);
 
-                    ReadRequest readRequest = new ReadRequest(req.path, 0, (int) sizeReturn.size);
-                    HttpClient clientRead = HttpClient.newHttpClient();
+                    ReadRequest readRequest = new ReadRequest(req.path, index.start_offset, (int) (index.size - index.start_offset));
                     HttpRequest sendReadReq = HttpRequest.newBuilder()
-                            .uri(URI.create("http://" + req.server_ip + ":" + req.server_port + "/storage_read"))
+                            .uri(URI.create("http://" + req.server_ip + ":" + req.server_port + "/storage_read_binary"))
                             .POST(HttpRequest.BodyPublishers.ofString(g.toJson(readRequest)))
                             .build();
-                    HttpResponse<String> readResponse = clientRead.send(sendReadReq, HttpResponse.BodyHandlers.ofString());
-
-                    DataReturn dataReturn = g.fromJson(readResponse.body(), DataReturn.class);
-                    if (fileName != null && fileName.exists() && fileName.isFile()) {
-                        byte[] byteData = dataReturn.data.getBytes();
-//                        if (0L < fileSize) {
-//                            fileWrite = new FileOutputStream(fileName);
-//                            fileWrite.write(byteData, 0, byteData.length);
-//                        } else {
-                        fileWrite = new FileOutputStream(fileName, true);
-                        fileWrite.write(byteData);
-//                        }
-                        err = false;
+                    HttpResponse<byte[]> readResponse = clientRead.send(sendReadReq, HttpResponse.BodyHandlers.ofByteArray());
+                    // retention or a rewrite may have changed the original since the index was taken, then try again
+                    if (readResponse.statusCode() == 200 && readResponse.body().length == index.size - index.start_offset) {
+                        data = readResponse.body();
                     }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                data = null;
+            }
+
+            if (data != null) {
+                Lock lock = locks.getLock(path).writeLock();
+                lock.lock();
+                try {
+                    if (!store.exists(path)) {
+                        store.create(path);
+                    }
+                    // a file copied before is replaced, not appended to
+                    store.replace(path, index.start_offset, index.base_sequence, data, index.offsets);
+                    cache.invalidate(path);
+                    err = false;
                 } catch (Exception e) {
                     e.printStackTrace();
                     err = true;
                 } finally {
-                    if (fileWrite != null)
-                        fileWrite.close();
-//                    fileRead.close();
+                    lock.unlock();
                 }
             }
             if (err) {
@@ -508,10 +1092,75 @@ public class StorageServer {
     }
 
     /**
-     * Stop the command Spark service and client Spark service
+     * Handler function to get the hit and miss stats of the content cache of this storage server
+     */
+    public void storageCacheStatsHandler() {
+        this.commandService.post("/storage_cache_stats", (request, response) -> {
+            CacheStatsReturn cacheStatsReturn = new CacheStatsReturn(cache.getHits(), cache.getMisses(),
+                    cache.getEvictions(), cache.getEntryCount(), cache.getBytes(), cache.getCapacityBytes());
+            String ret = g.toJson(cacheStatsReturn);
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
+
+    /**
+     * Handler function to set the retention policy of a keyword file on this storage server. The policy is enforced
+     * in the background, old content is reclaimed a segment at a time.
+     */
+    public void storageRetentionHandler() {
+        this.commandService.post("/storage_retention", (request, response) -> {
+            String content = request.body();
+            RetentionRequest req;
+            Path path;
+            ExceptionReturn excepRet = new ExceptionReturn("IllegalArgumentException", "IllegalArgumentException: path invalid.");
+            try {
+                req = g.fromJson(content, RetentionRequest.class);
+                path = new Path(req.path);
+            } catch (Exception e) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            if (path.isRoot()) {
+                String ret = g.toJson(excepRet);
+                response.status(404);
+                response.type("application/json");
+                return ret;
+            }
+            retention.setPolicy(path, new RetentionPolicy(req.max_age_millis, req.max_bytes));
+            BooleanReturn booleanReturn = new BooleanReturn(true);
+            String ret = g.toJson(booleanReturn);
+            response.status(200);
+            response.type("application/json");
+            return ret;
+        });
+    }
+
+    /**
+     * Stop the command Spark service and client Spark service, then the background tasks, and close the store once
+     * every running request is done with it
      */
     public void stop() {
         clientService.stop();
         commandService.stop();
+        clientService.awaitStop();
+        commandService.awaitStop();
+        committer.stop();
+        compactor.stop();
+        retention.stop();
+        pushHub.stop();
+        appendWaiters.stop();
+        // closing unmaps every segment, a request that is still reading one must finish first
+        locks.lockAll();
+        try {
+            store.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            locks.unlockAll();
+        }
     }
 }
@@ -1,26 +1,63 @@
 import Debug.PubSubException;
 import Subscriber.Subscriber;
 import jsonhelper.*;
+import naming.Directory;
+import naming.DirectoryLock;
+import naming.Lease;
+import naming.LeaseManager;
+import naming.LockMode;
+import naming.NamingJournal;
 import naming.NamingServer;
 import naming.NamingServerInfo;
+import naming.NamingShardRouter;
 import naming.StorageServerInfo;
 import publisher.Content;
 import publisher.Publisher;
+import storage.ContentCache;
+import storage.GroupCommitter;
+import storage.LogStore;
+import storage.PathLockManager;
+import storage.PushHub;
+import storage.SegmentedLog;
 import storage.StorageServer;
 import com.google.gson.Gson;
 
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
 
 public class ConformanceTest {
 
@@ -373,6 +410,78 @@ public class ConformanceTest {
         storageServer1.stop();
     }
 
+    /**
+     * This test is to verify that publisher sends its queue in batches and every content is still its own message
+     */
+    @Test
+    public void PubPublishBatchTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server, 1 storage server)
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                        new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+
+        /*
+            queue more contents than fit in one batch
+        */
+        Publisher publisher1 = new Publisher(publisher1ID);
+        String[] keyWords = new String[] {"NBA", "Lakers"};
+        int contents = Publisher.PUBLISH_BATCH_MAX_RECORDS;
+        for (int i = 0; i < contents; i++) {
+            publisher1.addContent(new Content("Game " + i, keyWords));
+        }
+        response = publisher1.register(namingServerIP, namingServerServicePort);
+        StorageServerInfo assignedStorage = g.fromJson(response.body(), StorageServerInfo.class);
+        publisher1.updateAssignedStorageServer(assignedStorage);
+        publisher1.setReady(namingServerIP, namingServerServicePort);
+
+        /*
+            [Test] every content is published to every keyword in order, one message each
+        */
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Should publish if assigned storage server"),
+                    publisher1.publish());
+        for (String keyWord : keyWords) {
+            response = getHttpResponse("http://" + assignedStorage.getIP() + ":" + assignedStorage.getClientPort() + "/storage_read_messages",
+                                        new ReadMessagesRequest("/" + keyWord, 0, contents + 1));
+            MessagesReturn messagesReturn = g.fromJson(response.body(), MessagesReturn.class);
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Every content should be one message!"),
+                        contents, messagesReturn.messages.length);
+            for (int i = 0; i < contents; i++) {
+                assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Read data is different from the published one!"),
+                            "Game " + i, messagesReturn.messages[i]);
+            }
+        }
+
+        /*
+            [Test] a record whose file doesn't exist fails alone
+        */
+        response = getHttpResponse("http://" + assignedStorage.getIP() + ":" + assignedStorage.getClientPort() + "/storage_write_batch",
+                                    new WriteBatchRequest(new String[] {"/NBA", "/Warriors", "/NBA"}, new String[] {"a", "b", "c"}));
+        long[] offsets = g.fromJson(response.body(), WriteBatchReturn.class).offsets;
+        response = getHttpResponse("http://" + assignedStorage.getIP() + ":" + assignedStorage.getClientPort() + "/storage_size", new PathRequest("/NBA"));
+        long size = g.fromJson(response.body(), SizeReturn.class).size;
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Record should be appended at the end of the file!"),
+                    size - 2, offsets[0]);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Record of nonexistent file should fail!"),
+                    -1, offsets[1]);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Record should be appended at the end of the file!"),
+                    size - 1, offsets[2]);
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/Lakers"));
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
     /**
      * This test is to verify that system can correctly assign the storage server to subscriber
      */
@@ -627,6 +736,222 @@ public class ConformanceTest {
         storageServer2.stop();
     }
 
+    /**
+     * This test is to verify that a replica made by set ready keeps the messages and sequence numbers of the original
+     */
+    @Test
+    public void SubReplicationSequenceTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server, 2 storage servers), subscriber1 is assigned to storage server1 and
+            publisher2 to storage server2
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+
+        Subscriber subscriber1 = new Subscriber(subscriber1ID, new String[]{"NBA"}, new NamingServerInfo(namingServerIP, namingServerServicePort, namingServerRegistrationPort));
+        response = subscriber1.register(namingServerIP, namingServerServicePort);
+        StorageServerInfo assignedStorage = g.fromJson(response.body(), StorageServerInfo.class);
+        subscriber1.updateAssignedStorageServer(assignedStorage);
+
+        storageServer2 = new StorageServer(storageServer2ClientPort, storageServer2CommandPort, namingServerRegistrationPort, storageServer2Root);
+        storageServer2.startClientService();
+        storageServer2.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer2IP, storageServer2ClientPort, storageServer2CommandPort, new String[0]));
+
+        Publisher publisher2 = new Publisher(publisher2ID);
+        int contents = 5;
+        for (int i = 0; i < contents; i++) {
+            publisher2.addContent(new Content("Game " + i, new String[]{"NBA"}));
+        }
+        response = publisher2.register(namingServerIP, namingServerServicePort);
+        publisher2.updateAssignedStorageServer(g.fromJson(response.body(), StorageServerInfo.class));
+        publisher2.setReady(namingServerIP, namingServerServicePort);
+        publisher2.publish();
+
+        /*
+            [Test] the replica returns the same messages with the same sequence numbers as the original
+        */
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Should successfully replicate without exception"),
+                subscriber1.setReady(namingServerIP, namingServerServicePort));
+        MessagesReturn original = readAllMessages(storageServer2IP, storageServer2ClientPort, "/NBA");
+        MessagesReturn replica = readAllMessages(storageServer1IP, storageServer1ClientPort, "/NBA");
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Every content should be one message!"),
+                contents, original.messages.length);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica should start at the same sequence!"),
+                original.sequence, replica.sequence);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica should end at the same sequence!"),
+                original.next_sequence, replica.next_sequence);
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica messages unmatched with the original!"),
+                original.messages, replica.messages);
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1ClientPort + "/storage_read_messages",
+                new ReadMessagesRequest("/NBA", 3, 1));
+        MessagesReturn read = g.fromJson(response.body(), MessagesReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Message read by sequence unmatched!"),
+                "Game 3", read.messages[0]);
+
+        /*
+            [Test] replicating again replaces the replica instead of appending to it
+        */
+        response = getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/replication",
+                new ReplicationRequest("/NBA", storageServer2IP, storageServer2ClientPort,
+                        storageServer1IP, storageServer1ClientPort, storageServer1CommandPort));
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Should successfully replicate without exception"),
+                g.fromJson(response.body(), BooleanReturn.class).success);
+        replica = readAllMessages(storageServer1IP, storageServer1ClientPort, "/NBA");
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica messages unmatched with the original!"),
+                original.messages, replica.messages);
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+        response = getHttpResponse("http://" + storageServer2IP + ":" + storageServer2CommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        namingServer.stop();
+        storageServer1.stop();
+        storageServer2.stop();
+    }
+
+    /**
+     * This test is to verify that retention reclaims the oldest messages without shifting offsets or sequence numbers,
+     * and that a replica of a trimmed file keeps the offsets and sequence numbers of the original
+     */
+    @Test
+    public void RetentionReplicationTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server, 2 storage servers with 16-byte segments), subscriber1 is assigned to storage
+            server1 and publisher2 to storage server2
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root, 16);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+
+        Subscriber subscriber1 = new Subscriber(subscriber1ID, new String[]{"NBA"}, new NamingServerInfo(namingServerIP, namingServerServicePort, namingServerRegistrationPort));
+        response = subscriber1.register(namingServerIP, namingServerServicePort);
+        subscriber1.updateAssignedStorageServer(g.fromJson(response.body(), StorageServerInfo.class));
+
+        storageServer2 = new StorageServer(storageServer2ClientPort, storageServer2CommandPort, namingServerRegistrationPort, storageServer2Root, 16);
+        storageServer2.setRetentionInterval(50);
+        storageServer2.startClientService();
+        storageServer2.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer2IP, storageServer2ClientPort, storageServer2CommandPort, new String[0]));
+
+        // publish one message at a time, every segment holds two 6-byte messages
+        Publisher publisher2 = new Publisher(publisher2ID);
+        response = publisher2.register(namingServerIP, namingServerServicePort);
+        publisher2.updateAssignedStorageServer(g.fromJson(response.body(), StorageServerInfo.class));
+        int contents = 10;
+        for (int i = 0; i < contents; i++) {
+            publisher2.addContent(new Content("Game " + i, new String[]{"NBA"}));
+            if (i == 0) publisher2.setReady(namingServerIP, namingServerServicePort);
+            publisher2.publish();
+        }
+
+        /*
+            [Test] retention deletes whole segments from the front, offsets and sequence numbers don't shift
+        */
+        getHttpResponse("http://" + storageServer2IP + ":" + storageServer2CommandPort + "/storage_retention",
+                new RetentionRequest("/NBA", 0, 20));
+        MessagesReturn original = readAllMessages(storageServer2IP, storageServer2ClientPort, "/NBA");
+        for (int i = 0; i < 100 && original.sequence == 0; i++) {
+            Thread.sleep(50);
+            original = readAllMessages(storageServer2IP, storageServer2ClientPort, "/NBA");
+        }
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Oldest messages should be reclaimed!"),
+                8, original.sequence);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Next sequence should not shift!"),
+                contents, original.next_sequence);
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Messages left unmatched!"),
+                new String[]{"Game 8", "Game 9"}, original.messages);
+        response = getHttpResponse("http://" + storageServer2IP + ":" + storageServer2ClientPort + "/storage_size", new PathRequest("/NBA"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Size should not shift!"),
+                contents * 6, g.fromJson(response.body(), SizeReturn.class).size);
+        ReadSinceReturn readSinceReturn = g.fromJson(getHttpResponse("http://" + storageServer2IP + ":" + storageServer2ClientPort + "/storage_read_since",
+                new ReadSinceRequest("/NBA", 0, 0, 0)).body(), ReadSinceReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Read from reclaimed offset should start at the first byte held!"),
+                48, readSinceReturn.offset);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                "Game 8Game 9", readSinceReturn.data);
+        File originalDirectory = new File(storageServer2Root, "NBA");
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Index should start at the first message held!"),
+                new String[]{"messages.00000000000000000008.index"}, originalDirectory.list((dir, name) -> name.contains(".index")));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Index should only hold the messages left!"),
+                2 * 8, new File(originalDirectory, "messages.00000000000000000008.index").length());
+
+        /*
+            [Test] the replica of the trimmed file has the same offsets and sequence numbers
+        */
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Should successfully replicate without exception"),
+                subscriber1.setReady(namingServerIP, namingServerServicePort));
+        MessagesReturn replica = readAllMessages(storageServer1IP, storageServer1ClientPort, "/NBA");
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica should start at the same sequence!"),
+                original.sequence, replica.sequence);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica should end at the same sequence!"),
+                original.next_sequence, replica.next_sequence);
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica messages unmatched with the original!"),
+                original.messages, replica.messages);
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1ClientPort + "/storage_size", new PathRequest("/NBA"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica size should be the same!"),
+                contents * 6, g.fromJson(response.body(), SizeReturn.class).size);
+        ReadSinceReturn replicaSince = g.fromJson(getHttpResponse("http://" + storageServer1IP + ":" + storageServer1ClientPort + "/storage_read_since",
+                new ReadSinceRequest("/NBA", 54, 0, 0)).body(), ReadSinceReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica offsets should be the same!"),
+                "Game 9", replicaSince.data);
+
+        /*
+            [Test] the trimmed index is loaded again with the same sequence numbers
+        */
+        SegmentedLog reopened = new SegmentedLog(new File(storageServer1Root, "NBA"), 16);
+        try {
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Reloaded log should start at the same sequence!"),
+                    8, reopened.firstSequence());
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Reloaded log should end at the same sequence!"),
+                    contents, reopened.messageCount());
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Reloaded messages unmatched!"),
+                    "Game 9", new String(reopened.readMessages(9, 1).get(0)));
+        } finally {
+            reopened.close();
+        }
+
+        /*
+            [Test] a file deleted and created again doesn't keep the retention policy of the deleted one
+        */
+        String commandUri = "http://" + storageServer2IP + ":" + storageServer2CommandPort;
+        String clientUri = "http://" + storageServer2IP + ":" + storageServer2ClientPort;
+        getHttpResponse(commandUri + "/storage_delete", new PathRequest("/NBA"));
+        getHttpResponse(commandUri + "/storage_create", new PathRequest("/NBA"));
+        for (int i = 0; i < contents; i++) {
+            getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", i * 6L, "Game " + i));
+        }
+        Thread.sleep(500);
+        MessagesReturn recreated = readAllMessages(storageServer2IP, storageServer2ClientPort, "/NBA");
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Recreated file should not be reclaimed!"),
+                0, recreated.sequence);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Recreated file should keep every message!"),
+                contents, recreated.messages.length);
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+        response = getHttpResponse("http://" + storageServer2IP + ":" + storageServer2CommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        namingServer.stop();
+        storageServer1.stop();
+        storageServer2.stop();
+    }
+
     /**
      This test is test system will automatically delete content if it has been read by all subscribers
      */
@@ -743,6 +1068,1746 @@ public class ConformanceTest {
     }
 
 
+    /**
+     This test is to run the subscriber scenario with the keyword namespace split across two naming server shards
+     */
+    @Test
+    public void ShardedPubSubTest() throws IOException, InterruptedException {
+        /*
+            init system (2 naming server shards)
+         */
+        int namingServer2ServicePort = namingServerServicePort + 1;
+        int namingServer2RegistrationPort = namingServerRegistrationPort + 1;
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+        NamingServer namingServer2 = new NamingServer(namingServer2ServicePort, namingServer2RegistrationPort);
+        namingServer2.startService(g);
+        namingServer2.startRegistratioin(g);
+        NamingShardRouter router = new NamingShardRouter(new NamingServerInfo(namingServerIP, namingServerServicePort, namingServerRegistrationPort),
+                                                         new NamingServerInfo(namingServerIP, namingServer2ServicePort, namingServer2RegistrationPort));
+        String[] keyWords = new String[] {"NBA", "Warriors"};
+        assertNotEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Keywords should be owned by different shards!"),
+                router.route(keyWords[0]).servicePort, router.route(keyWords[1]).servicePort);
+
+        /*
+            init 2 storage servers, each registered with both shards
+        */
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        storageServer2 = new StorageServer(storageServer2ClientPort, storageServer2CommandPort, namingServerRegistrationPort, storageServer2Root);
+        storageServer2.startClientService();
+        storageServer2.startCommandService();
+        for (NamingServerInfo shard : router.getShards()) {
+            getHttpResponse("http://" + shard.ip + ":" + shard.registrationPort + "/register",
+                    new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+            getHttpResponse("http://" + shard.ip + ":" + shard.registrationPort + "/register",
+                    new RegisterRequest(storageServer2IP, storageServer2ClientPort, storageServer2CommandPort, new String[0]));
+        }
+
+        /*
+            init subscriber1 and subscriber2, every shard should assign the same storage server to a subscriber
+        */
+        Subscriber subscriber1 = new Subscriber(subscriber1ID, new String[]{"NBA", "Lakers"}, router);
+        response = subscriber1.register(router);
+        StorageServerInfo assignedStorage = g.fromJson(response.body(), StorageServerInfo.class);
+        subscriber1.updateAssignedStorageServer(assignedStorage);
+        for (NamingServerInfo shard : router.getShards()) {
+            response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/subscriber_register",
+                    new SubscriberRegisterRequest(subscriber1ID, new String[0]));
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Subscriber should be registered with every shard!"),
+                    409, response.statusCode());
+        }
+
+        Subscriber subscriber2 = new Subscriber(subscriber2ID, new String[]{"NBA", "Warriors"}, router);
+        response = subscriber2.register(router);
+        assignedStorage = g.fromJson(response.body(), StorageServerInfo.class);
+        subscriber2.updateAssignedStorageServer(assignedStorage);
+
+        /*
+            init publisher which publishes to both keywords
+        */
+        Publisher publisher1 = new Publisher(publisher1ID);
+        String txt = "I like NBA Warriors!";
+        publisher1.addContent(new Content(txt, keyWords));
+        response = publisher1.register(router);
+        assignedStorage = g.fromJson(response.body(), StorageServerInfo.class);
+        publisher1.updateAssignedStorageServer(assignedStorage);
+        publisher1.setReady(router);
+        publisher1.publish();
+
+        // each keyword file should only be known to the shard that owns it
+        for (String keyWord : keyWords) {
+            NamingServerInfo owner = router.route(keyWord);
+            for (NamingServerInfo shard : router.getShards()) {
+                response = getHttpResponse("http://" + shard.ip + ":" + shard.servicePort + "/getstorage", new PathRequest("/" + keyWord));
+                assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Keyword should only exist on its own shard!"),
+                        shard == owner ? 200 : 404, response.statusCode());
+            }
+        }
+
+        /*
+            [Test] subscribers replicate, read and delete the content through the shard of each keyword
+        */
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Should successfully replicate without exception"),
+                subscriber1.setReady(router));
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Should successfully replicate without exception"),
+                subscriber2.setReady(router));
+
+        HashMap<String, String> res = subscriber1.readContent();
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                txt, res.get("NBA"));
+        assertNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Text should be null since it's not existed in system!"),
+                res.get("Lakers"));
+
+        res = subscriber2.readContent();
+        for (String keyWord : keyWords) {
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                    txt, res.get(keyWord));
+        }
+
+        // after both subscribers read, all files should be deleted by their shards
+        for (String keyWord : keyWords) {
+            response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1ClientPort + "/storage_read",
+                    new ReadRequest("/" + keyWord, 0, 0));
+            exceptionType = g.fromJson(response.body(), ExceptionReturn.class).exceptionType;
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Content read by all subscribers should be deleted!"),
+                    pubSubException.valueOf(exceptionType), PubSubException.FileNotFoundException);
+
+            response = getHttpResponse("http://" + storageServer2IP + ":" + storageServer2ClientPort + "/storage_read",
+                    new ReadRequest("/" + keyWord, 0, 0));
+            exceptionType = g.fromJson(response.body(), ExceptionReturn.class).exceptionType;
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Content read by all subscribers should be deleted!"),
+                    pubSubException.valueOf(exceptionType), PubSubException.FileNotFoundException);
+        }
+
+        namingServer.stop();
+        namingServer2.stop();
+        storageServer1.stop();
+        storageServer2.stop();
+    }
+
+    /**
+     This test is to verify subscriber gets new content pushed over the push channel of its storage server
+     */
+    @Test
+    public void SubPushTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server, 1 storage server)
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+
+        /*
+            init subscriber1 and publisher1, both assigned to storage server1
+        */
+        Subscriber subscriber1 = new Subscriber(subscriber1ID, new String[]{"NBA"},
+                                                new NamingServerInfo(namingServerIP, namingServerServicePort, namingServerRegistrationPort));
+        response = subscriber1.register(namingServerIP, namingServerServicePort);
+        subscriber1.updateAssignedStorageServer(g.fromJson(response.body(), StorageServerInfo.class));
+
+        Publisher publisher1 = new Publisher(publisher1ID);
+        publisher1.addContent(new Content("Lakers won!", new String[]{"NBA"}));
+        response = publisher1.register(namingServerIP, namingServerServicePort);
+        publisher1.updateAssignedStorageServer(g.fromJson(response.body(), StorageServerInfo.class));
+        publisher1.setReady(namingServerIP, namingServerServicePort);
+        publisher1.publish();
+
+        /*
+            [Test] only the content published after the push channel is open should be pushed, in order
+        */
+        LinkedBlockingQueue<PushReturn> pushed = new LinkedBlockingQueue<>();
+        WebSocket webSocket = subscriber1.openPushChannel(pushed::add);
+        publisher1.addContent(new Content("Warriors won!", new String[]{"NBA"}));
+        publisher1.addContent(new Content("Celtics won!", new String[]{"NBA"}));
+        publisher1.publish();
+
+        PushReturn first = pushed.poll(10, TimeUnit.SECONDS);
+        PushReturn second = pushed.poll(10, TimeUnit.SECONDS);
+        assertNotNull(String.format("[Error](line:%s) %s", getCurrentLine(), "New content should be pushed!"), first);
+        assertNotNull(String.format("[Error](line:%s) %s", getCurrentLine(), "New content should be pushed!"), second);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content unmatched with the system possessed!"),
+                "/NBA", first.path);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content unmatched with the system possessed!"),
+                1, first.sequence);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content unmatched with the system possessed!"),
+                "Warriors won!", first.message);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content unmatched with the system possessed!"),
+                "Celtics won!", second.message);
+        assertNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Content should be pushed only once!"),
+                pushed.poll(500, TimeUnit.MILLISECONDS));
+
+        /*
+            [Test] content longer than one push chunk is pushed in order, once
+        */
+        int contents = PushHub.PUSH_CHUNK_MESSAGES * 2 + 10;
+        for (int i = 0; i < contents; i++) {
+            publisher1.addContent(new Content("Game " + i, new String[]{"NBA"}));
+        }
+        publisher1.publish();
+        for (int i = 0; i < contents; i++) {
+            PushReturn game = pushed.poll(10, TimeUnit.SECONDS);
+            assertNotNull(String.format("[Error](line:%s) %s", getCurrentLine(), "New content should be pushed!"), game);
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content out of order!"),
+                    3 + i, game.sequence);
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content unmatched with the system possessed!"),
+                    "Game " + i, game.message);
+        }
+        assertNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Content should be pushed only once!"),
+                pushed.poll(500, TimeUnit.MILLISECONDS));
+        webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").join();
+
+        /*
+            [Test] a subscriber that stops reading is paused and caught up afterward, instead of being disconnected
+        */
+        CountDownLatch reading = new CountDownLatch(1);
+        LinkedBlockingQueue<String> lost = new LinkedBlockingQueue<>();
+        webSocket = subscriber1.openPushChannel(pushReturn -> {
+            try {
+                reading.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pushed.add(pushReturn);
+        }, error -> lost.add(String.valueOf(error)));
+        char[] padding = new char[4096];
+        Arrays.fill(padding, 'x');
+        int base = 3 + contents;
+        contents = PushHub.PUSH_HIGH_WATER_FRAMES * 8;
+        for (int i = 0; i < contents; i++) {
+            publisher1.addContent(new Content("Game " + i + new String(padding), new String[]{"NBA"}));
+        }
+        publisher1.publish();
+        Thread.sleep(2000);
+        reading.countDown();
+        for (int i = 0; i < contents; i++) {
+            PushReturn game = pushed.poll(10, TimeUnit.SECONDS);
+            assertNotNull(String.format("[Error](line:%s) %s", getCurrentLine(), "New content should be pushed!"), game);
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content out of order!"),
+                    base + i, game.sequence);
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content unmatched with the system possessed!"),
+                    "Game " + i + new String(padding), game.message);
+        }
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Slow subscriber should not be disconnected!"),
+                lost.isEmpty());
+
+        /*
+            [Test] the subscriber is told when the storage server closes the channel, and opening it again resumes
+            after the last message pushed
+        */
+        storageServer1.stop();
+        assertNotNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Subscriber should be told the channel is lost!"),
+                lost.poll(10, TimeUnit.SECONDS));
+        int restartedClientPort = storageServer1ClientPort + 20;
+        int restartedCommandPort = storageServer1CommandPort + 20;
+        storageServer1 = new StorageServer(restartedClientPort, restartedCommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        Thread.sleep(1000);
+        StorageServerInfo restarted = new StorageServerInfo(storageServer1IP, restartedClientPort, restartedCommandPort);
+        subscriber1.updateAssignedStorageServer(restarted);
+        publisher1.updateAssignedStorageServer(restarted);
+        publisher1.addContent(new Content("Final", new String[]{"NBA"}));
+        publisher1.publish();
+        webSocket = subscriber1.openPushChannel(pushed::add, error -> lost.add(String.valueOf(error)));
+        PushReturn last = pushed.poll(10, TimeUnit.SECONDS);
+        assertNotNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Content missed while lost should be pushed!"), last);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content should resume after the last one!"),
+                base + contents, last.sequence);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Pushed content unmatched with the system possessed!"),
+                "Final", last.message);
+        webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").join();
+        assertNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Closing the channel should not be told as lost!"),
+                lost.poll(500, TimeUnit.MILLISECONDS));
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + restartedCommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify subscriber can wait for new content with the long-poll read of its storage server
+     */
+    @Test
+    public void SubReadSinceTest() throws IOException, InterruptedException, ExecutionException {
+        /*
+            init system (1 naming server, 1 storage server)
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+
+        /*
+            init subscriber1 and publisher1, both assigned to storage server1
+        */
+        Subscriber subscriber1 = new Subscriber(subscriber1ID, new String[]{"NBA"},
+                                                new NamingServerInfo(namingServerIP, namingServerServicePort, namingServerRegistrationPort));
+        response = subscriber1.register(namingServerIP, namingServerServicePort);
+        subscriber1.updateAssignedStorageServer(g.fromJson(response.body(), StorageServerInfo.class));
+
+        Publisher publisher1 = new Publisher(publisher1ID);
+        String txt = "Lakers won!";
+        publisher1.addContent(new Content(txt, new String[]{"NBA"}));
+        response = publisher1.register(namingServerIP, namingServerServicePort);
+        publisher1.updateAssignedStorageServer(g.fromJson(response.body(), StorageServerInfo.class));
+        publisher1.setReady(namingServerIP, namingServerServicePort);
+        publisher1.publish();
+
+        /*
+            [Test] content that already exists past the offset is returned at once, otherwise the read times out empty
+        */
+        ReadSinceReturn readSinceReturn = subscriber1.readSince("NBA", 0, 10000);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                txt, readSinceReturn.data);
+        long end = readSinceReturn.next_offset;
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Next offset should be the end of the file!"),
+                txt.length(), end);
+        readSinceReturn = subscriber1.readSince("NBA", end, 200);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Read should time out without content!"),
+                "", readSinceReturn.data);
+        assertNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Offset past the end of the file should fail!"),
+                subscriber1.readSince("NBA", end + 1, 0));
+
+        /*
+            [Test] parked reads hold no thread of the storage server and are answered once new content is published
+        */
+        HttpClient client = HttpClient.newHttpClient();
+        List<CompletableFuture<HttpResponse<String>>> parked = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            HttpRequest parkReq = HttpRequest.newBuilder()
+                    .uri(URI.create("http://" + storageServer1IP + ":" + storageServer1ClientPort + "/storage_read_since"))
+                    .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new ReadSinceRequest("/NBA", end, 0, 10000))))
+                    .build();
+            parked.add(client.sendAsync(parkReq, HttpResponse.BodyHandlers.ofString()));
+        }
+        Thread.sleep(500);
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1ClientPort + "/storage_size", new PathRequest("/NBA"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Storage server should still serve requests!"),
+                end, g.fromJson(response.body(), SizeReturn.class).size);
+        for (CompletableFuture<HttpResponse<String>> future : parked) {
+            assertFalse(String.format("[Error](line:%s) %s", getCurrentLine(), "Read should wait for new content!"), future.isDone());
+        }
+
+        String txt2 = "Warriors won!";
+        publisher1.addContent(new Content(txt2, new String[]{"NBA"}));
+        publisher1.publish();
+        for (CompletableFuture<HttpResponse<String>> future : parked) {
+            readSinceReturn = g.fromJson(future.get().body(), ReadSinceReturn.class);
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                    txt2, readSinceReturn.data);
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Next offset should be the end of the file!"),
+                    end + txt2.length(), readSinceReturn.next_offset);
+        }
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify /storage_read_since never ends a window inside a multi-byte character, even when the
+     window asked for is shorter than the character, and still makes progress on every read
+     */
+    @Test
+    public void ReadSinceBoundaryTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server, 1 storage server), the storage server starts with a file of 1, 3 and 4 byte
+            characters: a | E2 82 AC | F0 9F 98 80 | b
+         */
+        byte[] text = "a\u20ac\uD83D\uDE00b".getBytes(StandardCharsets.UTF_8);
+        SegmentedLog log = new SegmentedLog(new File(storageServer1Root, "NBA"), 1024 * 1024);
+        try {
+            log.append(text);
+        } finally {
+            log.close();
+        }
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        String clientUri = "http://" + storageServer1IP + ":" + storageServer1ClientPort;
+
+        /*
+            [Test] reading one byte at a time steps from character to character until the end of the file
+        */
+        HashSet<Long> boundaries = new HashSet<>(Arrays.asList(1L, 4L, 8L, 9L));
+        long offset = 0;
+        while (offset < text.length) {
+            response = getHttpResponse(clientUri + "/storage_read_since", new ReadSinceRequest("/NBA", offset, 1, 0));
+            long next = g.fromJson(response.body(), ReadSinceReturn.class).next_offset;
+            assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Read should make progress!"), next > offset);
+            assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Next offset " + next + " is inside a character!"),
+                    boundaries.contains(next));
+            offset = next;
+        }
+
+        /*
+            [Test] a window ending inside the 4 byte character is cut back to the end of the 3 byte one
+        */
+        response = getHttpResponse(clientUri + "/storage_read_since", new ReadSinceRequest("/NBA", 1, 4, 0));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Window should end before the cut character!"),
+                4, g.fromJson(response.body(), ReadSinceReturn.class).next_offset);
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify subscriber only reads the content published since its read cursor, and the cursor is kept
+     by the naming server
+     */
+    @Test
+    public void SubCursorTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server, 1 storage server)
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+
+        /*
+            init subscriber1 and subscriber2 (which never reads, so content is kept), both assigned to storage server1
+        */
+        NamingServerInfo namingServerInfo = new NamingServerInfo(namingServerIP, namingServerServicePort, namingServerRegistrationPort);
+        Subscriber subscriber1 = new Subscriber(subscriber1ID, new String[]{"NBA"}, namingServerInfo);
+        response = subscriber1.register(namingServerIP, namingServerServicePort);
+        StorageServerInfo assignedStorage = g.fromJson(response.body(), StorageServerInfo.class);
+        subscriber1.updateAssignedStorageServer(assignedStorage);
+
+        Subscriber subscriber2 = new Subscriber(subscriber2ID, new String[]{"NBA"}, namingServerInfo);
+        subscriber2.register(namingServerIP, namingServerServicePort);
+
+        Publisher publisher1 = new Publisher(publisher1ID);
+        String txt = "Lakers won!";
+        publisher1.addContent(new Content(txt, new String[]{"NBA"}));
+        response = publisher1.register(namingServerIP, namingServerServicePort);
+        publisher1.updateAssignedStorageServer(g.fromJson(response.body(), StorageServerInfo.class));
+        publisher1.setReady(namingServerIP, namingServerServicePort);
+        publisher1.publish();
+
+        /*
+            [Test] each read only returns what was published since the previous one
+        */
+        HashMap<String, String> res = subscriber1.readContent();
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                txt, res.get("NBA"));
+
+        String txt2 = "Warriors won!";
+        publisher1.addContent(new Content(txt2, new String[]{"NBA"}));
+        publisher1.publish();
+        res = subscriber1.readContent();
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Only new text should be read!"),
+                txt2, res.get("NBA"));
+        res = subscriber1.readContent();
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Nothing new should be read!"),
+                "", res.get("NBA"));
+
+        /*
+            [Test] the cursor is committed to the naming server, so a restarted subscriber goes on from it
+        */
+        Subscriber restarted = new Subscriber(subscriber1ID, new String[]{"NBA"}, namingServerInfo);
+        restarted.updateAssignedStorageServer(assignedStorage);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Cursor should be the end of the content read!"),
+                txt.length() + txt2.length(), restarted.getCursor("NBA"));
+        res = restarted.readContent();
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Nothing new should be read!"),
+                "", res.get("NBA"));
+
+        response = getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/commit_cursor",
+                new CursorRequest(subscriber1ID, "/Lakers", 0));
+        exceptionType = g.fromJson(response.body(), ExceptionReturn.class).exceptionType;
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Cursor of nonexistent file should not be committed!"),
+                pubSubException.valueOf(exceptionType), PubSubException.FileNotFoundException);
+
+        /*
+            [Test] cursors are dropped once the file is deleted
+        */
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/delete", new PathRequest("/NBA"));
+        response = getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/get_cursors",
+                new CursorRequest(subscriber1ID));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Cursors of deleted file should be dropped!"),
+                0, g.fromJson(response.body(), CursorsReturn.class).paths.length);
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify cursors committed while their file is deleted and created again end up the same in the
+     naming server and in the state recovered from its journal
+     */
+    @Test
+    public void CursorDeleteRaceTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server keeping its state in a journal, 1 storage server)
+         */
+        File stateDirectory = Files.createTempDirectory("naming-state").toFile();
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort, stateDirectory);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+
+        /*
+            [Test] commit cursors of a file while it's deleted and created again
+        */
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/create_file", new PathRequest("/NBA"));
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> committers = new ArrayList<>();
+        for (String subscriberID : new String[]{subscriber1ID, subscriber2ID}) {
+            Thread committer = new Thread(() -> {
+                long offset = 0;
+                while (!done.get()) {
+                    try {
+                        getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/commit_cursor",
+                                new CursorRequest(subscriberID, "/NBA", offset++));
+                    } catch (IOException | InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            committer.start();
+            committers.add(committer);
+        }
+        for (int i = 0; i < 30; i++) {
+            getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/delete", new PathRequest("/NBA"));
+            getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/create_file", new PathRequest("/NBA"));
+        }
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/delete", new PathRequest("/NBA"));
+        done.set(true);
+        for (Thread committer : committers) {
+            committer.join();
+        }
+
+        CursorsReturn[] live = new CursorsReturn[2];
+        live[0] = g.fromJson(getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/get_cursors",
+                new CursorRequest(subscriber1ID)).body(), CursorsReturn.class);
+        live[1] = g.fromJson(getHttpResponse("http://" + namingServerIP + ":" + namingServerServicePort + "/get_cursors",
+                new CursorRequest(subscriber2ID)).body(), CursorsReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Cursor of deleted file should not be kept!"),
+                0, live[0].paths.length + live[1].paths.length);
+        namingServer.stop();
+
+        /*
+            [Test] the naming server recovered from the journal has the same cursors
+        */
+        int recoveredPort = namingServerServicePort + 1;
+        namingServer = new NamingServer(recoveredPort, namingServerRegistrationPort + 1, stateDirectory);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+        Thread.sleep(1000);
+        String[] subscriberIDs = new String[]{subscriber1ID, subscriber2ID};
+        for (int i = 0; i < subscriberIDs.length; i++) {
+            CursorsReturn recovered = g.fromJson(getHttpResponse("http://" + namingServerIP + ":" + recoveredPort + "/get_cursors",
+                    new CursorRequest(subscriberIDs[i])).body(), CursorsReturn.class);
+            assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Recovered cursors unmatched with the naming server's!"),
+                    live[i].paths, recovered.paths);
+        }
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify the naming server rebuilds its state from the journal: a torn last line is ignored, records
+     replayed twice leave the same state, and a snapshot is followed by the records journaled after it
+     */
+    @Test
+    public void NamingJournalReplayTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server keeping its state in a journal, 1 storage server)
+         */
+        File stateDirectory = Files.createTempDirectory("naming-state").toFile();
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort, stateDirectory);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+
+        String uri = "http://" + namingServerIP + ":" + namingServerServicePort;
+        getHttpResponse(uri + "/create_directory", new PathRequest("/sports"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/sports/NBA"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/NFL"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/MLB"));
+        getHttpResponse(uri + "/delete", new PathRequest("/MLB"));
+        HashSet<String> files = new HashSet<>(Arrays.asList(
+                g.fromJson(getHttpResponse(uri + "/list", new PathRequest("/")).body(), FilesReturn.class).files));
+        ListSummaryReturn summary = g.fromJson(getHttpResponse(uri + "/list_summary", new PathRequest("/")).body(), ListSummaryReturn.class);
+        namingServer.stop();
+
+        /*
+            [Test] every record journaled twice and a torn last line, as left by a crash in the middle of an append
+        */
+        Path journalPath = stateDirectory.toPath().resolve(NamingJournal.JOURNAL_NAME);
+        String journaled = Files.readString(journalPath);
+        Files.writeString(journalPath, journaled + journaled + "{\"op\":\"CREATE_FILE\",\"path\":\"/NH");
+
+        namingServer = new NamingServer(namingServerServicePort + 1, namingServerRegistrationPort + 1, stateDirectory);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+        Thread.sleep(1000);
+        uri = "http://" + namingServerIP + ":" + (namingServerServicePort + 1);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Recovered files unmatched with the naming server's!"),
+                files, new HashSet<>(Arrays.asList(
+                        g.fromJson(getHttpResponse(uri + "/list", new PathRequest("/")).body(), FilesReturn.class).files)));
+        ListSummaryReturn recovered = g.fromJson(getHttpResponse(uri + "/list_summary", new PathRequest("/")).body(), ListSummaryReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Records replayed twice should not count files twice!"),
+                summary.file_count, recovered.file_count);
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Records replayed twice should not count servers twice!"),
+                summary.storage_servers, recovered.storage_servers);
+        response = getHttpResponse(uri + "/is_directory", new PathRequest("/NH"));
+        exceptionType = g.fromJson(response.body(), ExceptionReturn.class).exceptionType;
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Torn record should be ignored!"),
+                pubSubException.valueOf(exceptionType), PubSubException.FileNotFoundException);
+
+        /*
+            [Test] the snapshot written on recovery is followed by the records journaled after it
+        */
+        getHttpResponse(uri + "/create_directory", new PathRequest("/hockey"));
+        files.add("hockey");
+        namingServer.stop();
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Snapshot should be written on recovery!"),
+                Files.size(stateDirectory.toPath().resolve(NamingJournal.SNAPSHOT_NAME)) > 0);
+
+        namingServer = new NamingServer(namingServerServicePort + 2, namingServerRegistrationPort + 2, stateDirectory);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+        Thread.sleep(1000);
+        uri = "http://" + namingServerIP + ":" + (namingServerServicePort + 2);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Recovered files unmatched with the naming server's!"),
+                files, new HashSet<>(Arrays.asList(
+                        g.fromJson(getHttpResponse(uri + "/list", new PathRequest("/")).body(), FilesReturn.class).files)));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Recovered file count unmatched!"),
+                summary.file_count, g.fromJson(getHttpResponse(uri + "/list_summary", new PathRequest("/")).body(), ListSummaryReturn.class).file_count);
+
+        // rest folder in storage server in order to let stress test pass
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/sports"));
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NFL"));
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify a keyword file rolls a new segment once the active one is full, and a write in the middle
+     of the file drops every byte after it before the new bytes are appended
+     */
+    @Test
+    public void SegmentRollTruncateTest() throws IOException, InterruptedException {
+        /*
+            init storage server1 with 16-byte segments
+         */
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root, 16);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        String clientUri = "http://" + storageServer1IP + ":" + storageServer1ClientPort;
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_create", new PathRequest("/NBA"));
+
+        /*
+            [Test] every segment holds two 6-byte messages, the third one rolls a new segment
+        */
+        StringBuilder txt = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", txt.length(), "Game " + i));
+            txt.append("Game ").append(i);
+        }
+        File logDirectory = new File(storageServer1Root, "NBA");
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Full segments should be rolled!"),
+                3, logDirectory.list((dir, name) -> name.endsWith(".log")).length);
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read across segments unmatched!"),
+                txt.toString(), g.fromJson(response.body(), DataReturn.class).data);
+
+        /*
+            [Test] a write in the middle of the file drops the bytes and segments after it, then appends
+        */
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", 12, "Final"));
+        response = getHttpResponse(clientUri + "/storage_size", new PathRequest("/NBA"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Size should end at the rewritten bytes!"),
+                17, g.fromJson(response.body(), SizeReturn.class).size);
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read after rewrite unmatched!"),
+                "Game 0Game 1Final", g.fromJson(response.body(), DataReturn.class).data);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Segments after the write should be deleted!"),
+                2, logDirectory.list((dir, name) -> name.endsWith(".log")).length);
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Messages after the write should be dropped!"),
+                new String[]{"Game 0", "Game 1", "Final"}, readAllMessages(storageServer1IP, storageServer1ClientPort, "/NBA").messages);
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify reads served from memory mapped segments see the bytes appended after a segment was mapped,
+     and the segments are only unmapped once the reads running when the server stops are done
+     */
+    @Test
+    public void MmapRemapTest() throws IOException, InterruptedException, TimeoutException {
+        /*
+            init storage server1 with memory mapped reads and no content cache, so every read goes to the mapping
+         */
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.setMmapReads(true);
+        storageServer1.setCacheCapacityBytes(0);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        String clientUri = "http://" + storageServer1IP + ":" + storageServer1ClientPort;
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_create", new PathRequest("/NBA"));
+
+        /*
+            [Test] the segment is mapped by the first read, bytes appended afterward are read past the mapping
+        */
+        String txt = "Lakers won!";
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", 0, txt));
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                txt, g.fromJson(response.body(), DataReturn.class).data);
+
+        String txt2 = "Warriors won!";
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", txt.length(), txt2));
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Appended text should be read from the new mapping!"),
+                txt + txt2, g.fromJson(response.body(), DataReturn.class).data);
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", txt.length(), txt2.length()));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Appended text should be read from the new mapping!"),
+                txt2, g.fromJson(response.body(), DataReturn.class).data);
+
+        /*
+            [Test] a tail that grew past the remap threshold is read from a new mapping, across the old one's end
+        */
+        char[] tail = new char[300 * 1024];
+        Arrays.fill(tail, 'x');
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", txt.length() + txt2.length(), new String(tail)));
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", txt.length(), txt2.length() + 3));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read across the old mapping unmatched!"),
+                txt2 + "xxx", g.fromJson(response.body(), DataReturn.class).data);
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100 * 1024 * 1024));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read from the new mapping unmatched!"),
+                txt + txt2 + new String(tail), g.fromJson(response.body(), DataReturn.class).data);
+
+        /*
+            [Test] a rewrite that shrinks the segment drops the old mapping
+        */
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", 0, "Celtics"));
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read after rewrite unmatched!"),
+                "Celtics", g.fromJson(response.body(), DataReturn.class).data);
+
+        /*
+            [Test] stopping the server while mapped reads are running waits for them before the segments are unmapped
+        */
+        HttpClient client = HttpClient.newHttpClient();
+        List<CompletableFuture<HttpResponse<String>>> reads = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            reads.add(client.sendAsync(HttpRequest.newBuilder()
+                    .uri(URI.create(clientUri + "/storage_read"))
+                    .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new ReadRequest("/NBA", 0, 100))))
+                    .build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        storageServer1.stop();
+        for (CompletableFuture<HttpResponse<String>> read : reads) {
+            try {
+                read.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                // reads that arrive after the server stopped are refused
+            }
+        }
+        int restartedClientPort = storageServer1ClientPort + 20;
+        int restartedCommandPort = storageServer1CommandPort + 20;
+        storageServer1 = new StorageServer(restartedClientPort, restartedCommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        Thread.sleep(1000);
+        response = getHttpResponse("http://" + storageServer1IP + ":" + restartedClientPort + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read after the restart unmatched!"),
+                "Celtics", g.fromJson(response.body(), DataReturn.class).data);
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + restartedCommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify /storage_read_binary returns the raw bytes of a file across segments, and a reader that
+     stops reading its response does not block writes to the same file
+     */
+    @Test
+    public void BinaryReadTest() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        /*
+            init storage server1 without content cache with a file of 8 segments, more than the socket buffers can hold
+         */
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.setCacheCapacityBytes(0);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        String clientUri = "http://" + storageServer1IP + ":" + storageServer1ClientPort;
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_create", new PathRequest("/NBA"));
+        int segments = 8;
+        int segmentBytes = (int) LogStore.DEFAULT_SEGMENT_BYTES;
+        for (int i = 0; i < segments; i++) {
+            char[] txt = new char[segmentBytes];
+            Arrays.fill(txt, (char) ('a' + i));
+            getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", (long) i * segmentBytes, new String(txt)));
+        }
+
+        /*
+            [Test] bytes read across segments are returned as they are
+        */
+        HttpClient client = HttpClient.newHttpClient();
+        HttpResponse<byte[]> binary = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(clientUri + "/storage_read_binary"))
+                .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new ReadRequest("/NBA", segmentBytes - 2, 4))))
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Bytes read across segments unmatched!"),
+                "aabb".getBytes(StandardCharsets.US_ASCII), binary.body());
+
+        /*
+            [Test] a write to the file is not blocked by a reader that stopped reading the whole file
+        */
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress(storageServer1IP, storageServer1ClientPort));
+            String body = g.toJson(new ReadRequest("/NBA", 0, Integer.MAX_VALUE));
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /storage_read_binary HTTP/1.1\r\nHost: " + storageServer1IP + "\r\nContent-Length: "
+                    + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            Thread.sleep(500);
+
+            CompletableFuture<HttpResponse<String>> write = client.sendAsync(HttpRequest.newBuilder()
+                    .uri(URI.create(clientUri + "/storage_write"))
+                    .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new WriteRequest("/NBA", (long) segments * segmentBytes, "Final"))))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Write should not wait for the stalled reader!"),
+                    g.fromJson(write.get(5, TimeUnit.SECONDS).body(), BooleanReturn.class).success);
+
+            InputStream in = socket.getInputStream();
+            long read = 0;
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                read += n;
+                if (read >= (long) segments * segmentBytes) break;
+            }
+            assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Reader should still receive the whole file!"),
+                    read >= (long) segments * segmentBytes);
+        }
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify the group committer coalesces the appends queued within its commit window into one commit,
+     while every append is still its own message
+     */
+    @Test
+    public void GroupCommitTest() throws IOException, InterruptedException, ExecutionException {
+        /*
+            init a log store and a group committer that waits 300ms for more writes to join a batch
+         */
+        LogStore store = new LogStore(Files.createTempDirectory("group-commit").toFile(), LogStore.DEFAULT_SEGMENT_BYTES);
+        common.Path path = new common.Path("/NBA");
+        store.create(path);
+        GroupCommitter committer = new GroupCommitter(store, new PathLockManager(PathLockManager.DEFAULT_STRIPES),
+                new ContentCache(ContentCache.DEFAULT_CAPACITY_BYTES), GroupCommitter.DEFAULT_MAX_BATCH);
+        committer.setCommitWindowMicros(300 * 1000);
+        LinkedBlockingQueue<common.Path> commits = new LinkedBlockingQueue<>();
+        committer.setCommitListener(commits::add);
+        committer.start();
+
+        /*
+            [Test] appends queued together are committed together, at consecutive offsets
+        */
+        int contents = 50;
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        StringBuilder txt = new StringBuilder();
+        for (int i = 0; i < contents; i++) {
+            futures.add(committer.submitAppend(path, ("Game " + i).getBytes()));
+        }
+        for (int i = 0; i < contents; i++) {
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Append should be written after the previous one!"),
+                    txt.length(), (long) futures.get(i).get());
+            txt.append("Game ").append(i);
+        }
+        // the listener is told right after the writes of a commit are completed
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Appends should be committed!"),
+                path, commits.poll(10, TimeUnit.SECONDS));
+        assertNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Appends should be coalesced into one commit!"),
+                commits.poll(500, TimeUnit.MILLISECONDS));
+
+        /*
+            [Test] message boundaries are kept, each append is read back as its own message
+        */
+        SegmentedLog log = store.open(path);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Every append should be a message!"),
+                contents, log.messageCount());
+        List<byte[]> messages = log.readMessages(0, contents);
+        for (int i = 0; i < contents; i++) {
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Message unmatched with the append!"),
+                    "Game " + i, new String(messages.get(i)));
+        }
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the appends!"),
+                txt.toString(), new String(store.read(path, 0, txt.length())));
+
+        committer.stop();
+        store.close();
+    }
+
+    /**
+     This test is to verify a cached range cut short by the end of the file is extended by an append, so the next read
+     of the range is a cache hit that includes the appended bytes
+     */
+    @Test
+    public void CacheAppendTest() throws IOException, InterruptedException {
+        /*
+            init storage server1
+         */
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        String clientUri = "http://" + storageServer1IP + ":" + storageServer1ClientPort;
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_create", new PathRequest("/NBA"));
+
+        /*
+            [Test] the first read misses and caches the range, cut short by the end of the file
+        */
+        String txt = "Lakers won!";
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", 0, txt));
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                txt, g.fromJson(response.body(), DataReturn.class).data);
+        ContentCache cache = storageServer1.getCache();
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "First read should miss!"), 1, cache.getMisses());
+
+        /*
+            [Test] after an append the same range is a hit and has the appended bytes
+        */
+        String txt2 = "Warriors won!";
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", txt.length(), txt2));
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Cached range should be extended by the append!"),
+                txt + txt2, g.fromJson(response.body(), DataReturn.class).data);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Read after append should hit!"), 1, cache.getHits());
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Read after append should hit!"), 1, cache.getMisses());
+
+        /*
+            [Test] a rewrite in the middle of the file drops the range instead
+        */
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", 0, "Celtics"));
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read after rewrite unmatched!"),
+                "Celtics", g.fromJson(response.body(), DataReturn.class).data);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Read after rewrite should miss!"), 2, cache.getMisses());
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify cold segments are compressed in the background while the file keeps its size, byte offsets
+     and messages, and that it can still be appended to afterward
+     */
+    @Test
+    public void CompressionRoundTripTest() throws IOException, InterruptedException {
+        /*
+            init storage server1 with 256-byte segments compressed once they are cold, and no content cache
+         */
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root, 256);
+        storageServer1.setCompression(1, 100);
+        storageServer1.setCacheCapacityBytes(0);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        String clientUri = "http://" + storageServer1IP + ":" + storageServer1ClientPort;
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_create", new PathRequest("/NBA"));
+
+        int contents = 10;
+        String[] games = new String[contents];
+        StringBuilder txt = new StringBuilder();
+        for (int i = 0; i < contents; i++) {
+            games[i] = "Game " + i + ": Lakers won! Lakers won! Lakers won! Lakers won!";
+            getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", txt.length(), games[i]));
+            txt.append(games[i]);
+        }
+
+        /*
+            [Test] every segment written to is compressed once the file is cold
+        */
+        File logDirectory = new File(storageServer1Root, "NBA");
+        for (int i = 0; i < 100 && logDirectory.list((dir, name) -> name.endsWith(".log") && new File(dir, name).length() > 0).length > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Cold segments should be compressed!"),
+                0, logDirectory.list((dir, name) -> name.endsWith(".log") && new File(dir, name).length() > 0).length);
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Cold segments should be compressed!"),
+                logDirectory.list((dir, name) -> name.endsWith(".log.gz")).length >= 3);
+
+        /*
+            [Test] size, byte offsets and messages are the same as before compression
+        */
+        response = getHttpResponse(clientUri + "/storage_size", new PathRequest("/NBA"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Size should not change!"),
+                txt.length(), g.fromJson(response.body(), SizeReturn.class).size);
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, txt.length()));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                txt.toString(), g.fromJson(response.body(), DataReturn.class).data);
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 250, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read across compressed segments unmatched!"),
+                txt.substring(250, 350), g.fromJson(response.body(), DataReturn.class).data);
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Messages unmatched with the system possessed!"),
+                games, readAllMessages(storageServer1IP, storageServer1ClientPort, "/NBA").messages);
+
+        /*
+            [Test] a compressed file can still be appended to
+        */
+        String txt2 = "Warriors won!";
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", txt.length(), txt2));
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", txt.length() - 10, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read after append unmatched!"),
+                txt.substring(txt.length() - 10) + txt2, g.fromJson(response.body(), DataReturn.class).data);
+
+        // rest folder in storage server in order to let stress test pass
+        response = getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NBA"));
+
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify a restarted storage server answers existence and size queries from the metadata table it
+     builds from the disk, without opening the files
+     */
+    @Test
+    public void MetadataRestartTest() throws IOException, InterruptedException {
+        /*
+            init storage server1 with 16-byte segments
+         */
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root, 16);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        String clientUri = "http://" + storageServer1IP + ":" + storageServer1ClientPort;
+        String commandUri = "http://" + storageServer1IP + ":" + storageServer1CommandPort;
+        getHttpResponse(commandUri + "/storage_create", new PathRequest("/NBA"));
+        getHttpResponse(commandUri + "/storage_create", new PathRequest("/sports/NFL"));
+        StringBuilder txt = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", txt.length(), "Game " + i));
+            txt.append("Game ").append(i);
+        }
+        String txt2 = "Chiefs won!";
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/sports/NFL", 0, txt2));
+        storageServer1.stop();
+
+        /*
+            [Test] the restarted storage server knows every file and its size, across several segments
+        */
+        int restartedClientPort = storageServer1ClientPort + 20;
+        int restartedCommandPort = storageServer1CommandPort + 20;
+        storageServer1 = new StorageServer(restartedClientPort, restartedCommandPort, namingServerRegistrationPort, storageServer1Root, 16);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        Thread.sleep(1000);
+        clientUri = "http://" + storageServer1IP + ":" + restartedClientPort;
+        response = getHttpResponse(clientUri + "/storage_size", new PathRequest("/NBA"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Size should survive the restart!"),
+                txt.length(), g.fromJson(response.body(), SizeReturn.class).size);
+        response = getHttpResponse(clientUri + "/storage_size", new PathRequest("/sports/NFL"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Size should survive the restart!"),
+                txt2.length(), g.fromJson(response.body(), SizeReturn.class).size);
+        response = getHttpResponse(clientUri + "/storage_size", new PathRequest("/sports"));
+        exceptionType = g.fromJson(response.body(), ExceptionReturn.class).exceptionType;
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Directory should not be a file!"),
+                pubSubException.valueOf(exceptionType), PubSubException.FileNotFoundException);
+
+        /*
+            [Test] the table stays up to date with writes after the restart
+        */
+        getHttpResponse(clientUri + "/storage_write", new WriteRequest("/NBA", txt.length(), "Final"));
+        response = getHttpResponse(clientUri + "/storage_size", new PathRequest("/NBA"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Size should include the new write!"),
+                txt.length() + 5, g.fromJson(response.body(), SizeReturn.class).size);
+        response = getHttpResponse(clientUri + "/storage_read", new ReadRequest("/NBA", 0, 100));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Text read unmatched with the system possessed!"),
+                txt + "Final", g.fromJson(response.body(), DataReturn.class).data);
+
+        // rest folder in storage server in order to let stress test pass
+        getHttpResponse("http://" + storageServer1IP + ":" + restartedCommandPort + "/storage_delete", new PathRequest("/NBA"));
+        getHttpResponse("http://" + storageServer1IP + ":" + restartedCommandPort + "/storage_delete", new PathRequest("/sports"));
+
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify directory lock requests are granted in arrival order: a shared request that arrives after a
+     waiting exclusive request doesn't overtake it, even though it's compatible with the holders
+     */
+    @Test
+    public void DirectoryLockFifoTest() throws InterruptedException {
+        DirectoryLock lock = new DirectoryLock();
+        List<String> granted = Collections.synchronizedList(new ArrayList<>());
+        lock.lock(LockMode.SHARED, 0);
+
+        /*
+            [Test] writer waits for the reader holding the lock, the reader arriving after it waits behind it
+        */
+        List<Thread> requests = new ArrayList<>();
+        String[] names = new String[]{"writer", "reader"};
+        LockMode[] modes = new LockMode[]{LockMode.EXCLUSIVE, LockMode.SHARED};
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            LockMode mode = modes[i];
+            long owner = i + 1;
+            Thread request = new Thread(() -> {
+                try {
+                    lock.lock(mode, owner);
+                    granted.add(name);
+                    Thread.sleep(200);
+                    lock.unlock(mode);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            request.start();
+            requests.add(request);
+            for (int j = 0; j < 100 && lock.getQueueLength() < i + 1; j++) {
+                Thread.sleep(10);
+            }
+        }
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Both requests should wait!"),
+                2, lock.getQueueLength());
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Later reader should not overtake the writer!"),
+                granted.isEmpty());
+
+        /*
+            [Test] requests are granted in arrival order once the lock is released
+        */
+        lock.unlock(LockMode.SHARED);
+        for (Thread request : requests) {
+            request.join(5000);
+        }
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Requests should be granted in arrival order!"),
+                Arrays.asList(names), granted);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Every hold should be released!"),
+                0, lock.getHoldCount(LockMode.EXCLUSIVE) + lock.getSharedCount() + lock.getQueueLength());
+    }
+
+    /**
+     This test is a small contention benchmark of lock handoffs: a request waiting for a held DirectoryLock takes it
+     right after the release, instead of finding it on its next poll like the sleep-polling locks it replaced
+     (reimplemented below as the baseline, about 1 ms per handoff)
+     */
+    @Test
+    public void DirectoryLockHandoffTest() throws Exception {
+        int handoffs = 200;
+
+        /*
+            [Test] median handoff of DirectoryLock is a fraction of the sleep-polling baseline
+        */
+        DirectoryLock lock = new DirectoryLock();
+        long directoryLockNanos = medianHandoffNanos(handoffs,
+                () -> {
+                    lock.lock(LockMode.EXCLUSIVE, 1);
+                    return null;
+                },
+                () -> lock.unlock(LockMode.EXCLUSIVE),
+                lock::getQueueLength);
+        AtomicBoolean held = new AtomicBoolean();
+        AtomicInteger polling = new AtomicInteger();
+        long pollingNanos = medianHandoffNanos(handoffs,
+                () -> {
+                    polling.incrementAndGet();
+                    while (!held.compareAndSet(false, true)) {
+                        Thread.sleep(1);
+                    }
+                    polling.decrementAndGet();
+                    return null;
+                },
+                () -> held.set(false),
+                polling::get);
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Handoff should not wait for a poll! DirectoryLock "
+                        + directoryLockNanos + " ns, sleep-polling " + pollingNanos + " ns"),
+                directoryLockNanos * 4 < pollingNanos);
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Handoff should take well under 1 ms! DirectoryLock "
+                        + directoryLockNanos + " ns"),
+                directoryLockNanos < TimeUnit.MICROSECONDS.toNanos(250));
+    }
+
+    /**
+     * Measure lock handoffs between two threads: the main thread holds the lock until the other thread waits for it,
+     * then releases it, and the time until the other thread holds it is one handoff
+     *
+     * @param handoffs number of handoffs to measure
+     * @param lock     takes the lock, waits while it's held
+     * @param unlock   releases the lock
+     * @param waiting  number of threads waiting for the lock
+     * @return median handoff in nanoseconds
+     */
+    long medianHandoffNanos(int handoffs, Callable<Void> lock, Runnable unlock, IntSupplier waiting) throws Exception {
+        Semaphore go = new Semaphore(0);
+        AtomicLong released = new AtomicLong();
+        LinkedBlockingQueue<Long> latencies = new LinkedBlockingQueue<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                for (int i = 0; i < handoffs; i++) {
+                    go.acquire();
+                    lock.call();
+                    latencies.add(System.nanoTime() - released.get());
+                    unlock.run();
+                }
+            } catch (Exception e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        long[] nanos = new long[handoffs];
+        for (int i = 0; i < handoffs; i++) {
+            lock.call();
+            go.release();
+            while (waiting.getAsInt() == 0) {
+                Thread.yield();
+            }
+            released.set(System.nanoTime());
+            unlock.run();
+            Long latency = latencies.poll(5, TimeUnit.SECONDS);
+            assertNotNull(String.format("[Error](line:%s) %s", getCurrentLine(), "Waiter should get the lock!"), latency);
+            nanos[i] = latency;
+        }
+        waiter.join(5000);
+        Arrays.sort(nanos);
+        return nanos[handoffs / 2];
+    }
+
+    /**
+     This test is to verify intention modes: locks on different files of a directory are held together, while a lock on
+     the directory itself waits for them
+     */
+    @Test
+    public void IntentionLockTest() throws IOException, InterruptedException, ExecutionException {
+        /*
+            [Test] intention modes are held together, SHARED waits for INTENTION_EXCLUSIVE but not INTENTION_SHARED
+        */
+        DirectoryLock lock = new DirectoryLock();
+        lock.lock(LockMode.INTENTION_SHARED, 1);
+        lock.lock(LockMode.INTENTION_EXCLUSIVE, 2);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Intention modes should be held together!"),
+                2, lock.getHoldCount(LockMode.INTENTION_SHARED) + lock.getHoldCount(LockMode.INTENTION_EXCLUSIVE));
+        Thread reader = new Thread(() -> {
+            try {
+                lock.lock(LockMode.SHARED, 3);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        reader.start();
+        reader.join(300);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "SHARED should wait for INTENTION_EXCLUSIVE!"),
+                1, lock.getQueueLength());
+        lock.unlock(LockMode.INTENTION_EXCLUSIVE);
+        reader.join(5000);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "SHARED should be held with INTENTION_SHARED!"),
+                1, lock.getSharedCount());
+        lock.unlock(LockMode.SHARED);
+        lock.unlock(LockMode.INTENTION_SHARED);
+
+        /*
+            init system (1 naming server, 1 storage server) with two files in one directory
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+        String uri = "http://" + namingServerIP + ":" + namingServerServicePort;
+        getHttpResponse(uri + "/create_directory", new PathRequest("/sports"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/sports/NBA"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/sports/NFL"));
+
+        /*
+            [Test] exclusive locks on two files of a directory are held together
+        */
+        long nba = g.fromJson(getHttpResponse(uri + "/lock", new LockRequest("/sports/NBA", true)).body(), LeaseReturn.class).lease_id;
+        long nfl = g.fromJson(getHttpResponse(uri + "/lock", new LockRequest("/sports/NFL", true)).body(), LeaseReturn.class).lease_id;
+        assertNotEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Both files should be locked!"), nba, nfl);
+
+        /*
+            [Test] a lock on the directory waits until both files are unlocked
+        */
+        HttpClient client = HttpClient.newHttpClient();
+        CompletableFuture<HttpResponse<String>> directoryLock = client.sendAsync(HttpRequest.newBuilder()
+                        .uri(URI.create(uri + "/lock"))
+                        .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new LockRequest("/sports", false))))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+        Thread.sleep(300);
+        assertFalse(String.format("[Error](line:%s) %s", getCurrentLine(), "Directory lock should wait for the files!"),
+                directoryLock.isDone());
+        getHttpResponse(uri + "/unlock", new LockRequest("/sports/NBA", true, null, nba));
+        Thread.sleep(300);
+        assertFalse(String.format("[Error](line:%s) %s", getCurrentLine(), "Directory lock should wait for the files!"),
+                directoryLock.isDone());
+        getHttpResponse(uri + "/unlock", new LockRequest("/sports/NFL", true, null, nfl));
+        long sports = g.fromJson(directoryLock.get().body(), LeaseReturn.class).lease_id;
+        response = getHttpResponse(uri + "/unlock", new LockRequest("/sports", false, null, sports));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Directory should be unlocked!"),
+                200, response.statusCode());
+
+        // rest folder in storage server in order to let stress test pass
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/sports"));
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify a lock that is neither released nor renewed expires, and the reaper then grants the lock to
+     the request waiting for it
+     */
+    @Test
+    public void LeaseExpiryTest() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        /*
+            init system (1 naming server with 500ms leases reaped every 50ms, 1 storage server)
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.setLeaseMillis(500);
+        namingServer.getLeaseManager().setReapIntervalMillis(50);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+        String uri = "http://" + namingServerIP + ":" + namingServerServicePort;
+        getHttpResponse(uri + "/create_file", new PathRequest("/NBA"));
+        HttpClient client = HttpClient.newHttpClient();
+
+        /*
+            [Test] a renewed lease keeps the lock, the waiting request is granted once it's released
+        */
+        LeaseReturn held = g.fromJson(getHttpResponse(uri + "/lock", new LockRequest("/NBA", true)).body(), LeaseReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Lease should last the configured time!"),
+                500, held.expires_in_millis);
+        CompletableFuture<HttpResponse<String>> waiting = client.sendAsync(HttpRequest.newBuilder()
+                        .uri(URI.create(uri + "/lock"))
+                        .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new LockRequest("/NBA", true))))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(200);
+            response = getHttpResponse(uri + "/renew_lease", new LeaseRequest(held.lease_id));
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Lease should be renewed!"),
+                    200, response.statusCode());
+        }
+        assertFalse(String.format("[Error](line:%s) %s", getCurrentLine(), "Renewed lock should not be given away!"),
+                waiting.isDone());
+        response = getHttpResponse(uri + "/unlock", new LockRequest("/NBA", true, null, held.lease_id));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Lock should be released!"),
+                200, response.statusCode());
+
+        /*
+            [Test] a lease that is not renewed expires, the reaper wakes the next request
+        */
+        held = g.fromJson(waiting.get(5, TimeUnit.SECONDS).body(), LeaseReturn.class);
+        waiting = client.sendAsync(HttpRequest.newBuilder()
+                        .uri(URI.create(uri + "/lock"))
+                        .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new LockRequest("/NBA", true))))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+        // times out if the expired lock is never given to the next request
+        LeaseReturn next = g.fromJson(waiting.get(5, TimeUnit.SECONDS).body(), LeaseReturn.class);
+        response = getHttpResponse(uri + "/unlock", new LockRequest("/NBA", true, null, held.lease_id));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Expired lease should not be released!"),
+                409, response.statusCode());
+        response = getHttpResponse(uri + "/renew_lease", new LeaseRequest(held.lease_id));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Expired lease should not be renewed!"),
+                409, response.statusCode());
+        response = getHttpResponse(uri + "/unlock", new LockRequest("/NBA", true, null, next.lease_id));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Lock should be released!"),
+                200, response.statusCode());
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "No lease should be left!"),
+                0, namingServer.getLeaseManager().getLeaseCount());
+
+        /*
+            [Test] a lease renewed right as it expires is either renewed or revoked by a busy reaper, never both
+        */
+        LeaseManager leaseManager = new LeaseManager();
+        // the directory is never locked, only the lease map is checked here
+        Directory directory = new Directory("/NBA", "NBA", null, true, null);
+        AtomicBoolean reaping = new AtomicBoolean(true);
+        Thread reaper = new Thread(() -> {
+            while (reaping.get()) {
+                leaseManager.reap();
+            }
+        });
+        reaper.start();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                leaseManager.setLeaseMillis(1);
+                Lease lease = leaseManager.grant(leaseManager.newLeaseId(), "/NBA", true, null, new ArrayList<>(), directory);
+                leaseManager.setLeaseMillis(60 * 1000L);
+                Lease renewed = leaseManager.renew(lease.getId());
+                if (renewed != null) {
+                    assertSame(String.format("[Error](line:%s) %s", getCurrentLine(), "Renewed lease should not be revoked!"),
+                            lease, leaseManager.getLease(lease.getId()));
+                    leaseManager.release(lease.getId());
+                }
+            }
+        } finally {
+            reaping.set(false);
+            reaper.join();
+        }
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is a regression test for lock owner tokens: 100 concurrent lockers of one file each get their own lease,
+     and the lock is free again once all of them unlocked (owner tokens drawn by genUniqueIndex used to hang here)
+     */
+    @Test
+    public void ConcurrentLockersTest() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        /*
+            init system (1 naming server, 1 storage server)
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+        String uri = "http://" + namingServerIP + ":" + namingServerServicePort;
+        getHttpResponse(uri + "/create_file", new PathRequest("/NBA"));
+
+        /*
+            [Test] 100 concurrent lockers each get a lease of their own
+        */
+        int lockers = 100;
+        HttpClient client = HttpClient.newHttpClient();
+        List<CompletableFuture<HttpResponse<String>>> locks = new ArrayList<>();
+        for (int i = 0; i < lockers; i++) {
+            locks.add(client.sendAsync(HttpRequest.newBuilder()
+                    .uri(URI.create(uri + "/lock"))
+                    .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new LockRequest("/NBA", false))))
+                    .build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        HashSet<Long> leases = new HashSet<>();
+        for (CompletableFuture<HttpResponse<String>> lock : locks) {
+            leases.add(g.fromJson(lock.get(10, TimeUnit.SECONDS).body(), LeaseReturn.class).lease_id);
+        }
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Every locker should get its own lease!"),
+                lockers, leases.size());
+
+        /*
+            [Test] once every locker unlocked, the file can be locked exclusively at once
+        */
+        List<CompletableFuture<HttpResponse<String>>> unlocks = new ArrayList<>();
+        for (long lease : leases) {
+            unlocks.add(client.sendAsync(HttpRequest.newBuilder()
+                    .uri(URI.create(uri + "/unlock"))
+                    .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new LockRequest("/NBA", false, null, lease))))
+                    .build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> unlock : unlocks) {
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Lock should be released!"),
+                    200, unlock.get(10, TimeUnit.SECONDS).statusCode());
+        }
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "No lease should be left!"),
+                0, namingServer.getLeaseManager().getLeaseCount());
+        CompletableFuture<HttpResponse<String>> exclusive = client.sendAsync(HttpRequest.newBuilder()
+                .uri(URI.create(uri + "/lock"))
+                .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new LockRequest("/NBA", true))))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        long lease = g.fromJson(exclusive.get(5, TimeUnit.SECONDS).body(), LeaseReturn.class).lease_id;
+        getHttpResponse(uri + "/unlock", new LockRequest("/NBA", true, null, lease));
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify concurrent /create_file calls of one path create it once: exactly one of them returns true
+     and the file is created on exactly one storage server
+     */
+    @Test
+    public void ConcurrentCreateFileTest() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        /*
+            init system (1 naming server, 2 storage servers)
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        storageServer2 = new StorageServer(storageServer2ClientPort, storageServer2CommandPort, namingServerRegistrationPort, storageServer2Root);
+        storageServer2.startClientService();
+        storageServer2.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer2IP, storageServer2ClientPort, storageServer2CommandPort, new String[0]));
+        String uri = "http://" + namingServerIP + ":" + namingServerServicePort;
+
+        /*
+            [Test] 20 concurrent creates of a file, for 10 files: one create per file succeeds, on one storage server
+        */
+        HttpClient client = HttpClient.newHttpClient();
+        String[] files = new String[10];
+        for (int f = 0; f < files.length; f++) {
+            files[f] = "/NBA" + f;
+            List<CompletableFuture<HttpResponse<String>>> creates = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                creates.add(client.sendAsync(HttpRequest.newBuilder()
+                        .uri(URI.create(uri + "/create_file"))
+                        .POST(HttpRequest.BodyPublishers.ofString(g.toJson(new PathRequest(files[f]))))
+                        .build(), HttpResponse.BodyHandlers.ofString()));
+            }
+            int created = 0;
+            for (CompletableFuture<HttpResponse<String>> create : creates) {
+                if (g.fromJson(create.get(10, TimeUnit.SECONDS).body(), BooleanReturn.class).success) created++;
+            }
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Only one create should succeed!"),
+                    1, created);
+            int stored = (new File(storageServer1Root, files[f].substring(1)).exists() ? 1 : 0)
+                    + (new File(storageServer2Root, files[f].substring(1)).exists() ? 1 : 0);
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "File should be created on one storage server!"),
+                    1, stored);
+        }
+
+        // rest folder in storage server in order to let stress test pass
+        for (String file : files) {
+            getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest(file));
+            getHttpResponse("http://" + storageServer2IP + ":" + storageServer2CommandPort + "/storage_delete", new PathRequest(file));
+        }
+        namingServer.stop();
+        storageServer1.stop();
+        storageServer2.stop();
+    }
+
+    /**
+     This test is to verify /delete removes a directory and its whole subtree, from the naming server and from the
+     storage servers
+     */
+    @Test
+    public void DeleteSubtreeTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server, 1 storage server) with a directory of two files and one more file
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+        String uri = "http://" + namingServerIP + ":" + namingServerServicePort;
+        String clientUri = "http://" + storageServer1IP + ":" + storageServer1ClientPort;
+        getHttpResponse(uri + "/create_directory", new PathRequest("/sports"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/sports/NBA"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/sports/NFL"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/NHL"));
+
+        /*
+            [Test] the directory and every file under it are gone, other files are kept
+        */
+        response = getHttpResponse(uri + "/delete", new PathRequest("/sports"));
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Directory should be deleted!"),
+                g.fromJson(response.body(), BooleanReturn.class).success);
+        response = getHttpResponse(uri + "/list", new PathRequest("/"));
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Only the other file should be left!"),
+                new String[]{"NHL"}, g.fromJson(response.body(), FilesReturn.class).files);
+        for (String path : new String[]{"/sports", "/sports/NBA", "/sports/NFL"}) {
+            response = getHttpResponse(uri + "/is_directory", new PathRequest(path));
+            exceptionType = g.fromJson(response.body(), ExceptionReturn.class).exceptionType;
+            assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Deleted path should not be found!"),
+                    pubSubException.valueOf(exceptionType), PubSubException.FileNotFoundException);
+        }
+        response = getHttpResponse(clientUri + "/storage_size", new PathRequest("/sports/NBA"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "File should be deleted from storage server!"),
+                404, response.statusCode());
+        response = getHttpResponse(clientUri + "/storage_size", new PathRequest("/NHL"));
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Other file should be kept on storage server!"),
+                200, response.statusCode());
+
+        /*
+            [Test] a file cannot be created in the deleted directory until it's created again
+        */
+        response = getHttpResponse(uri + "/create_file", new PathRequest("/sports/NBA"));
+        exceptionType = g.fromJson(response.body(), ExceptionReturn.class).exceptionType;
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Parent directory should be deleted!"),
+                pubSubException.valueOf(exceptionType), PubSubException.FileNotFoundException);
+        getHttpResponse(uri + "/create_directory", new PathRequest("/sports"));
+        response = getHttpResponse(uri + "/create_file", new PathRequest("/sports/NBA"));
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "File should be created again!"),
+                g.fromJson(response.body(), BooleanReturn.class).success);
+
+        // rest folder in storage server in order to let stress test pass
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/sports"));
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/NHL"));
+
+        namingServer.stop();
+        storageServer1.stop();
+    }
+
+    /**
+     This test is to verify /list_summary keeps its file count and storage servers up to date through create,
+     replicate and delete
+     */
+    @Test
+    public void ListSummaryTest() throws IOException, InterruptedException {
+        /*
+            init system (1 naming server, 2 storage servers), files are created while only storage server 1 is registered
+         */
+        namingServer = new NamingServer(namingServerServicePort, namingServerRegistrationPort);
+        namingServer.startService(g);
+        namingServer.startRegistratioin(g);
+
+        storageServer1 = new StorageServer(storageServer1ClientPort, storageServer1CommandPort, namingServerRegistrationPort, storageServer1Root);
+        storageServer1.startClientService();
+        storageServer1.startCommandService();
+        storageServer2 = new StorageServer(storageServer2ClientPort, storageServer2CommandPort, namingServerRegistrationPort, storageServer2Root);
+        storageServer2.startClientService();
+        storageServer2.startCommandService();
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer1IP, storageServer1ClientPort, storageServer1CommandPort, new String[0]));
+        String uri = "http://" + namingServerIP + ":" + namingServerServicePort;
+        ServerInfo server1 = new ServerInfo(storageServer1IP, storageServer1ClientPort);
+        ServerInfo server2 = new ServerInfo(storageServer2IP, storageServer2ClientPort);
+
+        /*
+            [Test] created files are counted in every ancestor directory
+        */
+        getHttpResponse(uri + "/create_directory", new PathRequest("/sports"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/sports/NBA"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/sports/NFL"));
+        getHttpResponse(uri + "/create_file", new PathRequest("/NHL"));
+        response = getHttpResponse(uri + "/list_summary", new PathRequest("/"));
+        ListSummaryReturn summary = g.fromJson(response.body(), ListSummaryReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Root should count every file!"),
+                3, summary.file_count);
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Only storage server 1 stores files!"),
+                new ServerInfo[]{server1}, summary.storage_servers);
+        response = getHttpResponse(uri + "/list_summary", new PathRequest("/sports"));
+        summary = g.fromJson(response.body(), ListSummaryReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Directory should count its own files!"),
+                2, summary.file_count);
+
+        /*
+            [Test] a replica adds its storage server without counting the file twice
+        */
+        getHttpResponse("http://" + namingServerIP + ":" + namingServerRegistrationPort + "/register",
+                new RegisterRequest(storageServer2IP, storageServer2ClientPort, storageServer2CommandPort, new String[0]));
+        response = getHttpResponse(uri + "/replication",
+                new ReplicationRequest("/sports/NBA", storageServer1IP, storageServer1ClientPort,
+                        storageServer2IP, storageServer2ClientPort, storageServer2CommandPort));
+        assertTrue(String.format("[Error](line:%s) %s", getCurrentLine(), "Should successfully replicate without exception"),
+                g.fromJson(response.body(), BooleanReturn.class).success);
+        response = getHttpResponse(uri + "/list_summary", new PathRequest("/sports"));
+        summary = g.fromJson(response.body(), ListSummaryReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Replica should not be counted as a file!"),
+                2, summary.file_count);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Both storage servers should be listed!"),
+                new HashSet<>(Arrays.asList(server1, server2)), new HashSet<>(Arrays.asList(summary.storage_servers)));
+
+        /*
+            [Test] deleting files shrinks the count and drops storage servers that no longer store anything
+        */
+        getHttpResponse(uri + "/delete", new PathRequest("/sports/NBA"));
+        response = getHttpResponse(uri + "/list_summary", new PathRequest("/sports"));
+        summary = g.fromJson(response.body(), ListSummaryReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Deleted file should not be counted!"),
+                1, summary.file_count);
+        assertArrayEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Storage server 2 should be dropped!"),
+                new ServerInfo[]{server1}, summary.storage_servers);
+        getHttpResponse(uri + "/delete", new PathRequest("/sports"));
+        response = getHttpResponse(uri + "/list_summary", new PathRequest("/"));
+        summary = g.fromJson(response.body(), ListSummaryReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Deleted directory should not be counted!"),
+                1, summary.file_count);
+        getHttpResponse(uri + "/delete", new PathRequest("/NHL"));
+        response = getHttpResponse(uri + "/list_summary", new PathRequest("/"));
+        summary = g.fromJson(response.body(), ListSummaryReturn.class);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Empty root should count no file!"),
+                0, summary.file_count);
+        assertEquals(String.format("[Error](line:%s) %s", getCurrentLine(), "Empty root should list no storage server!"),
+                0, summary.storage_servers.length);
+
+        // rest folder in storage server in order to let stress test pass
+        getHttpResponse("http://" + storageServer1IP + ":" + storageServer1CommandPort + "/storage_delete", new PathRequest("/sports"));
+        getHttpResponse("http://" + storageServer2IP + ":" + storageServer2CommandPort + "/storage_delete", new PathRequest("/sports"));
+
+        namingServer.stop();
+        storageServer1.stop();
+        storageServer2.stop();
+    }
+
+    /**
+     * Read every message a storage server still holds for a file
+     *
+     * @param ip         ip of the storage server
+     * @param clientPort client port of the storage server
+     * @param path       path of the file
+     * @return messages read
+     */
+    MessagesReturn readAllMessages(String ip, int clientPort, String path) throws IOException, InterruptedException {
+        HttpResponse<String> messagesResponse = getHttpResponse("http://" + ip + ":" + clientPort + "/storage_read_messages",
+                new ReadMessagesRequest(path, 0, Integer.MAX_VALUE));
+        return g.fromJson(messagesResponse.body(), MessagesReturn.class);
+    }
+
     /**
      *  Get current line number for debugging
      * @return Integer of line number